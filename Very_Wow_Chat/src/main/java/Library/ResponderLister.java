@@ -9,6 +9,7 @@ import project.payloads.UserResponder;
 import project.persistance.entities.Chatroom;
 import project.persistance.entities.Membership;
 import project.persistance.entities.User;
+import project.persistance.queryresults.ChatroomSummary;
 
 public class ResponderLister {
 
@@ -32,6 +33,16 @@ public class ResponderLister {
 		return list.stream().map(x -> new ChatroomResponder(x)).collect(Collectors.toList());
 	}
 
+	/**
+	 * converts a list of ChatroomSummaries to a list of ChatroomResponders
+	 * 
+	 * @param list
+	 * @return
+	 */
+	public static List<ChatroomResponder> summariesToChatroomResponderList(List<ChatroomSummary> list) {
+		return list.stream().map(x -> new ChatroomResponder(x)).collect(Collectors.toList());
+	}
+
 	/**
 	 * converts a list of Memberships to a list of MembershipResponders
 	 * 
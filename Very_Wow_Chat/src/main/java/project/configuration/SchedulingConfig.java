@@ -0,0 +1,15 @@
+package project.configuration;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Enables <code>@Scheduled</code> background jobs, e.g. draining the mail
+ * outbox.
+ *
+ * @author Róman(ror9@hi.is)
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfig {
+}
@@ -0,0 +1,53 @@
+package project.configuration;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.simp.config.ChannelRegistration;
+import org.springframework.messaging.simp.config.MessageBrokerRegistry;
+import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
+import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+
+import project.security.StompAuthorizationInterceptor;
+
+/**
+ * STOMP over WebSockets. Clients connect to <code>/ws</code>, send their JWT in
+ * the <code>Authorization</code> header of the STOMP CONNECT frame (same
+ * <code>"Token xxxxx"</code> format as the REST interface) and subscribe to
+ * <code>/topic/chatroom/{chatroomName}</code> to receive new messages of a chat
+ * room as they are posted, instead of polling for them.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Configuration
+@EnableWebSocketMessageBroker
+public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
+
+	/**
+	 * Every chat room has its own topic, <code>CHATROOM_TOPIC_PREFIX</code>
+	 * followed by the chat room name.
+	 */
+	public static final String CHATROOM_TOPIC_PREFIX = "/topic/chatroom/";
+
+	@Autowired
+	private StompAuthorizationInterceptor stompAuthorizationInterceptor;
+
+	@Override
+	public void registerStompEndpoints(StompEndpointRegistry registry) {
+		// same origin as the CORS config in JwtSecurityConfig
+		registry.addEndpoint("/ws").setAllowedOrigins("http://localhost:3000").withSockJS();
+	}
+
+	@Override
+	public void configureMessageBroker(MessageBrokerRegistry registry) {
+		// the server is the only one that publishes to the topics
+		registry.enableSimpleBroker("/topic");
+		registry.setApplicationDestinationPrefixes("/app");
+	}
+
+	@Override
+	public void configureClientInboundChannel(ChannelRegistration registration) {
+		// authenticate on CONNECT and authorize on SUBSCRIBE
+		registration.interceptors(stompAuthorizationInterceptor);
+	}
+}
@@ -19,10 +19,10 @@ import project.payloads.JwtUser;
 import project.payloads.PasswordResetRequest;
 import project.payloads.UserRegistrationFormReceiver;
 import project.persistance.entities.User;
-import project.pojo.Mailer;
 import project.security.JwtGenerator;
 import project.services.AuthenticationService;
 import project.services.CryptographyService;
+import project.services.MailOutboxService;
 import project.services.TemporaryUserStorageService;
 import project.services.UserService;
 
@@ -42,6 +42,13 @@ public class AccountController {
 	@Autowired
 	private TemporaryUserStorageService temporaryUserStorageService;
 
+	/**
+	 * Emails are queued and sent in the background so a slow email server
+	 * doesn't slow down registering
+	 */
+	@Autowired
+	private MailOutboxService mailOutboxService;
+
 	/**
 	 * Our long term storage database used to store our user after he has been
 	 * validated
@@ -73,14 +80,6 @@ public class AccountController {
 	@Value("${email.server.url}")
 	private String emailServerUrl;
 
-	/**
-	 * Since our email server is live to everyone, we add a secret key
-	 * to authenticate ourself so only people who have the key can send emails
-	 * we dont want random people using our server to spamm others in our name
-	 *  */
-	@Value("${email.server.secretkey}")
-	private String emailServerSecretKey;
-
 	/**
 	 * just a link that will be displayed inside the email when you open the link.
 	 * We have 3 different servers all running locally and on different ports 
@@ -240,9 +239,8 @@ public class AccountController {
 		String recipientEmail = payload.getEmail();
 		String emailContent = "Welcome to VeryWowChat!!! \nbefore you can login please validate your account here : "
 				+ this.serverRunningOn+"validation/" + key;
-		// the mailer who will call the webServer to send a validation email
-		Mailer mailer = new Mailer(recipientEmail, emailContent, emailServerUrl, emailServerSecretKey);
-		mailer.send(); // send the email to the user
+		// queue the validation email, the outbox will call the webServer to send it
+		this.mailOutboxService.enqueue(recipientEmail, "validation", emailContent);
 
 		// we responde with that the register was successful and dont send any content
 		// back
@@ -269,20 +267,18 @@ public class AccountController {
 		// the explanation for this is above in the login controller line : 74
 		HttpResponseBody clientResponse = new HttpResponseBody();
 
-		/* We check if the key exists in our short term storage */
-		if (!this.temporaryUserStorageService.userNameExists(key)) {
-			clientResponse.addSingleError("error",
-					"User not found or validation period has expired please register again");
-			return new ResponseEntity<>(clientResponse.getErrorResponse(), HttpStatus.NOT_FOUND);
-		}
-
-		// NOTE that we know the data exists we fetch it and move it into long term
 		/*
 		 * NOTE: we assume the email of this JSON object is encrypted (from registration
 		 * everything that needs to be hashed/encrypted should be hashed/encrypted).
 		 */
 		JSONObject tempUrs = this.temporaryUserStorageService.getAndDestroyData(key); // fetch the data and remove the data from
 																		// shortterm storage
+		/* the key doesn't exist in our short term storage */
+		if (tempUrs == null) {
+			clientResponse.addSingleError("error",
+					"User not found or validation period has expired please register again");
+			return new ResponseEntity<>(clientResponse.getErrorResponse(), HttpStatus.NOT_FOUND);
+		}
 
 		// create a new User that will be insert into our long term storage
 		User newuser = new User(tempUrs.getString("userName"), tempUrs.getString("password"),
@@ -399,8 +395,7 @@ public class AccountController {
 			temporaryUserStorageService.insertString(randomKey, username);
 			String resetUrl = emailServerUrl + "password_reset/" + randomKey;
 			String emailContent = "Reset URL: " + resetUrl;
-			Mailer mailer = new Mailer(recipientEmail, emailContent, emailServerUrl, emailServerSecretKey);
-			mailer.send();
+			mailOutboxService.enqueue(recipientEmail, "password_reset", emailContent);
 			return new ResponseEntity<>(null, HttpStatus.NO_CONTENT);
 		} catch (NotFoundException e) {
 			return e.getErrorResponseEntity();
@@ -417,10 +412,10 @@ public class AccountController {
 	@RequestMapping(value = "/password_reset/{key}", method = RequestMethod.POST, headers = "Accept=application/json")
 	public ResponseEntity<Object> passwordResetComplete(@PathVariable String key) {
 		try {
-			if (!temporaryUserStorageService.userNameExists(key)) {
+			String username = temporaryUserStorageService.getAndDestroyString(key);
+			if (username == null) {
 				return new ResponseEntity<>("not found", HttpStatus.NOT_FOUND);
 			}
-			String username = temporaryUserStorageService.getAndDestroyString(key);
 			User user = userService.findByUsername(username);
 			String password = CryptographyService.getStrongRandomPassword(20);
 			// Update existing user.
@@ -26,6 +26,7 @@ import project.persistance.entities.Chatroom;
 import project.persistance.entities.Membership;
 import project.persistance.entities.Tag;
 import project.persistance.entities.User;
+import project.persistance.queryresults.ChatroomSummary;
 import project.services.ChatroomService;
 import project.services.TagService;
 import project.services.UserService;
@@ -92,7 +93,7 @@ public class ChatroomController {
 				membership = new Membership(user, chatroom);
 			}
 			// wrap the data to send in json format
-			MembershipResponder body = new MembershipResponder(membership);
+			MembershipResponder body = new MembershipResponder(chatroomService.withLastMessageReceived(membership));
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
 			return e.getErrorResponseEntity();
@@ -116,7 +117,7 @@ public class ChatroomController {
 			Chatroom chatroom = chatroomService.findByChatname(chatroomName);
 			Membership membership = this.chatroomService.getUserMembershipOfChatroom(user, chatroom);
 			// wrap the data to send in json format
-			ChatroomResponder body = new MembershipResponder(membership);
+			ChatroomResponder body = new MembershipResponder(chatroomService.withLastMessageReceived(membership));
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
 			return e.getErrorResponseEntity();
@@ -174,7 +175,7 @@ public class ChatroomController {
 			// prepare membership for return
 			Membership membership = this.chatroomService.getUserMembershipOfChatroom(user, chatroom);
 			// wrap the data to send in json format
-			ChatroomResponder body = new MembershipResponder(membership);
+			ChatroomResponder body = new MembershipResponder(chatroomService.withLastMessageReceived(membership));
 			// return the chatroom and a 201 status code
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.CREATED);
 		} catch (HttpException e) {
@@ -219,7 +220,7 @@ public class ChatroomController {
 			// prepare membership for return
 			Membership membership = this.chatroomService.getUserMembershipOfChatroom(user, chatroom);
 			// wrap the data to send in json format
-			ChatroomResponder body = new MembershipResponder(membership);
+			ChatroomResponder body = new MembershipResponder(chatroomService.withLastMessageReceived(membership));
 			// return the chatroom and a 201 status code
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
@@ -465,7 +466,8 @@ public class ChatroomController {
 		List<Chatroom> chatrooms = chatroomService.getAllListedChatrooms();
 
 		// create a list of ChatroomResponders for json return
-		List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(chatrooms);
+		List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(
+				chatroomService.chatroomsWithLastMessageReceived(chatrooms));
 
 		return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 
@@ -480,7 +482,8 @@ public class ChatroomController {
 		List<Chatroom> chatrooms = chatroomService.getAllChatrooms();
 
 		// create a list of ChatroomResponders for json return
-		List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(chatrooms);
+		List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(
+				chatroomService.chatroomsWithLastMessageReceived(chatrooms));
 
 		return new ResponseEntity<>(body, HttpStatus.OK);
 	}
@@ -506,7 +509,7 @@ public class ChatroomController {
 			// save the changes
 			userService.saveUser(user);
 			// prepare the payload
-			MembershipResponder body = new MembershipResponder(membership);
+			MembershipResponder body = new MembershipResponder(chatroomService.withLastMessageReceived(membership));
 			// return the payload with a status of 200
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
@@ -544,10 +547,37 @@ public class ChatroomController {
 	@RequestMapping(path = "/tag/{tagName}", method = RequestMethod.GET, headers = "Accept=application/json")
 	public ResponseEntity<Object> getListedChatroomsWithTag(UsernamePasswordAuthenticationToken token, @PathVariable String tagName) {
 		// fetch the chatroom
-		List<Chatroom> chatrooms = this.tagService.findListedChatroomsWithTag(tagName);
+		List<ChatroomSummary> chatrooms = this.tagService.findListedChatroomsWithTag(tagName);
 
 		// create a list of ChatroomResponders for json return
-		List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(chatrooms);
+		List<ChatroomResponder> body = ResponderLister.summariesToChatroomResponderList(
+				chatroomService.summariesWithLastMessageReceived(chatrooms));
+
+		return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
+	}
+
+	/**
+	 * get a page of the listed chatrooms that have all the given tags, ordered by
+	 * chatroom name
+	 * 
+	 * @param tagNames comma separated tag names, e.g. /tag/a,b,c/0/20
+	 * @param offset   how many chatrooms to skip
+	 * @param limit    how many chatrooms at most to return
+	 * @return
+	 */
+	@RequestMapping(path = "/tag/{tagNames}/{offset}/{limit}", method = RequestMethod.GET, headers = "Accept=application/json")
+	public ResponseEntity<Object> getListedChatroomsWithTags(UsernamePasswordAuthenticationToken token,
+			@PathVariable List<String> tagNames, @PathVariable int offset, @PathVariable int limit) {
+		if (offset < 0 || limit < 0) {
+			return new ResponseEntity<>(ResponseWrapper.badWrap("Offset and limit have to be non-negative integers."),
+					HttpStatus.BAD_REQUEST);
+		}
+		// fetch the chatrooms
+		List<ChatroomSummary> chatrooms = this.tagService.findListedChatroomsWithTags(tagNames, offset, limit);
+
+		// create a list of ChatroomResponders for json return
+		List<ChatroomResponder> body = ResponderLister.summariesToChatroomResponderList(
+				chatroomService.summariesWithLastMessageReceived(chatrooms));
 
 		return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 	}
@@ -574,7 +604,8 @@ public class ChatroomController {
 				}
 			}
 			// create a list of membershipResponders for json return
-			List<MembershipResponder> body = ResponderLister.toMembershipResponderList(memberships);
+			List<MembershipResponder> body = ResponderLister.toMembershipResponderList(
+					chatroomService.membershipsWithLastMessageReceived(memberships));
 			
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
@@ -604,7 +635,8 @@ public class ChatroomController {
 				}
 			}
 			// create a list of membershipResponders for json return
-			List<MembershipResponder> body = ResponderLister.toMembershipResponderList(memberships);
+			List<MembershipResponder> body = ResponderLister.toMembershipResponderList(
+					chatroomService.membershipsWithLastMessageReceived(memberships));
 			
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
@@ -639,7 +671,7 @@ public class ChatroomController {
 			// overwrite the tags
 			this.tagService.setTags(chatroom, tagNames);
 			// return the updates chatroom
-			ChatroomResponder body = new ChatroomResponder(chatroom);
+			ChatroomResponder body = new ChatroomResponder(chatroomService.withLastMessageReceived(chatroom));
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
 			return e.getErrorResponseEntity();
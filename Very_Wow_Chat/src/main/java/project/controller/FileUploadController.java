@@ -1,35 +1,41 @@
 package project.controller;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.file.Paths;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Random;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.tomcat.util.http.fileupload.FileItemIterator;
 import org.apache.tomcat.util.http.fileupload.FileItemStream;
 import org.apache.tomcat.util.http.fileupload.FileUploadException;
 import org.apache.tomcat.util.http.fileupload.servlet.ServletFileUpload;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import Library.ResponseWrapper;
+import project.errors.HttpException;
 import project.errors.NotFoundException;
-import project.persistance.entities.Chatroom;
+import project.errors.UnauthorizedException;
+import project.payloads.UploadSessionRequest;
+import project.persistance.entities.BlobMetadata;
+import project.persistance.queryresults.ChatroomReference;
+import project.persistance.queryresults.UserPrincipal;
 import project.services.ChatroomService;
+import project.services.ChunkedUploadService;
+import project.services.ContentAddressableStorageService;
 import project.services.UserService;
 
 /**
@@ -48,39 +54,29 @@ public class FileUploadController {
 
 	@Autowired
 	private UserService userService;
-	
-	@Value("${content.directory}")
-	private String fileDirectory;
+
+	@Autowired
+	private ContentAddressableStorageService cass;
+
+	@Autowired
+	private ChunkedUploadService chunkedUploadService;
 	
 	
 
 	@RequestMapping(value = "/{chatroomName}/{hash}", method = RequestMethod.GET)
-	public void download(@PathVariable String chatroomName, @PathVariable("hash") String hash, HttpServletResponse response) throws IOException, NotFoundException {
+	public void download(@PathVariable String chatroomName, @PathVariable("hash") String hash, HttpServletRequest request, HttpServletResponse response) throws IOException, NotFoundException {
 		// 9884cc96c8cf88f60e61058503f9fd9654223bdc1a092a8b1d2d1c12c09daea6
 		
 		// 64 characters
 		// extract filename part
 		
-        Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+        ChatroomReference chatroom = chatroomService.findReference(chatroomName);
         
         System.out.println("Get from: " + chatroomName);
 		
-		// TODO: ensure hash is legal
-		String path = Paths.get(fileDirectory, hash).toString();
-		
-		File file = new File(path);
-		
-		if (file.exists()) {
-			
-			InputStream is = new FileInputStream(file);
-		    // copy it to response's OutputStream
-			IOUtils.copy(is, response.getOutputStream());
-		     response.flushBuffer();
-		} else {
-			// SOMEHOW INDICATE IT FAILED
-			response.sendError(404, "Resource not found");
-			response.flushBuffer();			
-		}
+		// handles conditional and range requests, and 404 if the file is missing
+		BlobMetadata metadata = ContentAddressableStorageService.isValidHash(hash) ? cass.getMetadata(hash) : null;
+		cass.serve(hash, metadata != null ? metadata.getMimeType() : null, request, response);
 	}
 	
 
@@ -96,7 +92,7 @@ public class FileUploadController {
         ServletFileUpload upload = new ServletFileUpload();
         FileItemIterator iterator = upload.getItemIterator(request);
         
-        Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+        ChatroomReference chatroom = chatroomService.findReference(chatroomName);
         
         System.out.println("Posting to: " + chatroomName);
         
@@ -116,84 +112,144 @@ public class FileUploadController {
                 System.out.println("Content type: " + contentType);
             	
                 InputStream inputStream = item.openStream();
-                String hash = handleInputStream(inputStream);
+                String hash = cass.storeInputStream(inputStream, filename);
                 
                 obj.put("sha512", hash);
                 obj.put("filename", filename);
                 obj.put("content-type", contentType);
-                
-                // TODO: save metadata
-                //...
             }
         }
 		return obj.toString();
     }
 
-	private String toHex(byte[] bytes) {
-		StringBuffer result = new StringBuffer();
-		for (byte b : bytes) {
-			result.append(String.format("%02x", b));
+	/**
+	 * Starts a resumable upload of a file to chat room
+	 * <code>chatroomName</code>, e.g.
+	 * 
+	 * <pre>
+	 * { "size": 104857600, "sha256": "9884cc96...", "filename": "video.mp4" }
+	 * </pre>
+	 * 
+	 * The file is then sent in chunks with <code>PUT
+	 * /{chatroomName}/uploads/{uploadId}?offset=n</code>, in any order, and the
+	 * upload finished with <code>POST
+	 * /{chatroomName}/uploads/{uploadId}/finish</code>.
+	 * 
+	 * @param chatroomName
+	 * @param uploadRequest Size, SHA-256 and name of the file.
+	 * @param token
+	 * @return id of the upload
+	 */
+	@RequestMapping(path = "/{chatroomName}/uploads", method = RequestMethod.POST, headers = "Accept=application/json")
+	public ResponseEntity<Object> createUpload(@PathVariable String chatroomName,
+			@RequestBody UploadSessionRequest uploadRequest, UsernamePasswordAuthenticationToken token) {
+		try {
+			checkMember(token.getName(), chatroomName);
+			String uploadId = chunkedUploadService.create(token.getName(), chatroomName, uploadRequest.getSize(),
+					uploadRequest.getSha256(), uploadRequest.getFilename());
+			return new ResponseEntity<>(ResponseWrapper.wrap(uploadId), HttpStatus.OK);
+		} catch (HttpException e) {
+			return e.getErrorResponseEntity();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ResponseEntity<>(ResponseWrapper.badWrap("Unable to start the upload."),
+					HttpStatus.INTERNAL_SERVER_ERROR);
 		}
-		return result.toString();
 	}
-	
-
-	private String getRandomName(int n) {
-		Random r = new Random();
-
-		StringBuffer sb = new StringBuffer();
 
-		String alphabet = "abcdefghijklmnopqrstuvwxyz0123456789";
-		for (int i = 0; i < n; i++) {
-			sb.append(alphabet.charAt(r.nextInt(alphabet.length())));
+	/**
+	 * Receives the chunk of upload <code>uploadId</code> that starts at
+	 * <code>offset</code>. The request body is the raw content of the chunk.
+	 * 
+	 * @param chatroomName
+	 * @param uploadId
+	 * @param offset       Where in the file the chunk starts.
+	 * @param requestBody  Content of the chunk.
+	 * @param token
+	 * @return
+	 */
+	@RequestMapping(path = "/{chatroomName}/uploads/{uploadId}", method = RequestMethod.PUT)
+	public ResponseEntity<Object> uploadChunk(@PathVariable String chatroomName, @PathVariable String uploadId,
+			@RequestParam long offset, InputStream requestBody, UsernamePasswordAuthenticationToken token) {
+		try {
+			checkMember(token.getName(), chatroomName);
+			chunkedUploadService.writeChunk(token.getName(), chatroomName, uploadId, offset, requestBody);
+			return new ResponseEntity<>(ResponseWrapper.wrap(offset), HttpStatus.OK);
+		} catch (HttpException e) {
+			return e.getErrorResponseEntity();
+		} catch (IOException e) {
+			// most likely the connection dropped, the chunk should be sent again
+			return new ResponseEntity<>(ResponseWrapper.badWrap("Unable to write the chunk."),
+					HttpStatus.INTERNAL_SERVER_ERROR);
 		}
-
-		return sb.toString();
 	}
-	
-	private String handleInputStream(InputStream dataStream) throws NoSuchAlgorithmException, IOException {
-		
-		final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-		
-		// TODO: ensure temporaryName doesn't exist
-
-		String temporaryName = getRandomName(64);
-		String pathToSaveFile = Paths.get(fileDirectory, temporaryName).toString();
-
-		File targetFile = new File(pathToSaveFile);
-
-		OutputStream outStream = new FileOutputStream(targetFile);
 
-		byte[] buffer = new byte[8 * 1024];
-		int bytesRead;
-		while ((bytesRead = dataStream.read(buffer)) != -1) {
-			outStream.write(buffer, 0, bytesRead);
-			messageDigest.update(buffer, 0, bytesRead);
+	/**
+	 * Returns the size of upload <code>uploadId</code> and which chunks have
+	 * been received, so an interrupted upload can be resumed.
+	 * 
+	 * @param chatroomName
+	 * @param uploadId
+	 * @param token
+	 * @return
+	 */
+	@RequestMapping(path = "/{chatroomName}/uploads/{uploadId}", method = RequestMethod.GET)
+	public ResponseEntity<Object> getUpload(@PathVariable String chatroomName, @PathVariable String uploadId,
+			UsernamePasswordAuthenticationToken token) {
+		try {
+			checkMember(token.getName(), chatroomName);
+			return new ResponseEntity<>(
+					ResponseWrapper.wrap(chunkedUploadService.getStatus(token.getName(), chatroomName, uploadId)),
+					HttpStatus.OK);
+		} catch (HttpException e) {
+			return e.getErrorResponseEntity();
 		}
-		IOUtils.closeQuietly(dataStream);
-		IOUtils.closeQuietly(outStream);
+	}
 
-		byte[] hash = messageDigest.digest();
-		
-		String hashDigest = toHex(hash);
-		
-		
-		String finalPathToSave = Paths.get(fileDirectory, hashDigest).toString();
-		
-		// Rename file
-		
-		// File (or directory) with old name
-		File file = new File(pathToSaveFile);
+	/**
+	 * Finishes upload <code>uploadId</code>, storing the file if its content
+	 * matches the SHA-256 the upload was started with. The returned
+	 * <code>sha256</code> is then attached to a message as
+	 * <code>{ "type": "stored", "sha256": "9884cc96..." }</code>, once, by the
+	 * same user within 30 minutes. If finishing
+	 * fails the upload stays open and can be finished again.
+	 * 
+	 * @param chatroomName
+	 * @param uploadId
+	 * @param token
+	 * @return the hash, name and content type of the stored file
+	 */
+	@RequestMapping(path = "/{chatroomName}/uploads/{uploadId}/finish", method = RequestMethod.POST)
+	public ResponseEntity<Object> finishUpload(@PathVariable String chatroomName, @PathVariable String uploadId,
+			UsernamePasswordAuthenticationToken token) {
+		try {
+			checkMember(token.getName(), chatroomName);
+			BlobMetadata metadata = chunkedUploadService.finish(token.getName(), chatroomName, uploadId);
+			Map<String, Object> stored = new LinkedHashMap<>();
+			stored.put("sha256", metadata.getHash());
+			stored.put("filename", metadata.getOriginalFilename());
+			stored.put("content-type", metadata.getMimeType());
+			stored.put("size", metadata.getSize());
+			return new ResponseEntity<>(ResponseWrapper.wrap(stored), HttpStatus.OK);
+		} catch (HttpException e) {
+			return e.getErrorResponseEntity();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ResponseEntity<>(ResponseWrapper.badWrap("Unable to store the upload."),
+					HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
 
-		// File (or directory) with new name
-		File file2 = new File(finalPathToSave);
-		
-		if (file2.exists()) {
-			file.delete();
-		} else {
-			file.renameTo(file2);
+	/**
+	 * Checks user <code>username</code> is a member of chat room
+	 * <code>chatroomName</code>. Done on every request of an upload, so a user
+	 * removed from the chat room can't go on with it.
+	 */
+	private void checkMember(String username, String chatroomName) throws HttpException {
+		UserPrincipal user = userService.findPrincipal(username);
+		ChatroomReference chatroom = chatroomService.findReference(chatroomName);
+		if (!chatroomService.isMember(user, chatroom)) {
+			throw new UnauthorizedException("You don't have access to this chat room.");
 		}
-		
-		return hashDigest;
 	}
 }
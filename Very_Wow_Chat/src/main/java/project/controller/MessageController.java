@@ -1,28 +1,27 @@
 package project.controller;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
-import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.bind.DatatypeConverter;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.tika.Tika;
+import org.bson.Document;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -30,22 +29,38 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
-
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import Library.ResponseWrapper;
+import project.errors.HttpException;
 import project.errors.NotFoundException;
+import project.payloads.MessageBatchRequest;
+import project.payloads.MessageCursor;
 import project.payloads.MessageRequest;
 import project.payloads.MessageResponse;
+import project.persistance.entities.BlobMetadata;
 import project.persistance.entities.ChatMessage;
-import project.persistance.entities.Chatroom;
-import project.persistance.entities.User;
+import project.persistance.queryresults.ChatroomReference;
+import project.persistance.queryresults.UserPrincipal;
 import project.services.ChatroomService;
+import project.services.ChunkedUploadService;
 import project.services.ContentAddressableStorageService;
 import project.services.CryptographyService;
+import project.services.MessageBroadcastService;
+import project.services.MessageDecryptionService;
+import project.services.MessageIndexProvisioner;
 import project.services.MessageService;
 import project.services.UserService;
 
@@ -73,36 +88,77 @@ public class MessageController {
 	@Autowired
 	protected ContentAddressableStorageService cass;
 
-	@Value("${content.directory}")
-	private String fileDirectory;
+	@Autowired
+	protected MessageBroadcastService messageBroadcastService;
+
+	@Autowired
+	protected MessageDecryptionService messageDecryptionService;
+
+	@Autowired
+	protected MessageIndexProvisioner messageIndexProvisioner;
+
+	@Autowired
+	protected ChunkedUploadService chunkedUploadService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	// client message ids, printable and short enough to index
+	private static final Pattern CLIENT_MESSAGE_ID = Pattern.compile("[\\x21-\\x7E]{1,128}");
+
+	// most messages returned by one keyset page, larger limits are clamped
+	@Value("${messages.page.maxLimit:200}")
+	private int maxPageLimit;
+
+	// most messages that can be posted in one batch
+	@Value("${messages.batch.maxSize:500}")
+	private int maxBatchSize;
+
+	/**
+	 * Returns how often each index of the chat message collection has been used
+	 * since MongoDB started, to check history reads use the indexes and to spot
+	 * unused ones. Only available when <code>messages.indexes.statsEnabled</code>
+	 * is on.
+	 * 
+	 * @return <code>$indexStats</code> of the chat message collection.
+	 */
+	@RequestMapping(path = "/diagnostics/indexes", method = RequestMethod.GET, headers = "Accept=application/json")
+	public ResponseEntity<Object> getMessageIndexStats() {
+		List<Document> stats = messageIndexProvisioner.getIndexStats();
+		if (stats == null) {
+			return new ResponseEntity<>(ResponseWrapper.badWrap("Not found."), HttpStatus.NOT_FOUND);
+		}
+		return new ResponseEntity<>(ResponseWrapper.wrap(stats), HttpStatus.OK);
+	}
 
 	/**
 	 * Returns all messages of chat room `chatroomName`.
 	 * 
+	 * The messages are streamed from a MongoDB cursor, decrypted in batches and
+	 * written as they are decrypted, so rooms with a long history don't have to
+	 * fit in memory.
+	 * 
 	 * @param chatroomName Name of chat room.
 	 * @param token        User name and password authentication token.
 	 * 
 	 * @return List of chat messages.
 	 */
 	@RequestMapping(path = "/{chatroomName}/messages/all", method = RequestMethod.GET, headers = "Accept=application/json")
-	public ResponseEntity<Object> getChatlogPage(@PathVariable String chatroomName,
+	public ResponseEntity<StreamingResponseBody> getChatlogPage(@PathVariable String chatroomName,
 			UsernamePasswordAuthenticationToken token) {
 		try {
-			User user = userService.findByUsername(token.getName());
-			Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+			UserPrincipal user = userService.findPrincipal(token.getName());
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
 			if (chatroomService.isMember(user, chatroom)) {
-				List<ChatMessage> messages = messageService.getAllMessages(chatroom);
-				List<MessageResponse> body = messages.stream().map(x -> new MessageResponse(x))
-						.collect(Collectors.toList());
-				return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
+				return streamMessages(() -> messageService.streamAllMessages(chatroom));
 			} else {
-				return new ResponseEntity<>(
+				return streamBody(new ResponseEntity<>(
 						ResponseWrapper.badWrap("Offset and limit have to be non-negative integers."),
-						HttpStatus.UNAUTHORIZED);
+						HttpStatus.UNAUTHORIZED));
 			}
 		} catch (NotFoundException e) {
 			e.printStackTrace();
-			return e.getErrorResponseEntity();
+			return streamBody(e.getErrorResponseEntity());
 		}
 	}
 
@@ -120,13 +176,11 @@ public class MessageController {
 	public ResponseEntity<Object> getChatlogPage(@PathVariable String chatroomName, @PathVariable int offset,
 			UsernamePasswordAuthenticationToken token) {
 		try {
-			User user = userService.findByUsername(token.getName());
-			Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+			UserPrincipal user = userService.findPrincipal(token.getName());
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
 			if (chatroomService.isMember(user, chatroom)) {
 				if (offset >= 0) {
-					List<ChatMessage> messages = messageService.getChatPage(chatroom, offset);
-					List<MessageResponse> body = messages.stream().map(x -> new MessageResponse(x))
-							.collect(Collectors.toList());
+					List<MessageResponse> body = messageService.getChatPage(chatroom, offset);
 					return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 				} else {
 					return new ResponseEntity<>(
@@ -158,13 +212,11 @@ public class MessageController {
 	public ResponseEntity<Object> getChatlogPage(@PathVariable String chatroomName, @PathVariable int limit,
 			@PathVariable int offset, UsernamePasswordAuthenticationToken token) {
 		try {
-			User user = userService.findByUsername(token.getName());
-			Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+			UserPrincipal user = userService.findPrincipal(token.getName());
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
 			if (chatroomService.isMember(user, chatroom)) {
 				if (limit >= 0 && offset >= 0) {
-					List<ChatMessage> messages = messageService.getChatPage(chatroom, offset, limit);
-					List<MessageResponse> body = messages.stream().map(x -> new MessageResponse(x))
-							.collect(Collectors.toList());
+					List<MessageResponse> body = messageService.getChatPage(chatroom, offset, limit);
 					return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 				} else {
 					return new ResponseEntity<>(
@@ -181,6 +233,82 @@ public class MessageController {
 		}
 	}
 
+	/**
+	 * Returns up to `limit` messages from chat room `chatroomName` that were posted
+	 * right before `cursor`, oldest first.
+	 * 
+	 * To scroll back through the history, use the cursor of the oldest message
+	 * received, i.e. the first message of the previous page. To get the latest
+	 * messages use the current time as the cursor.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param cursor       Cursor of the form "{timestamp}_{id}" or "{timestamp}".
+	 * @param limit        How many messages at most to retrieve, at most
+	 *                     <code>messages.page.maxLimit</code>.
+	 * @param token        User name and password authentication token.
+	 * 
+	 * @return List of chat messages.
+	 */
+	@RequestMapping(path = "/{chatroomName}/messages/before/{cursor}/{limit}", method = RequestMethod.GET, headers = "Accept=application/json")
+	public ResponseEntity<Object> getChatlogPageBefore(@PathVariable String chatroomName, @PathVariable String cursor,
+			@PathVariable int limit, UsernamePasswordAuthenticationToken token) {
+		try {
+			UserPrincipal user = userService.findPrincipal(token.getName());
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
+			if (!chatroomService.isMember(user, chatroom)) {
+				return new ResponseEntity<>(ResponseWrapper.badWrap("You don't have access to this chat room."),
+						HttpStatus.UNAUTHORIZED);
+			}
+			if (limit <= 0) {
+				return new ResponseEntity<>(ResponseWrapper.badWrap("Limit has to be a positive integer."),
+						HttpStatus.BAD_REQUEST);
+			}
+			limit = Math.min(limit, maxPageLimit);
+			List<MessageResponse> body = messageService.getChatPageBefore(chatroom, MessageCursor.parse(cursor),
+					limit);
+			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
+		} catch (HttpException e) {
+			return e.getErrorResponseEntity();
+		}
+	}
+
+	/**
+	 * Returns up to `limit` messages from chat room `chatroomName` that were posted
+	 * right after `cursor`, oldest first.
+	 * 
+	 * To catch up on new messages, use the cursor of the newest message received.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param cursor       Cursor of the form "{timestamp}_{id}" or "{timestamp}".
+	 * @param limit        How many messages at most to retrieve, at most
+	 *                     <code>messages.page.maxLimit</code>.
+	 * @param token        User name and password authentication token.
+	 * 
+	 * @return List of chat messages.
+	 */
+	@RequestMapping(path = "/{chatroomName}/messages/after/{cursor}/{limit}", method = RequestMethod.GET, headers = "Accept=application/json")
+	public ResponseEntity<Object> getChatlogPageAfter(@PathVariable String chatroomName, @PathVariable String cursor,
+			@PathVariable int limit, UsernamePasswordAuthenticationToken token) {
+		try {
+			UserPrincipal user = userService.findPrincipal(token.getName());
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
+			if (!chatroomService.isMember(user, chatroom)) {
+				return new ResponseEntity<>(ResponseWrapper.badWrap("You don't have access to this chat room."),
+						HttpStatus.UNAUTHORIZED);
+			}
+			if (limit <= 0) {
+				return new ResponseEntity<>(ResponseWrapper.badWrap("Limit has to be a positive integer."),
+						HttpStatus.BAD_REQUEST);
+			}
+			limit = Math.min(limit, maxPageLimit);
+			List<MessageResponse> body = messageService.getChatPageAfter(chatroom, MessageCursor.parse(cursor),
+					limit);
+			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
+		} catch (HttpException e) {
+			return e.getErrorResponseEntity();
+		}
+	}
+
 	/**
 	 * Returns all message from chat room `chatroomName` from time `startTime` until
 	 * now.
@@ -195,13 +323,11 @@ public class MessageController {
 	public ResponseEntity<Object> getChatroomMessagesFromStartTime(@PathVariable String chatroomName,
 			@PathVariable Long startTime, UsernamePasswordAuthenticationToken token) {
 		try {
-			User user = userService.findByUsername(token.getName());
-			Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+			UserPrincipal user = userService.findPrincipal(token.getName());
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
 			if (chatroomService.isMember(user, chatroom)) {
-				List<ChatMessage> messages = messageService.getChatroomMessagesBetweenTime(chatroom, startTime,
+				List<MessageResponse> body = messageService.getChatroomMessagesBetweenTime(chatroom, startTime,
 						System.currentTimeMillis());
-				List<MessageResponse> body = messages.stream().map(x -> new MessageResponse(x))
-						.collect(Collectors.toList());
 				return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 			} else {
 				return new ResponseEntity<>(ResponseWrapper.badWrap("You don't have access to this chat room."),
@@ -217,6 +343,8 @@ public class MessageController {
 	 * Returns all messages from chat room `chatroomName` starting from time
 	 * `startTime` until time `endTime`.
 	 * 
+	 * The messages are streamed, see `getChatlogPage`.
+	 * 
 	 * @param chatroomName Name of chat room.
 	 * @param startTime    Start Unix time in milliseconds.
 	 * @param endTime      End Unix time in milliseconds.
@@ -225,27 +353,75 @@ public class MessageController {
 	 * @return List of chat messages.
 	 */
 	@RequestMapping(path = "/{chatroomName}/messages/time/{startTime}/{endTime}", method = RequestMethod.GET, headers = "Accept=application/json")
-	public ResponseEntity<Object> getChatroomMessagesBetweenTime(@PathVariable String chatroomName,
+	public ResponseEntity<StreamingResponseBody> getChatroomMessagesBetweenTime(@PathVariable String chatroomName,
 			@PathVariable Long startTime, @PathVariable Long endTime, UsernamePasswordAuthenticationToken token) {
 		try {
-			User user = userService.findByUsername(token.getName());
-			Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+			UserPrincipal user = userService.findPrincipal(token.getName());
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
 			if (chatroomService.isMember(user, chatroom)) {
-				List<ChatMessage> messages = messageService.getChatroomMessagesBetweenTime(chatroom, startTime,
-						endTime);
-				List<MessageResponse> body = messages.stream().map(x -> new MessageResponse(x))
-						.collect(Collectors.toList());
-				return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
+				return streamMessages(
+						() -> messageService.streamChatroomMessagesBetweenTime(chatroom, startTime, endTime));
 			} else {
-				return new ResponseEntity<>(ResponseWrapper.badWrap("You don't have access to this chat room."),
-						HttpStatus.UNAUTHORIZED);
+				return streamBody(new ResponseEntity<>(
+						ResponseWrapper.badWrap("You don't have access to this chat room."), HttpStatus.UNAUTHORIZED));
 			}
 		} catch (NotFoundException e) {
 			e.printStackTrace();
-			return e.getErrorResponseEntity();
+			return streamBody(e.getErrorResponseEntity());
 		}
 	}
 
+	/**
+	 * Streams the messages of <code>cursor</code> as
+	 * <code>{"GoodResp": [...]}</code>, the same JSON as
+	 * <code>ResponseWrapper.wrap</code> of a list of messages.
+	 * 
+	 * The cursor is opened when the response is written (not on the request
+	 * thread), and closed when it's done, even if the client goes away.
+	 * 
+	 * @param cursor Opens the MongoDB cursor over the messages.
+	 * 
+	 * @return Streaming response.
+	 */
+	private ResponseEntity<StreamingResponseBody> streamMessages(Supplier<CloseableIterator<ChatMessage>> cursor) {
+		StreamingResponseBody body = out -> {
+			try (CloseableIterator<ChatMessage> messages = cursor.get();
+					JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+				generator.writeStartObject();
+				generator.writeArrayFieldStart("GoodResp");
+				// flushing after every message would defeat the batching
+				ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+				List<MessageResponse> batch = messageDecryptionService.decryptNextBatch(messages);
+				while (!batch.isEmpty()) {
+					for (MessageResponse message : batch) {
+						writer.writeValue(generator, message);
+					}
+					// send what we have, so the client gets the first bytes early
+					generator.flush();
+					batch = messageDecryptionService.decryptNextBatch(messages);
+				}
+				generator.writeEndArray();
+				generator.writeEndObject();
+			}
+		};
+		return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(body);
+	}
+
+	/**
+	 * Writes <code>response</code> (e.g. an error) as a streaming response, for
+	 * the endpoints that stream their results.
+	 * 
+	 * @param response Response to write.
+	 * 
+	 * @return Streaming response with the same status and body.
+	 */
+	private ResponseEntity<StreamingResponseBody> streamBody(ResponseEntity<Object> response) {
+		Object responseBody = response.getBody();
+		StreamingResponseBody body = out -> objectMapper.writeValue(out, responseBody);
+		return ResponseEntity.status(response.getStatusCode()).contentType(MediaType.APPLICATION_JSON_UTF8)
+				.body(body);
+	}
+
 	/**
 	 * Returns the number of messages in chat room `chatroomName`.
 	 * 
@@ -258,8 +434,8 @@ public class MessageController {
 	public ResponseEntity<Object> getChatroomMessagesBetweenTime(@PathVariable String chatroomName,
 			UsernamePasswordAuthenticationToken token) {
 		try {
-			User user = userService.findByUsername(token.getName());
-			Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+			UserPrincipal user = userService.findPrincipal(token.getName());
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
 			if (chatroomService.isMember(user, chatroom)) {
 				long count = messageService.getNrOfMessage(chatroom);
 				return new ResponseEntity<>(ResponseWrapper.wrap(count), HttpStatus.OK);
@@ -277,8 +453,8 @@ public class MessageController {
 	public ResponseEntity<Object> getChatMessage(@PathVariable String chatroomName, @PathVariable String id,
 			UsernamePasswordAuthenticationToken token) {
 		try {
-			User user = userService.findByUsername(token.getName());
-			Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+			UserPrincipal user = userService.findPrincipal(token.getName());
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
 
 			if (!chatroomService.isMember(user, chatroom)) {
 				return new ResponseEntity<>(ResponseWrapper.badWrap("You don't have access to this chat room."),
@@ -299,7 +475,7 @@ public class MessageController {
 	@RequestMapping(path = "/{chatroomName}/message/{id}/{res}", method = RequestMethod.GET, headers = "Accept=*/*")
 	public void getResourceByHashAndId(@PathVariable String chatroomName, @PathVariable String id,
 			@PathVariable String res, UsernamePasswordAuthenticationToken token,
-			HttpServletResponse httpServletResponse) {
+			HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
 
 		// The resource `res` that is being requested is a hash value.
 		final String hash = res;
@@ -310,9 +486,9 @@ public class MessageController {
 		System.out.println("hash: " + hash);
 
 		// Find user name based off of JWT token.
-		User user;
+		UserPrincipal user;
 		try {
-			user = userService.findByUsername(token.getName());
+			user = userService.findPrincipal(token.getName());
 		} catch (NotFoundException e) {
 			try {
 				httpServletResponse.sendError(401, "Unauthorized user");
@@ -325,9 +501,9 @@ public class MessageController {
 		}
 
 		// Get chat room from chat room name.
-		Chatroom chatroom;
+		ChatroomReference chatroom;
 		try {
-			chatroom = chatroomService.findByChatname(chatroomName);
+			chatroom = chatroomService.findReference(chatroomName);
 		} catch (NotFoundException e1) {
 			e1.printStackTrace();
 			try {
@@ -352,9 +528,9 @@ public class MessageController {
 
 		ChatMessage chatMessage = messageService.getChatMessage(chatroom, id);
 
-		List<String> resources = chatMessage.getResources();
+		List<String> resources = chatMessage != null ? chatMessage.getResources() : null;
 
-		if (!resources.contains(hash)) {
+		if (resources == null || !resources.contains(hash) || !ContentAddressableStorageService.isValidHash(hash)) {
 			try {
 				httpServletResponse.sendError(401, "Unauthorized: not allowed to request resources");
 				httpServletResponse.flushBuffer();
@@ -364,98 +540,29 @@ public class MessageController {
 			return;
 		}
 
-		String path = Paths.get(fileDirectory, hash).toString();
-
-		File file = new File(path);
-
-		InputStream is;
-
+		// the content type was detected once when the file was stored
+		String mimeType;
 		try {
-			is = new FileInputStream(file);
-		} catch (FileNotFoundException e) {
-			try {
+			BlobMetadata metadata = cass.getMetadata(hash);
+			if (metadata == null) {
 				httpServletResponse.sendError(404, "Unable to find resource: " + hash);
-				httpServletResponse.flushBuffer();
-			} catch (IOException e2) {
-				e2.printStackTrace();
+				return;
 			}
-			return;
-		}
-
-		// TODO: create a separate database of content type (something like that...)
-
-		Tika tika = new Tika();
-		String mimeType;
-		try {
-			mimeType = tika.detect(file);
-		} catch (IOException e1) {
-			e1.printStackTrace();
-
+			mimeType = metadata.getMimeType();
+		} catch (IOException e) {
+			e.printStackTrace();
 			// I read on Stack Exchange if you don't know the MIME type
 			// then slap this label on it!
 			mimeType = "application/octet-stream";
 		}
 
-		httpServletResponse.addHeader("Content-Type", mimeType);
-
-		ServletOutputStream servletOutputStream;
-		
-		try {
-			servletOutputStream = httpServletResponse.getOutputStream();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-			try {
-				httpServletResponse.sendError(500, "Can not establish output stream to client.");
-				httpServletResponse.flushBuffer();
-			} catch (IOException e2) {
-				e2.printStackTrace();
-			}
-			try {
-				is.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			return;
-		}
-
-		boolean success = false;
-
-		if (file.exists()) {
-
-			// copy it to response's OutputStream
-			try {
-				IOUtils.copy(is, servletOutputStream);
-				success = true;
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			
-		}
-
-		if (!success) {
-			try {
-				httpServletResponse.sendError(404, "Resource not found");
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-		try {
-			httpServletResponse.flushBuffer();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
+		// handles conditional and range requests, and 404 if the file is missing
 		try {
-			is.close();
+			cass.serve(hash, mimeType, httpServletRequest, httpServletResponse);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
+			// most likely the client went away
 			e.printStackTrace();
 		}
-
-
 	}
 
 /////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -480,9 +587,9 @@ public class MessageController {
 			@RequestBody MessageRequest chatMessageRequest, UsernamePasswordAuthenticationToken token) {
 		try {
 			// Find user name based off of JWT token.
-			User user = userService.findByUsername(token.getName());
+			UserPrincipal user = userService.findPrincipal(token.getName());
 			// Get chat room from chat room name.
-			Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
 			// Check if user is member of chat room.
 			if (chatroomService.isMember(user, chatroom)) {
 				// Get current time in milliseconds.
@@ -517,150 +624,289 @@ public class MessageController {
 	 * { "message": "Hello world!" }
 	 * </pre>
 	 * 
-	 * @param chatroomName       Name of chat room.
-	 * @param chatMessageRequest The message that is being sent.
-	 * @param token              User name and password authentication token.
+	 * or with attachments,
+	 * 
+	 * <pre>
+	 * {
+	 *   "message": "My images!",
+	 *   "attachments": [
+	 *     { "type": "base64file", "filename": "doge.jpeg", "value": "/9j/4AAQ..." },
+	 *     { "type": "stored", "sha256": "9884cc96..." }
+	 *   ]
+	 * }
+	 * </pre>
+	 * 
+	 * A client can give the message a <code>"clientMessageId"</code>, unique
+	 * among its messages to the chat room. Posting a message with the same id
+	 * again, e.g. retrying after a timeout, doesn't store it twice, the response
+	 * is the same as for the first post.
+	 * 
+	 * A <code>"stored"</code> attachment is a chunked upload the user finished,
+	 * named by its SHA-256. Each finished upload can be attached once.
+	 * 
+	 * The body is parsed as a stream, and attachments are decoded and hashed
+	 * straight into the content store as they are read, so they are never held
+	 * in memory whatever their size.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param requestBody  The message that is being sent.
+	 * @param token        User name and password authentication token.
 	 * 
 	 * @return Posts a chat message.
 	 */
 	@RequestMapping(path = "/{chatroomName}/message", method = RequestMethod.POST, headers = "Accept=application/json")
-	public ResponseEntity<Object> addChatMessage2(@PathVariable String chatroomName,
-			@RequestBody String chatMessageJsonString, UsernamePasswordAuthenticationToken token) {
+	public ResponseEntity<Object> addChatMessage2(@PathVariable String chatroomName, InputStream requestBody,
+			UsernamePasswordAuthenticationToken token) {
+		JsonArray badMessage = new JsonArray();
 		try {
-			// TODO: fix HttpStatus
-
-			// TODO: Always return "correct" content-type.
-
-			// TODO: when uploading, figure out content-type (optional9:
-
-			JsonArray badMessage = new JsonArray();
-
 			// Find user name based off of JWT token.
-			User user = userService.findByUsername(token.getName());
+			UserPrincipal user = userService.findPrincipal(token.getName());
 
 			// Get chat room from chat room name.
-			Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
 
 			if (!chatroomService.isMember(user, chatroom)) {
 				badMessage.add("You don't have access to this chat room.");
 				return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()), HttpStatus.UNAUTHORIZED);
 			}
 
-			// Check if user is member of chat room.
-
-			Gson gson = new Gson();
-			// TODO: this might fail... I don't care.
-			JsonObject chatMessage = gson.fromJson(chatMessageJsonString, JsonObject.class);
-
-			if (!chatMessage.has("message")) {
-				badMessage.add("JSON missing \"message\" property.");
-				return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()), HttpStatus.BAD_REQUEST);
-			}
-
-			JsonElement mje = chatMessage.get("message");
-
-			if (!mje.isJsonPrimitive()) {
-				badMessage.add("JSON \"message\" must be a string");
-				return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()), HttpStatus.BAD_REQUEST);
-			}
-
-			String message = mje.getAsString();
+			String message = null;
+			String clientMessageId = null;
 			List<String> resourcesAL = new ArrayList<>();
 
-			// Check if JSON request had attachments.
-			if (chatMessage.has("attachments")) {
-
-				JsonElement attachmentsje = chatMessage.get("attachments");
-
-				if (!attachmentsje.isJsonArray()) {
-					badMessage.add("Attachments must be an array");
-					return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()), HttpStatus.BAD_REQUEST);
+			try (JsonParser parser = objectMapper.getFactory().createParser(requestBody)) {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					badMessage.add("Request body must be a JSON object.");
+					return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()),
+							HttpStatus.BAD_REQUEST);
 				}
-
-				JsonArray attachmentsja = attachmentsje.getAsJsonArray();
-
-				// TODO: I'd ideally want to check whether attachments are correctly formatted
-				// before saving
-
-				for (JsonElement attachmentje : attachmentsja) {
-
-					if (!attachmentje.isJsonObject()) {
-						badMessage.add("Each attachment must be a JSON object.");
-						return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()),
-								HttpStatus.BAD_REQUEST);
-					}
-
-					JsonObject attachmentjo = attachmentje.getAsJsonObject();
-
-					if (!attachmentjo.has("type")) {
-						badMessage.add("Each attachment specificy what type it is, e.g. base64file");
-						return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()),
-								HttpStatus.BAD_REQUEST);
-					}
-
-					String type = attachmentjo.get("type").getAsString();
-
-					if (type.equals("base64file")) {
-
-						if (!attachmentjo.has("value")) {
-							badMessage.add("base64file attachment MUST have a value property");
-							return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()),
-									HttpStatus.BAD_REQUEST);
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					JsonToken value = parser.nextToken();
+					String error = null;
+					if (field.equals("message")) {
+						if (value.isScalarValue() && value != JsonToken.VALUE_NULL) {
+							message = parser.getText();
+						} else {
+							error = "JSON \"message\" must be a string";
+						}
+					} else if (field.equals("clientMessageId")) {
+						clientMessageId = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+						if (clientMessageId == null || !CLIENT_MESSAGE_ID.matcher(clientMessageId).matches()) {
+							error = "JSON \"clientMessageId\" must be 1 to 128 visible ASCII characters";
+						}
+					} else if (field.equals("attachments")) {
+						error = readAttachments(parser, user.getUsername(), resourcesAL);
+					} else if (field.equals("attachment")) {
+						if (value == JsonToken.VALUE_STRING) {
+							resourcesAL.add(storeBase64(parser, null));
+						} else {
+							error = "JSON \"attachment\" must be a base64 string";
 						}
-
-						String value = attachmentjo.get("value").getAsString();
-
-						byte[] valueBytes = DatatypeConverter.parseBase64Binary(value);
-
-						String hex = cass.storeBytes(valueBytes);
-						resourcesAL.add(hex);
-
 					} else {
-						System.out.println("Unknown type: " + type);
-						badMessage.add("Unknown type for attachment: " + type);
+						parser.skipChildren();
+					}
+					if (error != null) {
+						badMessage.add(error);
 						return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()),
 								HttpStatus.BAD_REQUEST);
 					}
 				}
+			} catch (JsonProcessingException e) {
+				badMessage.add("Malformed JSON or base64: " + e.getOriginalMessage());
+				return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()), HttpStatus.BAD_REQUEST);
 			}
-			
-			if (chatMessage.has("attachment")) {
-				JsonElement attachment = chatMessage.get("attachment");
-				String value = attachment.getAsString();
 
-				byte[] valueBytes = DatatypeConverter.parseBase64Binary(value);
-
-				String hex = cass.storeBytes(valueBytes);
-				resourcesAL.add(hex);
+			if (message == null) {
+				badMessage.add("JSON missing \"message\" property.");
+				return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()), HttpStatus.BAD_REQUEST);
 			}
 
 			long timestamp = System.currentTimeMillis();
 
-			String[] resources = resourcesAL.toArray(new String[resourcesAL.size()]);
-
-			if (resources.length == 0) {
-				resources = null;
-			}
-
 			ChatMessage cm = new ChatMessage(null, chatroomName, user.getId(), user.getUsername(),
 					user.getDisplayName(), CryptographyService.getCiphertext(message), timestamp, resourcesAL);
-			messageService.addChatMessage(cm);
+			cm.setClientMessageId(clientMessageId);
+			ChatMessage stored = messageService.addChatMessageOnce(cm);
+			if (stored != cm) {
+				// a retry of a message that's already posted
+				return new ResponseEntity<>(ResponseWrapper.wrap(stored.getTimestamp()), HttpStatus.OK);
+			}
 			chatroomService.updateLastMessageReceived(chatroomName);
+			// push the message to everyone subscribed to the chat room
+			messageBroadcastService.broadcast(cm);
 
 			return new ResponseEntity<>(ResponseWrapper.wrap(timestamp), HttpStatus.OK);
 		} catch (NotFoundException e) {
 			e.printStackTrace();
 			return e.getErrorResponseEntity();
-		} catch (NoSuchAlgorithmException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
+			badMessage.add("Unable to read the message.");
+			return new ResponseEntity<>(ResponseWrapper.badWrap(badMessage.toString()),
+					HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Reads the array of attachments the parser is at, storing each one and
+	 * adding its hash to <code>resources</code>. A <code>base64file</code>
+	 * attachment carries its content in <code>value</code>, a
+	 * <code>stored</code> attachment names content <code>username</code> just
+	 * finished uploading in chunks by its <code>sha256</code>.
+	 * 
+	 * @return An error message, or <code>null</code> if all attachments were
+	 *         stored.
+	 */
+	private String readAttachments(JsonParser parser, String username, List<String> resources)
+			throws IOException {
+		if (parser.currentToken() != JsonToken.START_ARRAY) {
+			return "Attachments must be an array";
+		}
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			if (parser.currentToken() != JsonToken.START_OBJECT) {
+				return "Each attachment must be a JSON object.";
+			}
+			String type = null;
+			String filename = null;
+			String hash = null;
+			String sha256 = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (field.equals("type") && value == JsonToken.VALUE_STRING) {
+					type = parser.getText();
+				} else if (field.equals("filename") && value == JsonToken.VALUE_STRING) {
+					filename = parser.getText();
+				} else if (field.equals("value") && value == JsonToken.VALUE_STRING) {
+					// the content is written to disk as it's decoded, the metadata once the name is known
+					hash = cass.storeStream(parser::readBinaryValue);
+				} else if (field.equals("sha256") && value == JsonToken.VALUE_STRING) {
+					sha256 = parser.getText().toLowerCase();
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (type == null) {
+				return "Each attachment specificy what type it is, e.g. base64file";
+			}
+			if (type.equals("stored")) {
+				if (sha256 == null || !ContentAddressableStorageService.isValidHash(sha256)) {
+					return "stored attachment MUST have a valid sha256 property";
+				}
+				// only the uploader may attach it, knowing the hash doesn't grant access
+				// touched so the garbage collector keeps it, and fails if it's being collected
+				if (!chunkedUploadService.claimFinished(username, sha256) || cass.getMetadata(sha256) == null
+						|| !cass.touch(sha256)) {
+					return "No finished upload of yours with sha256 " + sha256;
+				}
+				resources.add(sha256);
+				continue;
+			}
+			if (!type.equals("base64file")) {
+				return "Unknown type for attachment: " + type;
+			}
+			if (hash == null) {
+				return "base64file attachment MUST have a value property";
+			}
+			cass.recordMetadata(hash, filename);
+			resources.add(hash);
 		}
 		return null;
 	}
 
+	/**
+	 * Stores the base64 string the parser is at, decoding it as it's read.
+	 * 
+	 * @return Hash of the decoded content.
+	 */
+	private String storeBase64(JsonParser parser, String filename) throws IOException {
+		String hash = cass.storeStream(parser::readBinaryValue);
+		cass.recordMetadata(hash, filename);
+		return hash;
+	}
+
+	/**
+	 * Posts a batch of messages at chat room `chatroomName` in one request, e.g.
+	 * from a bot or a bridge to another chat service.
+	 * 
+	 * <pre>
+	 * { "messages": [ { "message": "Hello" }, { "message": "world!" } ] }
+	 * </pre>
+	 * 
+	 * The user and membership are checked once, the messages are encrypted in
+	 * parallel and inserted together, and the chat room's latest message time
+	 * is updated once. The response has a result per message, in order, with
+	 * either its id and timestamp or an error.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param batch        The messages.
+	 * @param token        User name and password authentication token.
+	 * 
+	 * @return Result of each message.
+	 */
+	@RequestMapping(path = "/{chatroomName}/messages/batch", method = RequestMethod.POST, headers = "Accept=application/json")
+	public ResponseEntity<Object> addChatMessages(@PathVariable String chatroomName,
+			@RequestBody MessageBatchRequest batch, UsernamePasswordAuthenticationToken token) {
+		try {
+			UserPrincipal user = userService.findPrincipal(token.getName());
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
+			if (!chatroomService.isMember(user, chatroom)) {
+				return new ResponseEntity<>(ResponseWrapper.badWrap("You don't have access to this chat room."),
+						HttpStatus.UNAUTHORIZED);
+			}
+			List<MessageBatchRequest.Item> items = batch.getMessages();
+			if (items == null || items.isEmpty()) {
+				return new ResponseEntity<>(ResponseWrapper.badWrap("JSON missing \"messages\" property."),
+						HttpStatus.BAD_REQUEST);
+			}
+			if (items.size() > maxBatchSize) {
+				return new ResponseEntity<>(
+						ResponseWrapper.badWrap("At most " + maxBatchSize + " messages can be posted at once."),
+						HttpStatus.BAD_REQUEST);
+			}
+
+			// results of invalid messages are filled in now, the rest once they're stored
+			List<Map<String, Object>> results = new ArrayList<>(items.size());
+			List<Integer> valid = new ArrayList<>(items.size());
+			List<String> plaintexts = new ArrayList<>(items.size());
+			for (MessageBatchRequest.Item item : items) {
+				Map<String, Object> result = new LinkedHashMap<>();
+				if (item == null || item.getMessage() == null) {
+					result.put("error", "JSON missing \"message\" property.");
+				} else {
+					valid.add(results.size());
+					plaintexts.add(item.getMessage());
+				}
+				results.add(result);
+			}
+
+			List<String> ciphertexts = messageDecryptionService.encrypt(plaintexts);
+			long timestamp = System.currentTimeMillis();
+			List<ChatMessage> chatMessages = new ArrayList<>(ciphertexts.size());
+			for (String ciphertext : ciphertexts) {
+				chatMessages.add(new ChatMessage(null, chatroomName, user.getId(), user.getUsername(),
+						user.getDisplayName(), ciphertext, timestamp, null));
+			}
+			messageService.addChatMessages(chatroomName, chatMessages);
+			if (!chatMessages.isEmpty()) {
+				chatroomService.updateLastMessageReceived(chatroomName, timestamp);
+			}
+
+			for (int k = 0; k < chatMessages.size(); k++) {
+				ChatMessage chatMessage = chatMessages.get(k);
+				Map<String, Object> result = results.get(valid.get(k));
+				result.put("id", chatMessage.getId());
+				result.put("timestamp", chatMessage.getTimestamp());
+				messageBroadcastService.broadcast(chatMessage);
+			}
+			return new ResponseEntity<>(ResponseWrapper.wrap(results), HttpStatus.OK);
+		} catch (NotFoundException e) {
+			e.printStackTrace();
+			return e.getErrorResponseEntity();
+		}
+	}
+
 	/**
 	 * Sends a message to chat room `chatroomName`.
 	 * 
@@ -700,10 +946,10 @@ public class MessageController {
 			@RequestBody String chatMessageJsonString, UsernamePasswordAuthenticationToken token) {
 		try {
 			// Find user name based off of JWT token.
-			User user = userService.findByUsername(token.getName());
+			UserPrincipal user = userService.findPrincipal(token.getName());
 
 			// Get chat room from chat room name.
-			Chatroom chatroom = chatroomService.findByChatname(chatroomName);
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
 
 			// Check if user is member of chat room.
 			if (chatroomService.isMember(user, chatroom)) {
@@ -16,10 +16,12 @@ import org.springframework.web.bind.annotation.RequestBody;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import project.services.AuthenticationService;
 import project.services.ChatroomService;
 import project.services.CryptographyService;
+import project.services.UnreadCountService;
 import project.services.UserService;
 import project.persistance.entities.User;
 import project.errors.HttpException;
@@ -48,6 +50,9 @@ public class UserController {
 	@Autowired
 	private ChatroomService chatroomService;
 
+	@Autowired
+	private UnreadCountService unreadCountService;
+
 	/**
 	 * This class holds over all the basic functions needed to authenticate or
 	 * validate data received from user
@@ -280,13 +285,13 @@ public class UserController {
 			List<UserResponder> friendRequestorsResponderList = ResponderLister.toUserResponderList(friendRequestors);
 			List<UserResponder> friendRequesteesResponderList = ResponderLister.toUserResponderList(friendRequestees);
 			List<ChatroomResponder> chatroomAdminInvitesResponderList = ResponderLister
-					.toChatroomResponderList(chatroomAdminInvites);
+					.toChatroomResponderList(chatroomService.chatroomsWithLastMessageReceived(chatroomAdminInvites));
 			List<ChatroomResponder> chatroomInvitesResponderList = ResponderLister
-					.toChatroomResponderList(chatroomInvites);
+					.toChatroomResponderList(chatroomService.chatroomsWithLastMessageReceived(chatroomInvites));
 			List<ChatroomResponder> chatroomRequestsResponderList = ResponderLister
-					.toChatroomResponderList(chatroomRequests);
+					.toChatroomResponderList(chatroomService.chatroomsWithLastMessageReceived(chatroomRequests));
 			List<MembershipResponder> membershipsResponderList = ResponderLister
-					.toMembershipResponderList(memberships);
+					.toMembershipResponderList(chatroomService.membershipsWithLastMessageReceived(memberships));
 
 			// wrap the responders in a container responder
 			RelationsResponder body = new RelationsResponder();
@@ -453,7 +458,8 @@ public class UserController {
 				memberships.add(this.chatroomService.getUserMembershipOfChatroom(user, chatroom));
 			}
 			// create a list of membershipResponders for json return
-			List<MembershipResponder> body = ResponderLister.toMembershipResponderList(memberships);
+			List<MembershipResponder> body = ResponderLister.toMembershipResponderList(
+					chatroomService.membershipsWithLastMessageReceived(memberships));
 			
 
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
@@ -481,7 +487,8 @@ public class UserController {
 				memberships.add(this.chatroomService.getUserMembershipOfChatroom(user, chatroom));
 			}
 			// create a list of membershipResponders for json return
-			List<MembershipResponder> body = ResponderLister.toMembershipResponderList(memberships);
+			List<MembershipResponder> body = ResponderLister.toMembershipResponderList(
+					chatroomService.membershipsWithLastMessageReceived(memberships));
 			
 
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
@@ -490,6 +497,20 @@ public class UserController {
 		}
 	}
 
+	/**
+	 * GET request to this url will return the number of unread messages in each
+	 * of the user's chatrooms, i.e. messages posted after the membership's
+	 * lastRead.
+	 * 
+	 * @param token
+	 * @return map of chatroomName to number of unread messages
+	 */
+	@RequestMapping(path = "/me/unread", method = RequestMethod.GET, headers = "Accept=application/json")
+	public ResponseEntity<Object> getMyUnreadCounts(UsernamePasswordAuthenticationToken token) {
+		Map<String, Long> body = unreadCountService.getUnreadCounts(token.getName());
+		return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
+	}
+
 	/**
 	 * 
 	 * @param username
@@ -502,7 +523,8 @@ public class UserController {
 			List<Chatroom> chatrooms = user.getAdminOfChatrooms();
 
 			// create a list of UserResponders for json return
-			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(chatrooms);
+			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(
+					chatroomService.chatroomsWithLastMessageReceived(chatrooms));
 
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
@@ -522,7 +544,8 @@ public class UserController {
 			List<Chatroom> chatrooms = user.getOwnedChatrooms();
 
 			// create a list of UserResponders for json return
-			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(chatrooms);
+			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(
+					chatroomService.chatroomsWithLastMessageReceived(chatrooms));
 
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
@@ -542,7 +565,8 @@ public class UserController {
 			List<Chatroom> chatrooms = user.getChatroomInvites();
 
 			// create a list of UserResponders for json return
-			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(chatrooms);
+			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(
+					chatroomService.chatroomsWithLastMessageReceived(chatrooms));
 
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
@@ -563,7 +587,8 @@ public class UserController {
 			List<Chatroom> chatrooms = user.getChatroomInvites();
 
 			// create a list of UserResponders for json return
-			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(chatrooms);
+			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(
+					chatroomService.chatroomsWithLastMessageReceived(chatrooms));
 
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
@@ -583,7 +608,8 @@ public class UserController {
 			List<Chatroom> chatrooms = user.getChatroomAdminInvites();
 
 			// create a list of UserResponders for json return
-			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(chatrooms);
+			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(
+					chatroomService.chatroomsWithLastMessageReceived(chatrooms));
 
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
@@ -604,7 +630,8 @@ public class UserController {
 			List<Chatroom> chatrooms = user.getChatroomAdminInvites();
 
 			// create a list of UserResponders for json return
-			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(chatrooms);
+			List<ChatroomResponder> body = ResponderLister.toChatroomResponderList(
+					chatroomService.chatroomsWithLastMessageReceived(chatrooms));
 
 			return new ResponseEntity<>(ResponseWrapper.wrap(body), HttpStatus.OK);
 		} catch (HttpException e) {
@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import project.persistance.entities.Chatroom;
+import project.persistance.queryresults.ChatroomSummary;
 
 /**
  * This class is for wrapping chatrooms in a way that can be replicated in a
@@ -54,6 +55,23 @@ public class ChatroomResponder {
 		this.tags = chatroom.getTags().stream().map(x -> x.getName()).collect(Collectors.toList());
 	}
 
+	/**
+	 * Create a responder from a chatroom summary
+	 * 
+	 * @param summary chatroom summary to be transformed
+	 */
+	public ChatroomResponder(ChatroomSummary summary) {
+		this.chatroomName = summary.getChatroomName();
+		this.displayName = summary.getDisplayName();
+		this.description = summary.getDescription();
+		this.listed = summary.getListed();
+		this.invited_only = summary.getInvited_only();
+		this.ownerUsername = summary.getOwnerUsername() != null ? summary.getOwnerUsername() : "";
+		this.created = summary.getCreated();
+		this.lastMessageReceived = summary.getLastMessageReceived();
+		this.tags = summary.getTags() == null ? new ArrayList<String>() : summary.getTags();
+	}
+
 	/**
 	 * Constructed used by Spring controller to use JSON objects.
 	 * 
@@ -0,0 +1,51 @@
+package project.payloads;
+
+import java.util.List;
+
+/**
+ * Container for a batch of messages posted together, e.g. by a bot or a bridge
+ * to another chat service.
+ * 
+ * <pre>
+ * { "messages": [ { "message": "Hello" }, { "message": "world!" } ] }
+ * </pre>
+ * 
+ * NOTE: unlike <code>MessageRequest</code> the messages are kept in plain text
+ * here, they are encrypted together when the batch is posted.
+ * 
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+public class MessageBatchRequest {
+
+	private List<Item> messages;
+
+	public MessageBatchRequest() {
+	}
+
+	public List<Item> getMessages() {
+		return messages;
+	}
+
+	public void setMessages(List<Item> messages) {
+		this.messages = messages;
+	}
+
+	/**
+	 * A single message of the batch.
+	 */
+	public static class Item {
+
+		private String message;
+
+		public Item() {
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public void setMessage(String message) {
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package project.payloads;
+
+import org.bson.types.ObjectId;
+
+import project.errors.BadRequestException;
+
+/**
+ * A position in the message history of a chat room, used for keyset (cursor)
+ * pagination. Messages are ordered by <code>(timestamp, id)</code>, the id
+ * breaks ties between messages posted in the same millisecond.
+ *
+ * The string form of a cursor is <code>"{timestamp}_{id}"</code>, e.g.
+ * <code>"1552400000000_5c87b2f1a7b11b2d3c4e5f60"</code>, which is what
+ * <code>MessageResponse.getCursor()</code> returns. A bare timestamp, e.g.
+ * <code>"1552400000000"</code>, is also a valid cursor, which is handy for
+ * fetching the latest messages (use the current time).
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+public class MessageCursor {
+
+	private final long timestamp;
+
+	// null if the cursor is only a timestamp
+	private final String id;
+
+	public MessageCursor(long timestamp, String id) {
+		this.timestamp = timestamp;
+		this.id = id;
+	}
+
+	/**
+	 * Parses the string form of a cursor.
+	 *
+	 * @param cursor <code>"{timestamp}_{id}"</code> or <code>"{timestamp}"</code>
+	 *
+	 * @return The cursor.
+	 *
+	 * @throws BadRequestException if <code>cursor</code> is malformed.
+	 */
+	public static MessageCursor parse(String cursor) throws BadRequestException {
+		if (cursor == null || cursor.isEmpty()) {
+			throw new BadRequestException("Cursor is missing.");
+		}
+		int separator = cursor.indexOf('_');
+		String timestampPart = separator < 0 ? cursor : cursor.substring(0, separator);
+		String idPart = separator < 0 ? null : cursor.substring(separator + 1);
+
+		long timestamp;
+		try {
+			timestamp = Long.parseLong(timestampPart);
+		} catch (NumberFormatException e) {
+			throw new BadRequestException("Cursor must start with a Unix time in milliseconds.");
+		}
+		if (idPart != null && !ObjectId.isValid(idPart)) {
+			throw new BadRequestException("Cursor has an invalid message id.");
+		}
+		return new MessageCursor(timestamp, idPart);
+	}
+
+	/**
+	 * Returns the string form of a cursor.
+	 *
+	 * @param timestamp Timestamp of message.
+	 * @param id        MongoDB ID of message.
+	 *
+	 * @return Cursor string.
+	 */
+	public static String toString(long timestamp, String id) {
+		return id == null ? Long.toString(timestamp) : timestamp + "_" + id;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return toString(timestamp, id);
+	}
+}
@@ -53,6 +53,15 @@ public class MessageResponse {
 		return id;
 	}
 
+	/**
+	 * Returns the cursor pointing at this message, see <code>MessageCursor</code>.
+	 * 
+	 * @return Cursor string.
+	 */
+	public String getCursor() {
+		return MessageCursor.toString(timestamp, id);
+	}
+
 	public void setId(String id) {
 		this.id = id;
 	}
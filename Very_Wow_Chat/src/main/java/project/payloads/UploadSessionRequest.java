@@ -0,0 +1,42 @@
+package project.payloads;
+
+/**
+ * Container for the request to start a chunked upload: how big the file is,
+ * the SHA-256 of its content so the server can verify it when it's put
+ * together, and optionally its name.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+public class UploadSessionRequest {
+
+	private long size;
+	private String sha256;
+	private String filename;
+
+	public UploadSessionRequest() {
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public String getSha256() {
+		return sha256;
+	}
+
+	public void setSha256(String sha256) {
+		this.sha256 = sha256;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public void setFilename(String filename) {
+		this.filename = filename;
+	}
+}
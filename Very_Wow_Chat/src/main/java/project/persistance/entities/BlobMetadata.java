@@ -0,0 +1,80 @@
+package project.persistance.entities;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * What we know about a file in the content addressable storage, so it doesn't
+ * have to be worked out from the file on every download.
+ * 
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Document(collection = "blobMetadata")
+public class BlobMetadata {
+
+	// SHA-256 of the content
+	@Id
+	private String hash;
+
+	private String mimeType;
+
+	// size in bytes
+	private long size;
+
+	// name of the file when it was first uploaded, null if unknown
+	private String originalFilename;
+
+	// when the content was first stored, Unix time in milliseconds
+	private long created;
+
+	public BlobMetadata() {
+	}
+
+	public BlobMetadata(String hash, String mimeType, long size, String originalFilename, long created) {
+		this.hash = hash;
+		this.mimeType = mimeType;
+		this.size = size;
+		this.originalFilename = originalFilename;
+		this.created = created;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public void setMimeType(String mimeType) {
+		this.mimeType = mimeType;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public String getOriginalFilename() {
+		return originalFilename;
+	}
+
+	public void setOriginalFilename(String originalFilename) {
+		this.originalFilename = originalFilename;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public void setCreated(long created) {
+		this.created = created;
+	}
+}
@@ -1,8 +1,10 @@
 package project.persistance.entities;
 
+import java.util.Date;
 import java.util.List;
 
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.Field;
@@ -11,6 +13,8 @@ import org.springframework.data.mongodb.core.mapping.Field;
  * @author Davíð Helgason (dah38@hi.is)
  */
 @Document(collection = "chatMessage")
+// backs the history queries, in particular keyset pagination on (timestamp, _id)
+@CompoundIndex(name = "chatroomName_timestamp_id", def = "{'chatroomName': 1, 'timestamp': -1, '_id': -1}")
 public class ChatMessage {
 
 	// MongoDB ID
@@ -39,6 +43,12 @@ public class ChatMessage {
 
 	@Indexed
 	private Long timestamp;
+
+	// same as timestamp, as a date so a TTL index can expire the message
+	private Date createdAt;
+
+	// key the client chose for the message so retries aren't stored twice, null if none
+	private String clientMessageId;
 	
 	public List<String> getResources() {
 		return resources;
@@ -104,6 +114,22 @@ public class ChatMessage {
 		this.timestamp = timestamp;
 	}
 
+	public Date getCreatedAt() {
+		return createdAt;
+	}
+
+	public void setCreatedAt(Date createdAt) {
+		this.createdAt = createdAt;
+	}
+
+	public String getClientMessageId() {
+		return clientMessageId;
+	}
+
+	public void setClientMessageId(String clientMessageId) {
+		this.clientMessageId = clientMessageId;
+	}
+
 	@Override
 	public String toString() {
 		// TODO: add resources string
@@ -137,6 +163,7 @@ public class ChatMessage {
 		this.message = message;
 		this.timestamp = timestamp;
 		this.resources = resources;
+		this.createdAt = timestamp != null ? new Date(timestamp) : new Date();
 	}
 
 }
@@ -0,0 +1,44 @@
+package project.persistance.entities;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * The number of messages in a chat room, kept up to date as messages are
+ * posted and deleted so it doesn't have to be counted.
+ * 
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Document(collection = "chatroomMessageCount")
+public class ChatroomMessageCount {
+
+	// the chat room name
+	@Id
+	private String chatroomName;
+
+	private long count;
+
+	public ChatroomMessageCount() {
+	}
+
+	public ChatroomMessageCount(String chatroomName, long count) {
+		this.chatroomName = chatroomName;
+		this.count = count;
+	}
+
+	public String getChatroomName() {
+		return chatroomName;
+	}
+
+	public void setChatroomName(String chatroomName) {
+		this.chatroomName = chatroomName;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public void setCount(long count) {
+		this.count = count;
+	}
+}
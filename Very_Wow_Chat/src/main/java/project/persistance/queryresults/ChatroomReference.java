@@ -0,0 +1,34 @@
+package project.persistance.queryresults;
+
+import org.springframework.data.neo4j.annotation.QueryResult;
+
+/**
+ * The id and name of a chat room, loaded without its relations (members,
+ * admins, tags, ...). Enough to authorize a request and find the messages of
+ * the chat room.
+ * 
+ * @author Vilhelml
+ */
+@QueryResult
+public class ChatroomReference {
+
+	private Long id;
+
+	private String chatroomName;
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public String getChatroomName() {
+		return chatroomName;
+	}
+
+	public void setChatroomName(String chatroomName) {
+		this.chatroomName = chatroomName;
+	}
+}
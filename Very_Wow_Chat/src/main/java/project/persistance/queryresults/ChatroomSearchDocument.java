@@ -0,0 +1,55 @@
+package project.persistance.queryresults;
+
+import java.util.List;
+
+import org.springframework.data.neo4j.annotation.QueryResult;
+
+/**
+ * The searchable properties of a chat room, used to warm the chat room search
+ * index without loading the chat rooms' members and invites.
+ * 
+ * @author Vilhelml
+ */
+@QueryResult
+public class ChatroomSearchDocument {
+
+	private Long chatroomId;
+
+	private String displayName;
+
+	private Boolean listed;
+
+	private List<String> tags;
+
+	public Long getChatroomId() {
+		return chatroomId;
+	}
+
+	public void setChatroomId(Long chatroomId) {
+		this.chatroomId = chatroomId;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	public void setDisplayName(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public Boolean getListed() {
+		return listed;
+	}
+
+	public void setListed(Boolean listed) {
+		this.listed = listed;
+	}
+
+	public List<String> getTags() {
+		return tags;
+	}
+
+	public void setTags(List<String> tags) {
+		this.tags = tags;
+	}
+}
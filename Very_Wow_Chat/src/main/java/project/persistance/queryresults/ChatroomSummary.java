@@ -0,0 +1,106 @@
+package project.persistance.queryresults;
+
+import java.util.List;
+
+import org.springframework.data.neo4j.annotation.QueryResult;
+
+/**
+ * The properties of a chat room that are shown when browsing chat rooms,
+ * including its owner's user name and its tag names, loaded in a single query
+ * without the chat room's members and invites.
+ * 
+ * @author Vilhelml
+ */
+@QueryResult
+public class ChatroomSummary {
+
+	private String chatroomName;
+
+	private String displayName;
+
+	private String description;
+
+	private Boolean listed;
+
+	private Boolean invited_only;
+
+	private String ownerUsername;
+
+	private Long created;
+
+	private Long lastMessageReceived;
+
+	private List<String> tags;
+
+	public String getChatroomName() {
+		return chatroomName;
+	}
+
+	public void setChatroomName(String chatroomName) {
+		this.chatroomName = chatroomName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	public void setDisplayName(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public void setDescription(String description) {
+		this.description = description;
+	}
+
+	public Boolean getListed() {
+		return listed;
+	}
+
+	public void setListed(Boolean listed) {
+		this.listed = listed;
+	}
+
+	public Boolean getInvited_only() {
+		return invited_only;
+	}
+
+	public void setInvited_only(Boolean invited_only) {
+		this.invited_only = invited_only;
+	}
+
+	public String getOwnerUsername() {
+		return ownerUsername;
+	}
+
+	public void setOwnerUsername(String ownerUsername) {
+		this.ownerUsername = ownerUsername;
+	}
+
+	public Long getCreated() {
+		return created;
+	}
+
+	public void setCreated(Long created) {
+		this.created = created;
+	}
+
+	public Long getLastMessageReceived() {
+		return lastMessageReceived;
+	}
+
+	public void setLastMessageReceived(Long lastMessageReceived) {
+		this.lastMessageReceived = lastMessageReceived;
+	}
+
+	public List<String> getTags() {
+		return tags;
+	}
+
+	public void setTags(List<String> tags) {
+		this.tags = tags;
+	}
+}
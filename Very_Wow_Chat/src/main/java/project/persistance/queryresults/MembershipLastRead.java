@@ -0,0 +1,34 @@
+package project.persistance.queryresults;
+
+import org.springframework.data.neo4j.annotation.QueryResult;
+
+/**
+ * The name of a chat room a user is a member of and when the user last read
+ * it, without loading the user or the chat room.
+ * 
+ * @author Vilhelml
+ */
+@QueryResult
+public class MembershipLastRead {
+
+	private String chatroomName;
+
+	// timestamp for the last time the user read a message in the chatroom
+	private Long lastRead;
+
+	public String getChatroomName() {
+		return chatroomName;
+	}
+
+	public void setChatroomName(String chatroomName) {
+		this.chatroomName = chatroomName;
+	}
+
+	public Long getLastRead() {
+		return lastRead;
+	}
+
+	public void setLastRead(Long lastRead) {
+		this.lastRead = lastRead;
+	}
+}
@@ -0,0 +1,44 @@
+package project.persistance.queryresults;
+
+import org.springframework.data.neo4j.annotation.QueryResult;
+
+/**
+ * A single relation between a user and a chat room (member, admin, owner or
+ * an invite), without loading either of the entities.
+ * 
+ * @author Vilhelml
+ */
+@QueryResult
+public class MembershipRelation {
+
+	private Long userId;
+
+	private Long chatroomId;
+
+	// the relationship type, e.g. HAS_MEMBER or ADMIN_INVITES
+	private String relation;
+
+	public Long getUserId() {
+		return userId;
+	}
+
+	public void setUserId(Long userId) {
+		this.userId = userId;
+	}
+
+	public Long getChatroomId() {
+		return chatroomId;
+	}
+
+	public void setChatroomId(Long chatroomId) {
+		this.chatroomId = chatroomId;
+	}
+
+	public String getRelation() {
+		return relation;
+	}
+
+	public void setRelation(String relation) {
+		this.relation = relation;
+	}
+}
@@ -0,0 +1,53 @@
+package project.persistance.queryresults;
+
+import org.springframework.data.neo4j.annotation.QueryResult;
+
+/**
+ * The few properties of a user that are needed to authorize a request, loaded
+ * without the user's relations (friends, chat rooms, invites, ...).
+ * 
+ * @author Vilhelml
+ */
+@QueryResult
+public class UserPrincipal {
+
+	private Long id;
+
+	private String username;
+
+	private String displayName;
+
+	private Boolean isActive;
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	public void setDisplayName(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public Boolean getIsActive() {
+		return isActive;
+	}
+
+	public void setIsActive(Boolean isActive) {
+		this.isActive = isActive;
+	}
+}
@@ -1,12 +1,17 @@
 package project.persistance.repositories;
 
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.data.neo4j.annotation.Query;
 import org.springframework.data.neo4j.repository.Neo4jRepository;
 import org.springframework.data.repository.query.Param;
 
 import project.persistance.entities.Chatroom;
+import project.persistance.queryresults.ChatroomReference;
+import project.persistance.queryresults.ChatroomSearchDocument;
+import project.persistance.queryresults.ChatroomSummary;
+import project.persistance.queryresults.MembershipRelation;
 
 /**
  * An interface defining methods relating to database functionality
@@ -29,6 +34,18 @@ public interface ChatroomRepository extends Neo4jRepository<Chatroom, Long> {
 	 */
 	Chatroom findByChatroomName(String chatroomName);
 
+	/**
+	 * Returns the id and name of chat room <code>chatroomName</code>, without
+	 * loading its relations.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * 
+	 * @return The chat room reference, or null if there's no such chat room.
+	 */
+	@Query("MATCH (c:Chatroom) WHERE c.chatroomName = {chatroomName} "
+			+ "RETURN id(c) AS id, c.chatroomName AS chatroomName;")
+	ChatroomReference findReferenceByChatroomName(@Param("chatroomName") String chatroomName);
+
 	/**
 	 * get all listed chat rooms
 	 * 
@@ -56,12 +73,70 @@ public interface ChatroomRepository extends Neo4jRepository<Chatroom, Long> {
 	void delete(Chatroom chatroom);
 
 	/**
-	 * Finds and returns all (public?) chat rooms with tag <code>tagName</code>.
+	 * Finds listed chat rooms that have all of the tags <code>tagNames</code>,
+	 * ordered by chat room name, along with their owner and tags, in a single
+	 * query.
+	 * 
+	 * @param tagNames Distinct tag names, the chat rooms must have every one.
+	 * @param offset   How many chat rooms to skip.
+	 * @param limit    How many chat rooms at most to return.
+	 * 
+	 * @return List of chat room summaries.
+	 */
+	@Query("MATCH (c:Chatroom)-[:HAS_TAG]->(t:Tag) WHERE c.listed = true AND t.name IN {tagNames} "
+			+ "WITH c, count(DISTINCT t) AS matches WHERE matches = size({tagNames}) "
+			+ "WITH c ORDER BY c.chatroomName SKIP {offset} LIMIT {limit} "
+			+ "OPTIONAL MATCH (o:User)-[:OWNS]->(c) "
+			+ "OPTIONAL MATCH (c)-[:HAS_TAG]->(tag:Tag) "
+			+ "RETURN c.chatroomName AS chatroomName, c.displayName AS displayName, c.description AS description, "
+			+ "c.listed AS listed, c.invited_only AS invited_only, o.username AS ownerUsername, c.created AS created, "
+			+ "c.lastMessageReceived AS lastMessageReceived, collect(tag.name) AS tags "
+			+ "ORDER BY chatroomName;")
+	List<ChatroomSummary> findListedChatroomsWithTags(@Param("tagNames") List<String> tagNames,
+			@Param("offset") int offset, @Param("limit") int limit);
+
+	/**
+	 * Returns every relation between users and chat rooms that matters for
+	 * authorization (members, admins, owners and invites), used to warm the
+	 * membership index.
 	 * 
-	 * @param tagName Tag
+	 * @return List of relations.
+	 */
+	@Query("MATCH (u:User)-[r:HAS_MEMBER|ADMIN_OF|OWNS|INVITES|ADMIN_INVITES]-(c:Chatroom) "
+			+ "RETURN id(u) AS userId, id(c) AS chatroomId, type(r) AS relation;")
+	List<MembershipRelation> findAllMembershipRelations();
+
+	/**
+	 * Check if user with id <code>userId</code> is a member of chat room with id
+	 * <code>chatroomId</code>.
+	 * 
+	 * @param chatroomId
+	 * @param userId
+	 * @return true if the user is a member, else false
+	 */
+	@Query("MATCH (c:Chatroom)-[:HAS_MEMBER]->(u:User) WHERE id(c) = {chatroomId} AND id(u) = {userId} "
+			+ "RETURN count(*) > 0;")
+	boolean hasMember(@Param("chatroomId") Long chatroomId, @Param("userId") Long userId);
+
+	/**
+	 * Returns the display name, listed flag and tag names of every chat room, used
+	 * to warm the chat room search index.
+	 * 
+	 * @return List of search documents.
+	 */
+	@Query("MATCH (c:Chatroom) OPTIONAL MATCH (c)-[:HAS_TAG]->(t:Tag) "
+			+ "RETURN id(c) AS chatroomId, c.displayName AS displayName, c.listed AS listed, collect(t.name) AS tags;")
+	List<ChatroomSearchDocument> findAllSearchDocuments();
+
+	/**
+	 * Sets the time of the latest message of many chat rooms at once, never
+	 * moving it back in time.
 	 * 
-	 * @return List of chat rooms.
+	 * @param updates List of maps with keys <code>chatroomName</code> and
+	 *                <code>timestamp</code>.
 	 */
-	@Query("MATCH(a:Chatroom)-[r:HAS_TAG]->(b:Tag) WHERE b.name = {tagName} AND a.listed = true RETURN a.chatroomName;")
-	List<String> findListedChatroomsWithTag(@Param("tagName") String tagName);
+	@Query("UNWIND {updates} AS update MATCH (c:Chatroom) WHERE c.chatroomName = update.chatroomName "
+			+ "SET c.lastMessageReceived = CASE WHEN c.lastMessageReceived IS NULL "
+			+ "OR c.lastMessageReceived < update.timestamp THEN update.timestamp ELSE c.lastMessageReceived END;")
+	void updateLastMessageReceived(@Param("updates") List<Map<String, Object>> updates);
 }
@@ -1,27 +1,43 @@
 package project.persistance.repositories;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 import org.json.JSONObject;
-import org.springframework.data.redis.connection.RedisConnection;
-import org.springframework.data.redis.connection.jedis.JedisConnectionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Repository;
 
 /**
- * Class creates a connection to the Redis server and oversees all the of the
- * sending and receiving of data between the Spring Server and Redis server.
+ * Class oversees all the of the sending and receiving of data between the
+ * Spring Server and Redis server.
+ * 
+ * The connection is the pooled one Spring Boot configures from the
+ * <code>spring.redis.*</code> properties in <code>application.yml</code>.
  * 
  * @author Róman(ror9@hi.is)
  */
 @Repository
 public class TemporaryUserStorageRepository {
 
-	private final JedisConnectionFactory redisConn; // define our connection
+	// how long entries live, if the data is not validated in time it is lost
+	private static final long TIME_TO_LIVE_SECONDS = 1800;
 
-	public TemporaryUserStorageRepository() {
-		this.redisConn = new JedisConnectionFactory();
-		// TODO: put host name and port in application.properties file.
-		this.redisConn.setHostName("localhost");
-		this.redisConn.setPort(6379);
-	}
+	/*
+	 * GET and DEL in one atomic round trip, so an entry (e.g. a validation or
+	 * password reset key) can only ever be consumed once. Redis < 6.2 has no
+	 * GETDEL so we use a script.
+	 */
+	private static final RedisScript<String> GET_AND_DELETE = new DefaultRedisScript<>(
+			"local value = redis.call('GET', KEYS[1]) " + "if value then redis.call('DEL', KEYS[1]) end "
+					+ "return value",
+			String.class);
+
+	@Autowired
+	private StringRedisTemplate redisTemplate;
 
 	/**
 	 * Usage : red.insertString(key,string) 
@@ -31,21 +47,17 @@ public class TemporaryUserStorageRepository {
 	 *  After: stores the string for 30 min
 	 */
 	public void insertString(String key, String string) {
-		RedisConnection con = this.redisConn.getConnection();
-		con.setEx(key.getBytes(), 1800, string.getBytes());
-		con.close();
+		this.redisTemplate.opsForValue().set(key, string, TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS);
 	}
 
 	/**
 	 * 
 	 * @param key
-	 * @return the data that is assosiated to the key
+	 * @return the data that is assosiated to the key, or <code>null</code> if
+	 *         there is none
 	 */
 	public String getString(String key) {
-		RedisConnection con = this.redisConn.getConnection();
-		String string = new String(con.get(key.getBytes()));
-		con.close();
-		return string;
+		return this.redisTemplate.opsForValue().get(key);
 	}
 
 	/**
@@ -62,9 +74,7 @@ public class TemporaryUserStorageRepository {
 		 * username is uniq in the long term storage data base we can use it as a key to
 		 * the info
 		 */
-		RedisConnection con = this.redisConn.getConnection();
-		con.setEx(key.getBytes(), 1800, data.getBytes());
-		con.close();
+		this.redisTemplate.opsForValue().set(key, data, TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS);
 	}
 
 	/**
@@ -76,10 +86,8 @@ public class TemporaryUserStorageRepository {
 	 *         database, otherwise <code>false</code>.
 	 */
 	public boolean checkIfKeyExists(String key) {
-		RedisConnection con = this.redisConn.getConnection();
-		boolean exists = con.exists(key.getBytes());
-		con.close();
-		return exists;
+		Boolean exists = this.redisTemplate.hasKey(key);
+		return exists != null && exists;
 	}
 
 	/**
@@ -88,34 +96,65 @@ public class TemporaryUserStorageRepository {
 	 * 
 	 * @param key Access key
 	 * 
-	 * @return JSON object of form {username:, password: , email: }.
+	 * @return JSON object of form {username:, password: , email: }, or
+	 *         <code>null</code> if there is no entry.
 	 */
 	public JSONObject getData(String key) {
-		RedisConnection con = this.redisConn.getConnection();
-		/*
-		 * data is stored in byte array in redis so we need to first get it and convert
-		 * it into a string
-		 */
-		String data = new String(con.get(key.getBytes()));
-		con.close();
-		/*
-		 * next we create a json object of the recived data that was pasrsed as a string
-		 */
-		JSONObject user = new JSONObject(data);
-		return user; // return the json obj
+		String data = this.redisTemplate.opsForValue().get(key);
+		return data == null ? null : new JSONObject(data);
+	}
+
+	/**
+	 * Retrieves entry with key <code>key</code> and deletes it, atomically and in
+	 * a single round trip.
+	 * 
+	 * @param key The key.
+	 * 
+	 * @return The entry, or <code>null</code> if there is none.
+	 */
+	public String getAndDestroy(String key) {
+		return this.redisTemplate.execute(GET_AND_DELETE, Collections.singletonList(key));
 	}
 
 	/**
-	 * Deletes entry with key <code>key</code> in Redis database.
+	 * Adds <code>member</code> to the set with key <code>key</code>, creating
+	 * it if needed. The set lives for 30 min from the last time it was added to.
 	 * 
-	 * NOTE: CONFIRM IF DATA EXISTS FIRST!
+	 * @param key    The key.
+	 * @param member The member to add.
+	 */
+	public void addToSet(String key, String member) {
+		this.redisTemplate.opsForSet().add(key, member);
+		this.redisTemplate.expire(key, TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * 
+	 * @param key The key.
+	 * @return the members of the set with key <code>key</code>, empty if there
+	 *         is none
+	 */
+	public Set<String> getSet(String key) {
+		Set<String> members = this.redisTemplate.opsForSet().members(key);
+		return members == null ? Collections.emptySet() : members;
+	}
+
+	/**
+	 * Restarts the 30 min time to live of entry <code>key</code>, if it exists.
+	 * 
+	 * @param key The key.
+	 */
+	public void refresh(String key) {
+		this.redisTemplate.expire(key, TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Deletes entry with key <code>key</code> in Redis database, if it exists.
 	 * 
 	 * @param key The key.
 	 */
 	public void destroyData(String key) {
-		RedisConnection con = this.redisConn.getConnection();
-		con.del(key.getBytes());
-		con.close();
+		this.redisTemplate.delete(key);
 	}
 
 }
@@ -1,10 +1,14 @@
 package project.persistance.repositories;
 
+import java.util.List;
+
 import org.springframework.data.neo4j.annotation.Query;
 import org.springframework.data.neo4j.repository.Neo4jRepository;
 import org.springframework.data.repository.query.Param;
 
 import project.persistance.entities.User;
+import project.persistance.queryresults.MembershipLastRead;
+import project.persistance.queryresults.UserPrincipal;
 
 /**
  * An interface defining methods relating to database functionality of users,
@@ -28,6 +32,31 @@ public interface UserRepository extends Neo4jRepository<User, Long> {
 	 */
 	User findByUsername(@Param("username") String username);
 
+	/**
+	 * Returns the id, user name, display name and whether the user with user name
+	 * <code>username</code> is active, without loading any of the user's
+	 * relations.
+	 * 
+	 * @param username Name of user.
+	 * 
+	 * @return The user's principal, or <code>null</code> if there is no such user.
+	 */
+	@Query("MATCH (u:User) WHERE u.username = {username} "
+			+ "RETURN id(u) AS id, u.username AS username, u.displayName AS displayName, u.isActive AS isActive;")
+	UserPrincipal findPrincipalByUsername(@Param("username") String username);
+
+	/**
+	 * Returns the name of every chat room user <code>username</code> is a member
+	 * of, along with when the user last read it.
+	 * 
+	 * @param username Name of user.
+	 * 
+	 * @return List of chat room names and last read timestamps.
+	 */
+	@Query("MATCH (u:User)-[m:MEMBER_OF]->(c:Chatroom) WHERE u.username = {username} "
+			+ "RETURN c.chatroomName AS chatroomName, m.lastRead AS lastRead;")
+	List<MembershipLastRead> findMembershipLastReads(@Param("username") String username);
+
 	/**
 	 * Save a user in database, for creates and updates.
 	 * 
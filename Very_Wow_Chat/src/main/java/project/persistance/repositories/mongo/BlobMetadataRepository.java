@@ -0,0 +1,12 @@
+package project.persistance.repositories.mongo;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import project.persistance.entities.BlobMetadata;
+
+/**
+ * An interface for storing the metadata of files in the content addressable
+ * storage, by hash.
+ */
+public interface BlobMetadataRepository extends MongoRepository<BlobMetadata, String> {
+}
@@ -0,0 +1,549 @@
+package project.persistance.repositories.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Repository;
+
+import project.persistance.entities.ChatMessage;
+
+/**
+ * Stores chat messages packed into bucket documents, used by
+ * <code>ChatMessageRepositoryImpl</code> when <code>messages.storage</code> is
+ * <code>bucketed</code>.
+ *
+ * A bucket holds the messages of one chat room posted in one period of
+ * <code>messages.storage.bucketMillis</code> (an hour by default), at most
+ * <code>messages.storage.bucketSize</code> of them, so a busy period gets
+ * more than one bucket. The chat room name and the indexes are stored once per
+ * bucket instead of once per message, and reading a page or a time range
+ * reads a few buckets instead of a document per message.
+ *
+ * <pre>
+ * { chatroomName, start, count, first, last, createdAt,
+ *   messages: [ { _id, senderUsernameId, senderUsername, senderDisplayName, message, timestamp, resources,
+ *                 clientMessageId } ] }
+ * </pre>
+ *
+ * A message is added with a single upsert that <code>$push</code>es it to a
+ * bucket of its period with room left and increments the bucket's
+ * <code>count</code>, so concurrent posts never overfill a bucket. All messages
+ * of a bucket are from its period, so the buckets of a chat room are read from
+ * a cursor in the order of their period, the messages of each period sorted by
+ * <code>(timestamp, _id)</code>, and the cursor closed once a page is full.
+ * Pages by offset find the period to start from by summing the bucket counts
+ * of each period in an aggregation, without reading any messages.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Repository
+public class ChatMessageBucketStore {
+
+	public static final String COLLECTION = "chatMessageBucket";
+
+	private static final Comparator<ChatMessage> CHRONOLOGICAL = Comparator
+			.comparing(ChatMessage::getTimestamp, Comparator.nullsFirst(Comparator.naturalOrder()))
+			.thenComparing(ChatMessage::getId);
+
+	@Value("${messages.storage.bucketMillis:3600000}")
+	private long bucketMillis;
+
+	@Value("${messages.storage.bucketSize:500}")
+	private int bucketSize;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	/**
+	 * Adds <code>message</code> to a bucket of its chat room and period, and
+	 * sets its id.
+	 *
+	 * A unique index can't span the messages inside a bucket, so a client
+	 * message id is checked with a query first. Two posts of the same message
+	 * at the same instant can both get in.
+	 *
+	 * @param message
+	 * @throws DuplicateKeyException if the sender already posted a message with
+	 *                               the same client message id
+	 */
+	public void insert(ChatMessage message) {
+		if (message.getClientMessageId() != null && findByClientMessageId(message.getChatroomName(),
+				message.getSenderUsernameId(), message.getClientMessageId()) != null) {
+			throw new DuplicateKeyException("Duplicate client message id " + message.getClientMessageId());
+		}
+		ObjectId id = new ObjectId();
+		long timestamp = message.getTimestamp() != null ? message.getTimestamp() : System.currentTimeMillis();
+		Document entry = new Document("_id", id).append("senderUsernameId", message.getSenderUsernameId())
+				.append("senderUsername", message.getSenderUsername())
+				.append("senderDisplayName", message.getSenderDisplayName()).append("message", message.getMessage())
+				.append("timestamp", timestamp);
+		if (message.getResources() != null) {
+			entry.append("resources", message.getResources());
+		}
+		if (message.getClientMessageId() != null) {
+			entry.append("clientMessageId", message.getClientMessageId());
+		}
+
+		Query bucket = new Query(Criteria.where("chatroomName").is(message.getChatroomName()).and("start")
+				.is(periodOf(timestamp)).and("count").lt(bucketSize));
+		Update update = new Update().push("messages", entry).inc("count", 1).min("first", timestamp)
+				.max("last", timestamp).max("createdAt", new Date(timestamp));
+		mongoTemplate.upsert(bucket, update, COLLECTION);
+
+		message.setId(id.toHexString());
+		message.setTimestamp(timestamp);
+	}
+
+	/**
+	 * Returns up to <code>limit</code> messages of chat room
+	 * <code>chatroomName</code> from <code>offset</code>, counted from the
+	 * oldest. Whole periods before the offset are skipped by their counts,
+	 * without reading their messages.
+	 */
+	public List<ChatMessage> findPage(String chatroomName, int offset, int limit) {
+		Aggregation aggregation = Aggregation.newAggregation(
+				Aggregation.match(Criteria.where("chatroomName").is(chatroomName)),
+				Aggregation.group("start").sum("count").as("count"), Aggregation.sort(Direction.ASC, "_id"));
+		long skipped = 0;
+		Long from = null;
+		try (CloseableIterator<Document> periods = mongoTemplate.aggregateStream(aggregation, COLLECTION,
+				Document.class)) {
+			while (periods.hasNext()) {
+				Document period = periods.next();
+				long count = ((Number) period.get("count")).longValue();
+				if (skipped + count > offset) {
+					from = ((Number) period.get("_id")).longValue();
+					break;
+				}
+				skipped += count;
+			}
+		}
+		if (from == null) {
+			return new ArrayList<>();
+		}
+		return collect(chatroomName, Criteria.where("start").gte(from), false, message -> true,
+				(int) (offset - skipped), limit);
+	}
+
+	/**
+	 * Returns up to <code>limit</code> messages of chat room
+	 * <code>chatroomName</code> right before <code>(timestamp, id)</code>,
+	 * oldest first.
+	 */
+	public List<ChatMessage> findPageBefore(String chatroomName, long timestamp, String id, int limit) {
+		List<ChatMessage> page = collect(chatroomName, Criteria.where("start").lte(timestamp), true,
+				message -> compare(message, timestamp, id) < 0, 0, limit);
+		Collections.reverse(page);
+		return page;
+	}
+
+	/**
+	 * Returns up to <code>limit</code> messages of chat room
+	 * <code>chatroomName</code> right after <code>(timestamp, id)</code>, oldest
+	 * first.
+	 */
+	public List<ChatMessage> findPageAfter(String chatroomName, long timestamp, String id, int limit) {
+		return collect(chatroomName, Criteria.where("start").gte(periodOf(timestamp)), false,
+				message -> compare(message, timestamp, id) > 0, 0, limit);
+	}
+
+	/**
+	 * Returns the messages of chat room <code>chatroomName</code> posted from
+	 * <code>startTime</code> to <code>endTime</code>, oldest first.
+	 */
+	public List<ChatMessage> findBetween(String chatroomName, long startTime, long endTime) {
+		return collect(chatroomName, between(startTime, endTime), false,
+				message -> message.getTimestamp() >= startTime && message.getTimestamp() <= endTime, 0,
+				Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Streams the messages of chat room <code>chatroomName</code>, oldest first,
+	 * reading one period at a time.
+	 */
+	public CloseableIterator<ChatMessage> stream(String chatroomName) {
+		return new MessageIterator(periods(chatroomName, new Criteria(), false), message -> true);
+	}
+
+	/**
+	 * Streams the messages of chat room <code>chatroomName</code> posted from
+	 * <code>startTime</code> to <code>endTime</code>, oldest first.
+	 */
+	public CloseableIterator<ChatMessage> streamBetween(String chatroomName, long startTime, long endTime) {
+		return new MessageIterator(periods(chatroomName, between(startTime, endTime), false),
+				message -> message.getTimestamp() >= startTime && message.getTimestamp() <= endTime);
+	}
+
+	/**
+	 * Returns message <code>id</code> of chat room <code>chatroomName</code>, or
+	 * <code>null</code> if there is none.
+	 */
+	public ChatMessage findById(String chatroomName, String id) {
+		if (id == null || !ObjectId.isValid(id)) {
+			return null;
+		}
+		ObjectId objectId = new ObjectId(id);
+		Query query = new Query(Criteria.where("chatroomName").is(chatroomName).and("messages._id").is(objectId));
+		query.fields().include("chatroomName").elemMatch("messages", Criteria.where("_id").is(objectId));
+		Document bucket = mongoTemplate.findOne(query, Document.class, COLLECTION);
+		if (bucket == null) {
+			return null;
+		}
+		List<ChatMessage> messages = unpack(bucket);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	/**
+	 * Returns the message user <code>senderUsernameId</code> posted to chat room
+	 * <code>chatroomName</code> with client message id
+	 * <code>clientMessageId</code>, or <code>null</code> if there is none.
+	 */
+	public ChatMessage findByClientMessageId(String chatroomName, long senderUsernameId, String clientMessageId) {
+		Criteria match = Criteria.where("senderUsernameId").is(senderUsernameId).and("clientMessageId")
+				.is(clientMessageId);
+		// the exists condition lets MongoDB use the partial client message id index
+		Query query = new Query(Criteria.where("chatroomName").is(chatroomName).and("messages").elemMatch(match)
+				.and("messages.clientMessageId").exists(true));
+		query.fields().include("chatroomName").elemMatch("messages", match);
+		Document bucket = mongoTemplate.findOne(query, Document.class, COLLECTION);
+		if (bucket == null) {
+			return null;
+		}
+		List<ChatMessage> messages = unpack(bucket);
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+	/**
+	 * Returns the number of messages of chat room <code>chatroomName</code>,
+	 * from the bucket counts.
+	 */
+	public long count(String chatroomName) {
+		Aggregation aggregation = Aggregation.newAggregation(
+				Aggregation.match(Criteria.where("chatroomName").is(chatroomName)),
+				Aggregation.group("chatroomName").sum("count").as("count"));
+		Document result = mongoTemplate.aggregate(aggregation, COLLECTION, Document.class).getUniqueMappedResult();
+		return result != null ? ((Number) result.get("count")).longValue() : 0;
+	}
+
+	/**
+	 * Returns the number of messages of chat room <code>chatroomName</code>
+	 * before <code>(timestamp, id)</code>. Earlier periods are counted by their
+	 * bucket counts, only the period of the position is read.
+	 */
+	public long countBefore(String chatroomName, long timestamp, String id) {
+		long period = periodOf(timestamp);
+		Aggregation aggregation = Aggregation.newAggregation(
+				Aggregation.match(Criteria.where("chatroomName").is(chatroomName).and("start").lt(period)),
+				Aggregation.group().sum("count").as("count"));
+		Document earlier = mongoTemplate.aggregate(aggregation, COLLECTION, Document.class).getUniqueMappedResult();
+		long count = earlier != null ? ((Number) earlier.get("count")).longValue() : 0;
+		for (ChatMessage message : load(chatroomName, period)) {
+			if (compare(message, timestamp, id) >= 0) {
+				break;
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * See <code>ChatMessageRepositoryCustom.countMessagesAfter</code>.
+	 */
+	public Map<String, Long> countMessagesAfter(Map<String, Long> after) {
+		Map<String, Long> counts = new HashMap<>();
+		if (after.isEmpty()) {
+			return counts;
+		}
+		List<Criteria> buckets = new ArrayList<>(after.size());
+		List<Criteria> messages = new ArrayList<>(after.size());
+		for (Map.Entry<String, Long> entry : after.entrySet()) {
+			buckets.add(Criteria.where("chatroomName").is(entry.getKey()).and("last").gt(entry.getValue()));
+			messages.add(
+					Criteria.where("chatroomName").is(entry.getKey()).and("messages.timestamp").gt(entry.getValue()));
+		}
+		Aggregation aggregation = Aggregation.newAggregation(
+				Aggregation.match(Criteria.where("chatroomName").in(after.keySet())
+						.orOperator(buckets.toArray(new Criteria[buckets.size()]))),
+				Aggregation.unwind("messages"),
+				Aggregation.match(new Criteria().orOperator(messages.toArray(new Criteria[messages.size()]))),
+				Aggregation.group("chatroomName").count().as("count"));
+		for (Document result : mongoTemplate.aggregate(aggregation, COLLECTION, Document.class)) {
+			counts.put(result.getString("_id"), ((Number) result.get("count")).longValue());
+		}
+		return counts;
+	}
+
+	/**
+	 * Deletes all messages of chat room <code>chatroomName</code>.
+	 */
+	public void deleteAll(String chatroomName) {
+		mongoTemplate.remove(new Query(Criteria.where("chatroomName").is(chatroomName)), COLLECTION);
+	}
+
+	/**
+	 * Returns every resource hash referenced by some message, each once.
+	 */
+	public Set<String> findReferencedResources() {
+		Aggregation aggregation = Aggregation
+				.newAggregation(Aggregation.match(Criteria.where("messages.resources.0").exists(true)),
+						Aggregation.unwind("messages"), Aggregation.unwind("messages.resources"),
+						Aggregation.group("messages.resources"))
+				.withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).cursorBatchSize(1000).build());
+		Set<String> hashes = new HashSet<>();
+		try (CloseableIterator<Document> results = mongoTemplate.aggregateStream(aggregation, COLLECTION,
+				Document.class)) {
+			while (results.hasNext()) {
+				Object hash = results.next().get("_id");
+				if (hash instanceof String) {
+					hashes.add((String) hash);
+				}
+			}
+		}
+		return hashes;
+	}
+
+	/**
+	 * Creates the bucket indexes, one entry per bucket rather than per message.
+	 */
+	public void ensureIndexes(boolean background) {
+		IndexOperations indexes = mongoTemplate.indexOps(COLLECTION);
+		Index periods = new Index().on("chatroomName", Direction.ASC).on("start", Direction.ASC)
+				.named("chatroomName_start");
+		Index resources = new Index().on("messages.resources", Direction.ASC).sparse().named("messages_resources");
+		// finds a retried post without reading every bucket of the chat room
+		Index clientMessageId = new Index().on("chatroomName", Direction.ASC)
+				.on("messages.senderUsernameId", Direction.ASC).on("messages.clientMessageId", Direction.ASC)
+				.partial(PartialIndexFilter.of(Criteria.where("messages.clientMessageId").exists(true)))
+				.named("chatroomName_messages_sender_clientMessageId");
+		if (background) {
+			periods.background();
+			resources.background();
+			clientMessageId.background();
+		}
+		indexes.ensureIndex(periods);
+		indexes.ensureIndex(resources);
+		indexes.ensureIndex(clientMessageId);
+	}
+
+	/**
+	 * Reads the periods of chat room <code>chatroomName</code> matching
+	 * <code>periods</code> in order, and returns up to <code>limit</code>
+	 * messages accepted by <code>filter</code> after skipping <code>skip</code>.
+	 * No more buckets are read once the page is full.
+	 */
+	private List<ChatMessage> collect(String chatroomName, Criteria periods, boolean descending,
+			Predicate<ChatMessage> filter, int skip, int limit) {
+		List<ChatMessage> result = new ArrayList<>();
+		long toSkip = skip;
+		try (PeriodCursor cursor = periods(chatroomName, periods, descending)) {
+			while (result.size() < limit && cursor.hasNext()) {
+				for (ChatMessage message : cursor.next()) {
+					if (result.size() >= limit) {
+						break;
+					}
+					if (!filter.test(message)) {
+						continue;
+					}
+					if (toSkip > 0) {
+						toSkip--;
+						continue;
+					}
+					result.add(message);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Opens a cursor over the buckets of chat room <code>chatroomName</code>
+	 * matching <code>periods</code>, ordered by their period.
+	 */
+	private PeriodCursor periods(String chatroomName, Criteria periods, boolean descending) {
+		Query query = new Query(Criteria.where("chatroomName").is(chatroomName)).addCriteria(periods);
+		query.with(Sort.by(descending ? Direction.DESC : Direction.ASC, "start"));
+		return new PeriodCursor(mongoTemplate.stream(query, Document.class, COLLECTION), descending);
+	}
+
+	/**
+	 * Returns the messages of chat room <code>chatroomName</code> in period
+	 * <code>start</code>, oldest first.
+	 */
+	private List<ChatMessage> load(String chatroomName, long start) {
+		Query query = new Query(Criteria.where("chatroomName").is(chatroomName).and("start").is(start));
+		List<ChatMessage> messages = new ArrayList<>();
+		for (Document bucket : mongoTemplate.find(query, Document.class, COLLECTION)) {
+			messages.addAll(unpack(bucket));
+		}
+		messages.sort(CHRONOLOGICAL);
+		return messages;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<ChatMessage> unpack(Document bucket) {
+		String chatroomName = bucket.getString("chatroomName");
+		List<Document> entries = (List<Document>) bucket.get("messages");
+		if (entries == null) {
+			return new ArrayList<>();
+		}
+		List<ChatMessage> messages = new ArrayList<>(entries.size());
+		for (Document entry : entries) {
+			Number senderUsernameId = (Number) entry.get("senderUsernameId");
+			Number timestamp = (Number) entry.get("timestamp");
+			ChatMessage message = new ChatMessage(entry.getObjectId("_id").toHexString(), chatroomName,
+					senderUsernameId != null ? senderUsernameId.longValue() : 0, entry.getString("senderUsername"),
+					entry.getString("senderDisplayName"), entry.getString("message"),
+					timestamp != null ? timestamp.longValue() : null, (List<String>) entry.get("resources"));
+			message.setClientMessageId(entry.getString("clientMessageId"));
+			messages.add(message);
+		}
+		return messages;
+	}
+
+	private Criteria between(long startTime, long endTime) {
+		return Criteria.where("start").gte(periodOf(startTime)).lte(endTime);
+	}
+
+	private long periodOf(long timestamp) {
+		return Math.floorDiv(timestamp, bucketMillis) * bucketMillis;
+	}
+
+	/**
+	 * Compares <code>message</code> to the position <code>(timestamp, id)</code>
+	 * in the order of <code>(timestamp, _id)</code>, a position without an id
+	 * stands for its whole millisecond.
+	 */
+	private static int compare(ChatMessage message, long timestamp, String id) {
+		int byTime = Long.compare(message.getTimestamp(), timestamp);
+		if (byTime != 0 || id == null) {
+			return byTime;
+		}
+		// object ids are fixed length hex, so they compare like their strings
+		return message.getId().compareToIgnoreCase(id);
+	}
+
+	/**
+	 * Groups a cursor over buckets ordered by period into the messages of each
+	 * period, sorted in the order of the cursor. The buckets of a period are
+	 * next to each other, so a period is complete when a bucket of another one
+	 * comes up.
+	 */
+	private static class PeriodCursor implements CloseableIterator<List<ChatMessage>> {
+
+		private final CloseableIterator<Document> buckets;
+		private final boolean descending;
+		// first bucket of the next period, already read
+		private Document pending;
+
+		PeriodCursor(CloseableIterator<Document> buckets, boolean descending) {
+			this.buckets = buckets;
+			this.descending = descending;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return pending != null || buckets.hasNext();
+		}
+
+		@Override
+		public List<ChatMessage> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Document first = pending != null ? pending : buckets.next();
+			pending = null;
+			Object start = first.get("start");
+			List<ChatMessage> messages = unpack(first);
+			while (buckets.hasNext()) {
+				Document bucket = buckets.next();
+				if (!start.equals(bucket.get("start"))) {
+					pending = bucket;
+					break;
+				}
+				messages.addAll(unpack(bucket));
+			}
+			messages.sort(descending ? CHRONOLOGICAL.reversed() : CHRONOLOGICAL);
+			return messages;
+		}
+
+		@Override
+		public void close() {
+			buckets.close();
+		}
+	}
+
+	/**
+	 * Iterates over the messages of a cursor over periods, reading the next
+	 * period when the previous one is used up.
+	 */
+	private static class MessageIterator implements CloseableIterator<ChatMessage> {
+
+		private final PeriodCursor periods;
+		private final Predicate<ChatMessage> filter;
+		private Iterator<ChatMessage> current = Collections.emptyIterator();
+		private ChatMessage next;
+
+		MessageIterator(PeriodCursor periods, Predicate<ChatMessage> filter) {
+			this.periods = periods;
+			this.filter = filter;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null) {
+				if (current.hasNext()) {
+					ChatMessage candidate = current.next();
+					if (filter.test(candidate)) {
+						next = candidate;
+					}
+				} else if (periods.hasNext()) {
+					current = periods.next().iterator();
+				} else {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public ChatMessage next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ChatMessage result = next;
+			next = null;
+			return result;
+		}
+
+		@Override
+		public void close() {
+			periods.close();
+		}
+	}
+}
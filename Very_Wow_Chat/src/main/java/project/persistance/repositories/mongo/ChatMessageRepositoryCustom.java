@@ -1,8 +1,14 @@
 package project.persistance.repositories.mongo;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.springframework.data.util.CloseableIterator;
 
 import project.persistance.entities.ChatMessage;
+import project.persistance.entities.ChatroomMessageCount;
 
 /**
  * Custom chat message methods that are implemented in
@@ -26,6 +32,53 @@ public interface ChatMessageRepositoryCustom {
 	 */
 	List<ChatMessage> findPagedResultByChatroomName(String chatroomName, int offset, int limit);
 
+	/**
+	 * Returns up to <code>limit</code> chat messages from chat room with name
+	 * <code>chatroomName</code> that were posted right before the message at
+	 * <code>(timestamp, id)</code>, oldest first.
+	 * 
+	 * Unlike <code>findPagedResultByChatroomName</code> this is keyset
+	 * pagination, so it costs the same no matter how far back the page is.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param timestamp    Timestamp of the cursor message.
+	 * @param id           MongoDB ID of the cursor message, or <code>null</code>
+	 *                     to only use the timestamp.
+	 * @param limit        How many messages at most to fetch.
+	 * 
+	 * @return List of chat messages.
+	 */
+	List<ChatMessage> findPageBefore(String chatroomName, long timestamp, String id, int limit);
+
+	/**
+	 * Returns the number of messages in chat room <code>chatroomName</code>
+	 * posted before the message at <code>(timestamp, id)</code>, counted on the
+	 * <code>{chatroomName, timestamp, _id}</code> index.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param timestamp    Timestamp of the message.
+	 * @param id           MongoDB ID of the message, or <code>null</code> to
+	 *                     only use the timestamp.
+	 * 
+	 * @return Number of older messages.
+	 */
+	long countBefore(String chatroomName, long timestamp, String id);
+
+	/**
+	 * Returns up to <code>limit</code> chat messages from chat room with name
+	 * <code>chatroomName</code> that were posted right after the message at
+	 * <code>(timestamp, id)</code>, oldest first.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param timestamp    Timestamp of the cursor message.
+	 * @param id           MongoDB ID of the cursor message, or <code>null</code>
+	 *                     to only use the timestamp.
+	 * @param limit        How many messages at most to fetch.
+	 * 
+	 * @return List of chat messages.
+	 */
+	List<ChatMessage> findPageAfter(String chatroomName, long timestamp, String id, int limit);
+
 	/**
 	 * Returns all chat messages from chat room with name <code>chatroomName</code>
 	 * starting from <code>offset</code> to the end.
@@ -76,6 +129,35 @@ public interface ChatMessageRepositoryCustom {
 	 * @return List of messages.
 	 */
 	List<ChatMessage> getChatroomMessagesBetweenTime(String chatroomName, long startTime, long endTime);
+
+	/**
+	 * Streams all messages of chat room <code>chatroomName</code> in
+	 * chronological order from a MongoDB cursor, so they don't have to be held in
+	 * memory all at once.
+	 * 
+	 * The returned iterator must be closed.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * 
+	 * @return Open cursor over the chat messages.
+	 */
+	CloseableIterator<ChatMessage> streamAllMessages(String chatroomName);
+
+	/**
+	 * Streams all chat message for chat room <code>chatroomName</code> that were
+	 * posted between <code>startTime</code> and <code>endTime</code>, in
+	 * chronological order.
+	 * 
+	 * The returned iterator must be closed.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param startTime    Start Unix time in milliseconds.
+	 * @param endTime      End Unix time in milliseconds.
+	 * 
+	 * @return Open cursor over the chat messages.
+	 */
+	CloseableIterator<ChatMessage> streamChatroomMessagesBetweenTime(String chatroomName, long startTime,
+			long endTime);
 	
 	/**
 	 * Returns the chat message with MongoDB ID of <code>id</code> which belongs to
@@ -87,6 +169,18 @@ public interface ChatMessageRepositoryCustom {
 	 */
 	ChatMessage getChatMessage(String chatroomName, String id);
 
+	/**
+	 * Returns the chat message user <code>senderUsernameId</code> posted to chat
+	 * room <code>chatroomName</code> with client message id
+	 * <code>clientMessageId</code>.
+	 * 
+	 * @param chatroomName     Name of chat room.
+	 * @param senderUsernameId Id of the sender.
+	 * @param clientMessageId  Key the client gave the message.
+	 * @return Chat message, or <code>null</code> if there is none.
+	 */
+	ChatMessage findByClientMessageId(String chatroomName, long senderUsernameId, String clientMessageId);
+
 	/**
 	 * Posts chat message <code>message</code>.
 	 * 
@@ -96,6 +190,14 @@ public interface ChatMessageRepositoryCustom {
 	 */
 	void addChatMessage(ChatMessage message);
 
+	/**
+	 * Posts chat messages <code>messages</code>, with a single bulk insert when
+	 * messages are stored a document each.
+	 * 
+	 * @param messages Chat messages to post, in order.
+	 */
+	void addChatMessages(List<ChatMessage> messages);
+
 	/**
 	 * Returns the number of messages that exist for chat room
 	 * <code>chatroomName</code>.
@@ -104,4 +206,175 @@ public interface ChatMessageRepositoryCustom {
 	 */
 	long getNrOfMessage(String chatroomName);
 
+	/**
+	 * Counts, for every chat room in <code>after</code>, the messages posted after
+	 * the timestamp it's mapped to, in a single aggregation.
+	 * 
+	 * @param after Chat room name -&gt; Unix time in milliseconds.
+	 * 
+	 * @return Chat room name -&gt; number of messages, chat rooms without any such
+	 *         messages are left out.
+	 */
+	Map<String, Long> countMessagesAfter(Map<String, Long> after);
+
+	/**
+	 * Returns the maintained message count of chat room <code>chatroomName</code>.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * 
+	 * @return The count, or <code>null</code> if the chat room has no counter
+	 *         yet.
+	 */
+	Long findMessageCount(String chatroomName);
+
+	/**
+	 * Atomically adds one to the message count of chat room
+	 * <code>chatroomName</code>, creating the counter if needed.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * 
+	 * @return The new count.
+	 */
+	long incrementMessageCount(String chatroomName);
+
+	/**
+	 * Atomically adds <code>amount</code> to the message count of chat room
+	 * <code>chatroomName</code>, creating the counter if needed.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param amount       How many messages were posted.
+	 * 
+	 * @return The new count.
+	 */
+	long incrementMessageCount(String chatroomName, long amount);
+
+	/**
+	 * Raises the message count of chat room <code>chatroomName</code> to
+	 * <code>count</code> if it's lower, creating the counter if needed.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param count
+	 */
+	void raiseMessageCount(String chatroomName, long count);
+
+	/**
+	 * Sets the message count of chat room <code>chatroomName</code> to
+	 * <code>count</code>, but only if it's still <code>expected</code>.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param expected     The count that was read.
+	 * @param count        The new count.
+	 * 
+	 * @return true if the count was changed.
+	 */
+	boolean replaceMessageCount(String chatroomName, long expected, long count);
+
+	/**
+	 * Deletes the message count of chat room <code>chatroomName</code>.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 */
+	void deleteMessageCount(String chatroomName);
+
+	/**
+	 * Streams all maintained message counts. The returned iterator must be
+	 * closed.
+	 * 
+	 * @return Open cursor over the counts.
+	 */
+	CloseableIterator<ChatroomMessageCount> streamMessageCounts();
+
+	/**
+	 * Returns every resource hash referenced by some chat message, each once,
+	 * from both the <code>chatMessage</code> and the bucket collection whatever
+	 * <code>messages.storage</code> is, so content isn't deleted because of a
+	 * wrong setting. The hashes are collected by aggregations streamed
+	 * from the database, so only the set itself is held in memory.
+	 * 
+	 * @return Set of resource hashes.
+	 */
+	Set<String> findReferencedResources();
+
+	/**
+	 * Creates the indexes the chat message queries need, if they don't exist:
+	 * <code>{chatroomName, timestamp, _id}</code> for every history query and
+	 * <code>{resources}</code> for finding the messages that reference a file.
+	 * 
+	 * @param background Build new indexes without blocking the collection.
+	 */
+	void ensureIndexes(boolean background);
+
+	/**
+	 * Creates the unique <code>{chatroomName, senderUsernameId,
+	 * clientMessageId}</code> index, if it doesn't exist, which keeps a retried
+	 * post from being stored twice. It only has the messages that have a client
+	 * message id, but building it still scans the whole collection, so it's
+	 * built in the background. This returns once the build has finished.
+	 */
+	void ensureClientMessageIdIndex();
+
+	/**
+	 * Checks the collection <code>messages.storage</code> doesn't use is empty.
+	 * Messages aren't moved when the setting changes and only one collection is
+	 * read, so changing it on a deployment with messages would hide all of its
+	 * history.
+	 * 
+	 * @throws IllegalStateException if the other collection has messages
+	 */
+	void checkStorage();
+
+	/**
+	 * Makes MongoDB delete chat messages <code>seconds</code> after they were
+	 * posted, with a TTL index on <code>createdAt</code>, or stops deleting them
+	 * if <code>seconds</code> is 0. Changing the retention of an existing index
+	 * doesn't rebuild it.
+	 * 
+	 * @param seconds    How long messages are kept, 0 for forever.
+	 * @param background Build the index without blocking the collection.
+	 */
+	void ensureRetention(long seconds, boolean background);
+
+	/**
+	 * Looks at the next <code>limit</code> messages in <code>_id</code> order
+	 * after <code>afterId</code>, and sets <code>createdAt</code> from the
+	 * timestamp of those that were posted before it existed. Walking the
+	 * <code>_id</code> index reads every message once over the whole backfill.
+	 * 
+	 * @param afterId <code>_id</code> returned for the previous batch, or
+	 *                <code>null</code> to start from the first message.
+	 * @param limit   How many messages at most to look at.
+	 * 
+	 * @return <code>_id</code> of the last message looked at, <code>null</code>
+	 *         when there are no more.
+	 */
+	Object backfillCreatedAt(Object afterId, int limit);
+
+	/**
+	 * Returns the recorded state of migration <code>name</code>, a document with
+	 * its <code>position</code> and whether it's <code>done</code>, or
+	 * <code>null</code> if it never ran.
+	 * 
+	 * @param name Name of the migration.
+	 * 
+	 * @return The state of the migration.
+	 */
+	Document getMigration(String name);
+
+	/**
+	 * Records how far migration <code>name</code> got, so it resumes from there,
+	 * or isn't run again once it's <code>done</code>.
+	 * 
+	 * @param name     Name of the migration.
+	 * @param position Where to resume.
+	 * @param done     True if there's nothing left to do.
+	 */
+	void saveMigration(String name, Object position, boolean done);
+
+	/**
+	 * Returns the usage statistics of every index on the chat message
+	 * collection, from <code>$indexStats</code>.
+	 * 
+	 * @return One document per index, with its name, key and accesses.
+	 */
+	List<Document> getIndexStats();
 }
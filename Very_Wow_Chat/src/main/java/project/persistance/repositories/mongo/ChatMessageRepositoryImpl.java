@@ -1,24 +1,75 @@
 package project.persistance.repositories.mongo;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Repository;
 
 import project.persistance.entities.ChatMessage;
+import project.persistance.entities.ChatroomMessageCount;
 
 /**
  * Implementation of custom methods for message repository.
+ * 
+ * Messages are stored as a document each, or packed into bucket documents by
+ * <code>ChatMessageBucketStore</code> when <code>messages.storage</code> is
+ * <code>bucketed</code>. The message counters are the same either way. The
+ * application doesn't start if the other collection has messages.
  */
 @Repository
 public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
 
+	// TTL index that deletes old messages when a retention is configured
+	private static final String RETENTION_INDEX = "createdAt_ttl";
+
+	// how far one-off migrations of the messages got, a document per migration
+	private static final String MIGRATION_COLLECTION = "chatMessageMigration";
+
+	/**
+	 * Chronological order of messages, the ID breaks ties between messages with
+	 * the same timestamp.
+	 */
+	private static final Sort CHRONOLOGICAL = Sort.by(Direction.ASC, "timestamp", "_id");
+
+	private static final Sort REVERSE_CHRONOLOGICAL = Sort.by(Direction.DESC, "timestamp", "_id");
+
 	@Autowired
 	private MongoTemplate mongoTemplate;
 
+	// "bucketed" packs messages into bucket documents, see ChatMessageBucketStore
+	@Value("${messages.storage:document}")
+	private String storage;
+
+	@Autowired
+	private ChatMessageBucketStore buckets;
+
+	private boolean bucketed() {
+		return "bucketed".equals(storage);
+	}
+
 	/**
 	 * Returns up to <code>limit</code> chat messages from chat room with name
 	 * <code>chatroomName</code> starting from <code>offset</code>.
@@ -35,8 +86,12 @@ public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
 	 */
 	@Override
 	public List<ChatMessage> findPagedResultByChatroomName(String chatroomName, int offset, int limit) {
+		if (bucketed()) {
+			return buckets.findPage(chatroomName, offset, limit);
+		}
 		Criteria criteria = Criteria.where("chatroomName").is(chatroomName);
 		Query query = new Query(criteria);
+		query.with(CHRONOLOGICAL);
 		query.skip(offset);
 		query.limit(limit);
 		List<ChatMessage> results = mongoTemplate.find(query, ChatMessage.class);
@@ -57,13 +112,101 @@ public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
 	 */
 	@Override
 	public List<ChatMessage> findPagedResultByChatroomName(String chatroomName, int offset) {
+		if (bucketed()) {
+			return buckets.findPage(chatroomName, offset, Integer.MAX_VALUE);
+		}
 		Criteria criteria = Criteria.where("chatroomName").is(chatroomName);
 		Query query = new Query(criteria);
+		query.with(CHRONOLOGICAL);
 		query.skip(offset);
 		List<ChatMessage> results = mongoTemplate.find(query, ChatMessage.class);
 		return results;
 	}
 
+	/**
+	 * Returns up to <code>limit</code> chat messages from chat room with name
+	 * <code>chatroomName</code> that were posted right before the message at
+	 * <code>(timestamp, id)</code>, oldest first.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param timestamp    Timestamp of the cursor message.
+	 * @param id           MongoDB ID of the cursor message, or <code>null</code>
+	 *                     to only use the timestamp.
+	 * @param limit        How many messages at most to fetch.
+	 * 
+	 * @return List of chat messages.
+	 */
+	@Override
+	public List<ChatMessage> findPageBefore(String chatroomName, long timestamp, String id, int limit) {
+		if (bucketed()) {
+			return buckets.findPageBefore(chatroomName, timestamp, id, limit);
+		}
+		Query query = new Query(new Criteria().andOperator(Criteria.where("chatroomName").is(chatroomName),
+				positionBefore(timestamp, id)));
+		// walk the {chatroomName, timestamp, _id} index backwards from the cursor
+		query.with(REVERSE_CHRONOLOGICAL);
+		query.limit(limit);
+		List<ChatMessage> results = mongoTemplate.find(query, ChatMessage.class);
+		Collections.reverse(results);
+		return results;
+	}
+
+	@Override
+	public long countBefore(String chatroomName, long timestamp, String id) {
+		if (bucketed()) {
+			return buckets.countBefore(chatroomName, timestamp, id);
+		}
+		Query query = new Query(new Criteria().andOperator(Criteria.where("chatroomName").is(chatroomName),
+				positionBefore(timestamp, id)));
+		return mongoTemplate.count(query, ChatMessage.class);
+	}
+
+	/**
+	 * Matches the messages before <code>(timestamp, id)</code> in the order of
+	 * <code>(timestamp, _id)</code>, a position without an id stands for its
+	 * whole millisecond.
+	 */
+	private static Criteria positionBefore(long timestamp, String id) {
+		if (id == null) {
+			return Criteria.where("timestamp").lt(timestamp);
+		}
+		return new Criteria().orOperator(Criteria.where("timestamp").lt(timestamp), new Criteria()
+				.andOperator(Criteria.where("timestamp").is(timestamp), Criteria.where("_id").lt(new ObjectId(id))));
+	}
+
+	/**
+	 * Returns up to <code>limit</code> chat messages from chat room with name
+	 * <code>chatroomName</code> that were posted right after the message at
+	 * <code>(timestamp, id)</code>, oldest first.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param timestamp    Timestamp of the cursor message.
+	 * @param id           MongoDB ID of the cursor message, or <code>null</code>
+	 *                     to only use the timestamp.
+	 * @param limit        How many messages at most to fetch.
+	 * 
+	 * @return List of chat messages.
+	 */
+	@Override
+	public List<ChatMessage> findPageAfter(String chatroomName, long timestamp, String id, int limit) {
+		if (bucketed()) {
+			return buckets.findPageAfter(chatroomName, timestamp, id, limit);
+		}
+		Criteria position;
+		if (id == null) {
+			position = Criteria.where("timestamp").gt(timestamp);
+		} else {
+			position = new Criteria().orOperator(Criteria.where("timestamp").gt(timestamp),
+					new Criteria().andOperator(Criteria.where("timestamp").is(timestamp),
+							Criteria.where("_id").gt(new ObjectId(id))));
+		}
+		Query query = new Query(new Criteria().andOperator(Criteria.where("chatroomName").is(chatroomName), position));
+		query.with(CHRONOLOGICAL);
+		query.limit(limit);
+		List<ChatMessage> results = mongoTemplate.find(query, ChatMessage.class);
+		return results;
+	}
+
 	/**
 	 * Posts chat message <code>message</code>.
 	 * 
@@ -73,6 +216,10 @@ public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
 	 */
 	@Override
 	public void postMessage(ChatMessage message) {
+		if (bucketed()) {
+			buckets.insert(message);
+			return;
+		}
 		mongoTemplate.insert(message);
 	}
 
@@ -85,6 +232,9 @@ public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
 	 */
 	@Override
 	public List<ChatMessage> getAllMessages(String chatroomName) {
+		if (bucketed()) {
+			return buckets.findPage(chatroomName, 0, Integer.MAX_VALUE);
+		}
 		Criteria criteria = Criteria.where("chatroomName").is(chatroomName);
 		Query query = new Query(criteria);
 		List<ChatMessage> results = mongoTemplate.find(query, ChatMessage.class);
@@ -98,6 +248,10 @@ public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
 	 */
 	@Override
 	public void deleteAllChatMessagesOfChatroom(String chatroomName) {
+		if (bucketed()) {
+			buckets.deleteAll(chatroomName);
+			return;
+		}
 		Criteria criteria = Criteria.where("chatroomName").is(chatroomName);
 		Query query = new Query(criteria);
 		mongoTemplate.findAllAndRemove(query, ChatMessage.class);
@@ -115,6 +269,9 @@ public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
 	 */
 	@Override
 	public List<ChatMessage> getChatroomMessagesBetweenTime(String chatroomName, long startTime, long endTime) {
+		if (bucketed()) {
+			return buckets.findBetween(chatroomName, startTime, endTime);
+		}
 		Query query = new Query();
 		query.addCriteria(Criteria.where("chatroomName").is(chatroomName));
 		query.addCriteria(Criteria.where("timestamp").gte(startTime).lte(endTime));
@@ -122,6 +279,48 @@ public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
 		return results;
 	}
 
+	/**
+	 * Streams all messages of chat room <code>chatroomName</code> in
+	 * chronological order.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * 
+	 * @return Open cursor over the chat messages, must be closed.
+	 */
+	@Override
+	public CloseableIterator<ChatMessage> streamAllMessages(String chatroomName) {
+		if (bucketed()) {
+			return buckets.stream(chatroomName);
+		}
+		Query query = new Query(Criteria.where("chatroomName").is(chatroomName));
+		query.with(CHRONOLOGICAL);
+		return mongoTemplate.stream(query, ChatMessage.class);
+	}
+
+	/**
+	 * Streams all chat message for chat room <code>chatroomName</code> that were
+	 * posted between <code>startTime</code> and <code>endTime</code>, in
+	 * chronological order.
+	 * 
+	 * @param chatroomName Name of chat room.
+	 * @param startTime    Start Unix time in milliseconds.
+	 * @param endTime      End Unix time in milliseconds.
+	 * 
+	 * @return Open cursor over the chat messages, must be closed.
+	 */
+	@Override
+	public CloseableIterator<ChatMessage> streamChatroomMessagesBetweenTime(String chatroomName, long startTime,
+			long endTime) {
+		if (bucketed()) {
+			return buckets.streamBetween(chatroomName, startTime, endTime);
+		}
+		Query query = new Query();
+		query.addCriteria(Criteria.where("chatroomName").is(chatroomName));
+		query.addCriteria(Criteria.where("timestamp").gte(startTime).lte(endTime));
+		query.with(CHRONOLOGICAL);
+		return mongoTemplate.stream(query, ChatMessage.class);
+	}
+
 	/**
 	 * Posts chat message <code>message</code>.
 	 * 
@@ -131,9 +330,25 @@ public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
 	 */
 	@Override
 	public void addChatMessage(ChatMessage message) {
+		if (bucketed()) {
+			buckets.insert(message);
+			return;
+		}
 		mongoTemplate.insert(message);
 	}
 
+	@Override
+	public void addChatMessages(List<ChatMessage> messages) {
+		if (bucketed()) {
+			// each message goes to whichever bucket has room
+			for (ChatMessage message : messages) {
+				buckets.insert(message);
+			}
+			return;
+		}
+		mongoTemplate.insert(messages, ChatMessage.class);
+	}
+
 	/**
 	 * Returns the number of messages that exist for chat room
 	 * <code>chatroomName</code>.
@@ -142,14 +357,30 @@ public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
 	 */
 	@Override
 	public long getNrOfMessage(String chatroomName) {
+		if (bucketed()) {
+			return buckets.count(chatroomName);
+		}
 		Query query = new Query();
 		query.addCriteria(Criteria.where("chatroomName").is(chatroomName));
 		long count = mongoTemplate.count(query, ChatMessage.class);
 		return count;
 	}
 
+	@Override
+	public ChatMessage findByClientMessageId(String chatroomName, long senderUsernameId, String clientMessageId) {
+		if (bucketed()) {
+			return buckets.findByClientMessageId(chatroomName, senderUsernameId, clientMessageId);
+		}
+		Query query = new Query(Criteria.where("chatroomName").is(chatroomName).and("senderUsernameId")
+				.is(senderUsernameId).and("clientMessageId").is(clientMessageId));
+		return mongoTemplate.findOne(query, ChatMessage.class);
+	}
+
 	@Override
 	public ChatMessage getChatMessage(String chatroomName, String id) {
+		if (bucketed()) {
+			return buckets.findById(chatroomName, id);
+		}
 		Query query = new Query();
 		query.addCriteria(Criteria.where("chatroomName").is(chatroomName));
 		query.addCriteria(Criteria.where("id").is(id));
@@ -167,4 +398,230 @@ public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
 		return chatMessage;
 	}
 
+	/**
+	 * Counts, for every chat room in <code>after</code>, the messages posted after
+	 * the timestamp it's mapped to, in a single aggregation.
+	 * 
+	 * @param after Chat room name -&gt; Unix time in milliseconds.
+	 * 
+	 * @return Chat room name -&gt; number of messages, chat rooms without any such
+	 *         messages are left out.
+	 */
+	@Override
+	public Map<String, Long> countMessagesAfter(Map<String, Long> after) {
+		if (bucketed()) {
+			return buckets.countMessagesAfter(after);
+		}
+		Map<String, Long> counts = new HashMap<>();
+		if (after.isEmpty()) {
+			return counts;
+		}
+		// one branch per chat room, each can use the (chatroomName, timestamp) index
+		List<Criteria> branches = new ArrayList<>(after.size());
+		for (Map.Entry<String, Long> entry : after.entrySet()) {
+			branches.add(Criteria.where("chatroomName").is(entry.getKey()).and("timestamp").gt(entry.getValue()));
+		}
+		Criteria criteria = Criteria.where("chatroomName").in(after.keySet())
+				.orOperator(branches.toArray(new Criteria[branches.size()]));
+		Aggregation aggregation = Aggregation.newAggregation(Aggregation.match(criteria),
+				Aggregation.group("chatroomName").count().as("count"));
+		for (Document result : mongoTemplate.aggregate(aggregation, ChatMessage.class, Document.class)) {
+			counts.put(result.getString("_id"), ((Number) result.get("count")).longValue());
+		}
+		return counts;
+	}
+
+	@Override
+	public Long findMessageCount(String chatroomName) {
+		ChatroomMessageCount count = mongoTemplate.findById(chatroomName, ChatroomMessageCount.class);
+		return count != null ? count.getCount() : null;
+	}
+
+	@Override
+	public long incrementMessageCount(String chatroomName) {
+		return incrementMessageCount(chatroomName, 1);
+	}
+
+	@Override
+	public long incrementMessageCount(String chatroomName, long amount) {
+		Query query = new Query(Criteria.where("_id").is(chatroomName));
+		ChatroomMessageCount count = mongoTemplate.findAndModify(query, new Update().inc("count", amount),
+				FindAndModifyOptions.options().upsert(true).returnNew(true), ChatroomMessageCount.class);
+		return count.getCount();
+	}
+
+	@Override
+	public void raiseMessageCount(String chatroomName, long count) {
+		Query query = new Query(Criteria.where("_id").is(chatroomName));
+		mongoTemplate.upsert(query, new Update().max("count", count), ChatroomMessageCount.class);
+	}
+
+	@Override
+	public boolean replaceMessageCount(String chatroomName, long expected, long count) {
+		Query query = new Query(Criteria.where("_id").is(chatroomName).and("count").is(expected));
+		return mongoTemplate.updateFirst(query, new Update().set("count", count), ChatroomMessageCount.class)
+				.getModifiedCount() > 0;
+	}
+
+	@Override
+	public void deleteMessageCount(String chatroomName) {
+		mongoTemplate.remove(new Query(Criteria.where("_id").is(chatroomName)), ChatroomMessageCount.class);
+	}
+
+	@Override
+	public CloseableIterator<ChatroomMessageCount> streamMessageCounts() {
+		return mongoTemplate.stream(new Query(), ChatroomMessageCount.class);
+	}
+
+	@Override
+	public Set<String> findReferencedResources() {
+		// messages stay where they were stored when messages.storage changes, so a
+		// hash referenced from either collection is live, whatever the mode
+		Set<String> hashes = buckets.findReferencedResources();
+		Aggregation aggregation = Aggregation
+				.newAggregation(Aggregation.match(Criteria.where("resources.0").exists(true)),
+						Aggregation.unwind("resources"), Aggregation.group("resources"))
+				.withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).cursorBatchSize(1000).build());
+		try (CloseableIterator<Document> results = mongoTemplate.aggregateStream(aggregation, ChatMessage.class,
+				Document.class)) {
+			while (results.hasNext()) {
+				Object hash = results.next().get("_id");
+				if (hash instanceof String) {
+					hashes.add((String) hash);
+				}
+			}
+		}
+		return hashes;
+	}
+
+	@Override
+	public void ensureIndexes(boolean background) {
+		if (bucketed()) {
+			buckets.ensureIndexes(background);
+			return;
+		}
+		IndexOperations indexes = mongoTemplate.indexOps(ChatMessage.class);
+		Index history = new Index().on("chatroomName", Direction.ASC).on("timestamp", Direction.DESC)
+				.on("_id", Direction.DESC).named("chatroomName_timestamp_id");
+		Index resources = new Index().on("resources", Direction.ASC).sparse().named("resources");
+		if (background) {
+			history.background();
+			resources.background();
+		}
+		indexes.ensureIndex(history);
+		indexes.ensureIndex(resources);
+	}
+
+	@Override
+	public void ensureClientMessageIdIndex() {
+		if (bucketed()) {
+			// a unique index can't span the messages of a bucket
+			return;
+		}
+		// messages without a client message id don't have the field, so aren't in the index,
+		// but the build scans them all and a foreground build would lock the database meanwhile
+		Index clientMessageId = new Index().on("chatroomName", Direction.ASC).on("senderUsernameId", Direction.ASC)
+				.on("clientMessageId", Direction.ASC).unique()
+				.partial(PartialIndexFilter.of(Criteria.where("clientMessageId").exists(true)))
+				.named("chatroomName_sender_clientMessageId").background();
+		mongoTemplate.indexOps(ChatMessage.class).ensureIndex(clientMessageId);
+	}
+
+	@Override
+	public void checkStorage() {
+		String unused = bucketed() ? mongoTemplate.getCollectionName(ChatMessage.class)
+				: ChatMessageBucketStore.COLLECTION;
+		if (mongoTemplate.exists(new Query(), unused)) {
+			throw new IllegalStateException("messages.storage is " + storage + " but the " + unused
+					+ " collection has messages, which wouldn't be read. Move them first, or change it back.");
+		}
+	}
+
+	@Override
+	public void ensureRetention(long seconds, boolean background) {
+		// buckets have createdAt of their newest message, and expire as a whole
+		String collection = bucketed() ? ChatMessageBucketStore.COLLECTION
+				: mongoTemplate.getCollectionName(ChatMessage.class);
+		Document existing = null;
+		for (Document index : mongoTemplate.getCollection(collection).listIndexes()) {
+			if (RETENTION_INDEX.equals(index.getString("name"))) {
+				existing = index;
+			}
+		}
+
+		if (seconds <= 0) {
+			if (existing != null) {
+				mongoTemplate.indexOps(collection).dropIndex(RETENTION_INDEX);
+			}
+			return;
+		}
+		if (existing == null) {
+			Index retention = new Index().on("createdAt", Direction.ASC).named(RETENTION_INDEX)
+					.expire(seconds);
+			if (background) {
+				retention.background();
+			}
+			mongoTemplate.indexOps(collection).ensureIndex(retention);
+		} else if (!Long.valueOf(seconds).equals(asLong(existing.get("expireAfterSeconds")))) {
+			// changes the expiry in place, no rebuild
+			mongoTemplate.executeCommand(new Document("collMod", collection).append("index",
+					new Document("name", RETENTION_INDEX).append("expireAfterSeconds", seconds)));
+		}
+	}
+
+	@Override
+	public Object backfillCreatedAt(Object afterId, int limit) {
+		// buckets always have createdAt, and chatMessage is empty when bucketed
+		Query query = afterId != null ? new Query(Criteria.where("_id").gt(afterId)) : new Query();
+		query.with(Sort.by(Direction.ASC, "_id")).limit(limit);
+		query.fields().include("timestamp").include("createdAt");
+		List<Document> batch = mongoTemplate.find(query, Document.class,
+				mongoTemplate.getCollectionName(ChatMessage.class));
+		if (batch.isEmpty()) {
+			return null;
+		}
+		BulkOperations operations = null;
+		for (Document message : batch) {
+			if (message.containsKey("createdAt")) {
+				continue;
+			}
+			if (operations == null) {
+				operations = mongoTemplate.bulkOps(BulkMode.UNORDERED, ChatMessage.class);
+			}
+			Long timestamp = asLong(message.get("timestamp"));
+			Date createdAt = timestamp != null ? new Date(timestamp) : new Date();
+			operations.updateOne(
+					new Query(Criteria.where("_id").is(message.get("_id")).and("createdAt").exists(false)),
+					new Update().set("createdAt", createdAt));
+		}
+		if (operations != null) {
+			operations.execute();
+		}
+		return batch.get(batch.size() - 1).get("_id");
+	}
+
+	@Override
+	public Document getMigration(String name) {
+		return mongoTemplate.findById(name, Document.class, MIGRATION_COLLECTION);
+	}
+
+	@Override
+	public void saveMigration(String name, Object position, boolean done) {
+		mongoTemplate.upsert(new Query(Criteria.where("_id").is(name)),
+				new Update().set("position", position).set("done", done), MIGRATION_COLLECTION);
+	}
+
+	@Override
+	public List<Document> getIndexStats() {
+		List<Document> stats = new ArrayList<>();
+		String collection = bucketed() ? ChatMessageBucketStore.COLLECTION
+				: mongoTemplate.getCollectionName(ChatMessage.class);
+		mongoTemplate.getCollection(collection)
+				.aggregate(Collections.singletonList(new Document("$indexStats", new Document()))).into(stats);
+		return stats;
+	}
+
+	private static Long asLong(Object value) {
+		return value instanceof Number ? ((Number) value).longValue() : null;
+	}
 }
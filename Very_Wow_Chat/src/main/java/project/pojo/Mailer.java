@@ -1,15 +1,18 @@
 package project.pojo;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import org.apache.commons.io.IOUtils;
+
 /**
  * This class is responsible for sending POST request to the email server
  * that we implemented in js running on Heroku, the link to the email server 
@@ -36,6 +39,9 @@ public class Mailer {
 	private final String serverUrl;
 	private final String secretKey;
 
+	private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+	private static final int READ_TIMEOUT_MILLIS = 10000;
+
 	/**
 	 * Create a email to send.
 	 * 
@@ -66,10 +72,12 @@ public class Mailer {
 	/**
 	 * Try to send message. If it fails then it raises an exception.
 	 * 
+	 * The response is read to the end and the streams are closed, so the JVM can
+	 * reuse the (keep-alive) connection for the next email.
+	 * 
 	 * @throws Exception
 	 */
 	public void tryToSend() throws Exception {
-		System.out.println("try to send");
 		URL url = new URL(serverUrl);
 
 		LinkedHashMap<String, String> params = new LinkedHashMap<>();
@@ -92,19 +100,28 @@ public class Mailer {
 		byte[] postDataBytes = postData.toString().getBytes("UTF-8");
 
 		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		// a sleeping (or dead) email server must not hold the sending thread forever
+		conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+		conn.setReadTimeout(READ_TIMEOUT_MILLIS);
 		conn.setRequestMethod("POST");
 		conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
 		conn.setRequestProperty("Content-Length", String.valueOf(postDataBytes.length));
 		conn.setDoOutput(true);
-		conn.getOutputStream().write(postDataBytes);
-		
-		Reader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
-		StringBuilder sb = new StringBuilder();
-		for (int c; (c = in.read()) >= 0;) {
-			sb.append((char) c);
+		try (OutputStream out = conn.getOutputStream()) {
+			out.write(postDataBytes);
+		}
+
+		int status = conn.getResponseCode();
+		InputStream body = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+		String response = "";
+		if (body != null) {
+			try (InputStream in = body) {
+				response = IOUtils.toString(in, StandardCharsets.UTF_8);
+			}
+		}
+		if (status >= 400) {
+			throw new IOException("Email server responded with " + status + ": " + response);
 		}
-		String response = sb.toString();
-		System.out.println(response);
 	}
 
 }
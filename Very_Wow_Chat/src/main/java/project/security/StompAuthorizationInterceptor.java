@@ -0,0 +1,121 @@
+package project.security;
+
+import java.security.Principal;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.stereotype.Component;
+
+import project.configuration.WebSocketConfig;
+import project.errors.NotFoundException;
+import project.payloads.JwtUser;
+import project.persistance.queryresults.ChatroomReference;
+import project.persistance.queryresults.UserPrincipal;
+import project.services.ChatroomService;
+import project.services.UserService;
+
+/**
+ * Guards the STOMP inbound channel.
+ *
+ * CONNECT frames must carry a valid JWT in the <code>Authorization</code>
+ * header, SUBSCRIBE frames are only allowed for chat room topics the user is a
+ * member of, and clients are never allowed to SEND, since only the server
+ * publishes messages to the topics.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Component
+public class StompAuthorizationInterceptor implements ChannelInterceptor {
+
+	@Autowired
+	private JwtValidator validator;
+
+	@Autowired
+	private UserService userService;
+
+	@Autowired
+	private ChatroomService chatroomService;
+
+	@Override
+	public Message<?> preSend(Message<?> message, MessageChannel channel) {
+		StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+		if (accessor == null || accessor.getCommand() == null) {
+			// heartbeats and the like
+			return message;
+		}
+
+		switch (accessor.getCommand()) {
+		case CONNECT:
+			authenticate(accessor);
+			break;
+		case SUBSCRIBE:
+			authorizeSubscription(accessor);
+			break;
+		case SEND:
+			throw new MessagingException("Messages are posted through the REST interface.");
+		default:
+			break;
+		}
+		return message;
+	}
+
+	/**
+	 * Validates the JWT of the CONNECT frame and attaches the user to the session.
+	 *
+	 * @param accessor CONNECT frame headers.
+	 */
+	private void authenticate(StompHeaderAccessor accessor) {
+		// same format as the Authorization header of the REST interface
+		String header = accessor.getFirstNativeHeader("Authorization");
+		if (header == null || !header.startsWith("Token ")) {
+			throw new MessagingException("JWT Token is missing");
+		}
+
+		JwtUser jwtUser = validator.validate(header.substring(6));
+		if (jwtUser == null) {
+			throw new MessagingException("JWT Token is incorrect");
+		}
+
+		List<GrantedAuthority> grantedAuthorities = AuthorityUtils
+				.commaSeparatedStringToAuthorityList(jwtUser.getRole());
+		accessor.setUser(new UsernamePasswordAuthenticationToken(jwtUser.getUserName(), null, grantedAuthorities));
+	}
+
+	/**
+	 * Only members of a chat room may subscribe to its topic.
+	 *
+	 * @param accessor SUBSCRIBE frame headers.
+	 */
+	private void authorizeSubscription(StompHeaderAccessor accessor) {
+		Principal principal = accessor.getUser();
+		if (principal == null) {
+			throw new MessagingException("Not authenticated.");
+		}
+
+		String destination = accessor.getDestination();
+		if (destination == null || !destination.startsWith(WebSocketConfig.CHATROOM_TOPIC_PREFIX)) {
+			throw new MessagingException("Unknown destination: " + destination);
+		}
+		String chatroomName = destination.substring(WebSocketConfig.CHATROOM_TOPIC_PREFIX.length());
+
+		try {
+			UserPrincipal user = userService.findPrincipal(principal.getName());
+			ChatroomReference chatroom = chatroomService.findReference(chatroomName);
+			if (!chatroomService.isMember(user, chatroom)) {
+				throw new MessagingException("You don't have access to this chat room.");
+			}
+		} catch (NotFoundException e) {
+			throw new MessagingException(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package project.services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import project.persistance.entities.BlobMetadata;
+import project.persistance.repositories.mongo.BlobMetadataRepository;
+
+/**
+ * Stores the metadata of files in the content addressable storage in MongoDB,
+ * with the most recently used entries cached in memory.
+ *
+ * Content never changes for a hash, so neither does its metadata, and the
+ * cache never has to be invalidated except when a file is deleted.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Service
+public class BlobMetadataService {
+
+	@Autowired
+	private BlobMetadataRepository blobMetadataRepository;
+
+	private final Map<String, BlobMetadata> cache;
+
+	public BlobMetadataService(@Value("${content.metadata.cacheSize:10000}") int cacheSize) {
+		this.cache = new LinkedHashMap<String, BlobMetadata>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, BlobMetadata> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns the metadata of content <code>hash</code>.
+	 *
+	 * @param hash
+	 * @return the metadata, or <code>null</code> if none has been recorded
+	 */
+	public BlobMetadata get(String hash) {
+		synchronized (cache) {
+			BlobMetadata cached = cache.get(hash);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		Optional<BlobMetadata> stored = blobMetadataRepository.findById(hash);
+		if (!stored.isPresent()) {
+			return null;
+		}
+		remember(stored.get());
+		return stored.get();
+	}
+
+	/**
+	 * Records <code>metadata</code>, unless metadata for the same hash has been
+	 * recorded already, e.g. when the same file is uploaded twice.
+	 *
+	 * @param metadata
+	 * @return the recorded metadata
+	 */
+	public BlobMetadata recordIfAbsent(BlobMetadata metadata) {
+		try {
+			blobMetadataRepository.insert(metadata);
+		} catch (DuplicateKeyException e) {
+			BlobMetadata existing = blobMetadataRepository.findById(metadata.getHash()).orElse(metadata);
+			remember(existing);
+			return existing;
+		}
+		remember(metadata);
+		return metadata;
+	}
+
+	/**
+	 * Forgets the metadata of content <code>hash</code>.
+	 *
+	 * @param hash
+	 */
+	public void delete(String hash) {
+		blobMetadataRepository.deleteById(hash);
+		synchronized (cache) {
+			cache.remove(hash);
+		}
+	}
+
+	private void remember(BlobMetadata metadata) {
+		synchronized (cache) {
+			cache.put(metadata.getHash(), metadata);
+		}
+	}
+}
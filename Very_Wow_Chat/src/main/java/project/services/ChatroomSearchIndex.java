@@ -0,0 +1,287 @@
+package project.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import project.persistance.entities.Chatroom;
+import project.persistance.entities.Tag;
+import project.persistance.queryresults.ChatroomSearchDocument;
+import project.persistance.repositories.ChatroomRepository;
+
+/**
+ * In memory search index over the display names and tags of chat rooms.
+ *
+ * Display names are split into trigrams, and a search term of three or more
+ * characters only looks at the chat rooms that contain its rarest trigram,
+ * those are then checked with a plain (case insensitive) substring match. Tags
+ * are matched exactly through a tag to chat rooms map. The search term is never
+ * used as a regular expression.
+ *
+ * It's warmed from Neo4j when the application starts and kept up to date by
+ * <code>ChatroomService</code> and <code>TagService</code>. Until it's warm
+ * <code>isReady()</code> is false and callers should fall back to scanning.
+ *
+ * @author Vilhelml
+ */
+@Component
+public class ChatroomSearchIndex {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChatroomSearchIndex.class);
+
+	private static final int GRAM = 3;
+
+	@Autowired
+	private ChatroomRepository chatroomRepository;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// chat room id -> what is indexed about the chat room
+	private final Map<Long, Document> documents = new HashMap<>();
+
+	// trigram of display name -> ids of chat rooms
+	private final Map<String, Set<Long>> trigrams = new HashMap<>();
+
+	// lower case tag name -> ids of chat rooms
+	private final Map<String, Set<Long>> tags = new HashMap<>();
+
+	private volatile boolean ready = false;
+
+	/**
+	 * Loads the display names and tags of all chat rooms. If the database isn't
+	 * reachable the index stays cold and the searches fall back to scanning.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void warm() {
+		lock.writeLock().lock();
+		try {
+			List<ChatroomSearchDocument> rows = chatroomRepository.findAllSearchDocuments();
+			documents.clear();
+			trigrams.clear();
+			tags.clear();
+			for (ChatroomSearchDocument row : rows) {
+				Boolean listed = row.getListed();
+				List<String> tagNames = row.getTags() != null ? row.getTags() : Collections.emptyList();
+				put(new Document(row.getChatroomId(), row.getDisplayName(), listed != null && listed, tagNames));
+			}
+			ready = true;
+			logger.info("Chatroom search index warmed with {} chat rooms", documents.size());
+		} catch (RuntimeException e) {
+			logger.warn("Could not warm the chatroom search index, falling back to scanning", e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if the index has been warmed and can be trusted.
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Adds chat room <code>chatroom</code> to the index, or updates it if its
+	 * display name, listing or tags have changed.
+	 *
+	 * @param chatroom A saved chat room.
+	 */
+	public void index(Chatroom chatroom) {
+		if (chatroom.getId() == null) {
+			return;
+		}
+		List<String> tagNames = new ArrayList<>();
+		if (chatroom.getTags() != null) {
+			for (Tag tag : chatroom.getTags()) {
+				tagNames.add(tag.getName());
+			}
+		}
+		Boolean listed = chatroom.getListed();
+		Document document = new Document(chatroom.getId(), chatroom.getDisplayName(), listed != null && listed,
+				tagNames);
+
+		lock.writeLock().lock();
+		try {
+			Document old = documents.get(document.id);
+			// e.g. saving the chat room because a message was received
+			if (document.equals(old)) {
+				return;
+			}
+			if (old != null) {
+				remove(old);
+			}
+			put(document);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes chat room <code>chatroom</code> from the index.
+	 *
+	 * @param chatroom
+	 */
+	public void remove(Chatroom chatroom) {
+		if (chatroom.getId() == null) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			Document old = documents.get(chatroom.getId());
+			if (old != null) {
+				remove(old);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the ids of chat rooms whose display name contains
+	 * <code>searchTerm</code> or that have a tag named <code>searchTerm</code>,
+	 * ignoring case.
+	 *
+	 * @param searchTerm
+	 * @param listedOnly Only return listed chat rooms.
+	 * @return ids of matching chat rooms
+	 */
+	public Set<Long> search(String searchTerm, boolean listedOnly) {
+		String needle = searchTerm.toLowerCase(Locale.ROOT);
+		Set<Long> result = new LinkedHashSet<>();
+
+		lock.readLock().lock();
+		try {
+			// display names
+			for (Long id : candidates(needle)) {
+				Document document = documents.get(id);
+				if ((!listedOnly || document.listed) && document.displayName.contains(needle)) {
+					result.add(id);
+				}
+			}
+			// tags
+			for (Long id : tags.getOrDefault(needle, Collections.emptySet())) {
+				if (!listedOnly || documents.get(id).listed) {
+					result.add(id);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the ids of the chat rooms that might contain <code>needle</code>,
+	 * i.e. those whose display name has the rarest trigram of the needle. Needles
+	 * shorter than a trigram match too much to be worth indexing, for those all
+	 * chat rooms are candidates.
+	 */
+	private Set<Long> candidates(String needle) {
+		if (needle.length() < GRAM) {
+			return documents.keySet();
+		}
+		Set<Long> rarest = null;
+		for (String trigram : trigramsOf(needle)) {
+			Set<Long> postings = trigrams.get(trigram);
+			if (postings == null) {
+				// no display name has this trigram, so none contains the needle
+				return Collections.emptySet();
+			}
+			if (rarest == null || postings.size() < rarest.size()) {
+				rarest = postings;
+			}
+		}
+		return rarest;
+	}
+
+	private void put(Document document) {
+		documents.put(document.id, document);
+		for (String trigram : trigramsOf(document.displayName)) {
+			trigrams.computeIfAbsent(trigram, x -> new HashSet<>()).add(document.id);
+		}
+		for (String tag : document.tags) {
+			tags.computeIfAbsent(tag, x -> new HashSet<>()).add(document.id);
+		}
+	}
+
+	private void remove(Document document) {
+		documents.remove(document.id);
+		for (String trigram : trigramsOf(document.displayName)) {
+			removePosting(trigrams, trigram, document.id);
+		}
+		for (String tag : document.tags) {
+			removePosting(tags, tag, document.id);
+		}
+	}
+
+	private static void removePosting(Map<String, Set<Long>> postings, String key, Long id) {
+		Set<Long> ids = postings.get(key);
+		if (ids != null) {
+			ids.remove(id);
+			if (ids.isEmpty()) {
+				postings.remove(key);
+			}
+		}
+	}
+
+	private static Set<String> trigramsOf(String text) {
+		Set<String> result = new HashSet<>();
+		for (int i = 0; i + GRAM <= text.length(); i++) {
+			result.add(text.substring(i, i + GRAM));
+		}
+		return result;
+	}
+
+	/**
+	 * What is indexed about a chat room, display name and tags in lower case.
+	 */
+	private static class Document {
+
+		private final Long id;
+		private final String displayName;
+		private final boolean listed;
+		private final Set<String> tags = new HashSet<>();
+
+		Document(Long id, String displayName, boolean listed, List<String> tagNames) {
+			this.id = id;
+			this.displayName = displayName != null ? displayName.toLowerCase(Locale.ROOT) : "";
+			this.listed = listed;
+			for (String tagName : tagNames) {
+				if (tagName != null) {
+					tags.add(tagName.toLowerCase(Locale.ROOT));
+				}
+			}
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Document)) {
+				return false;
+			}
+			Document other = (Document) o;
+			return id.equals(other.id) && displayName.equals(other.displayName) && listed == other.listed
+					&& tags.equals(other.tags);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(id, displayName, listed, tags);
+		}
+	}
+}
@@ -3,6 +3,7 @@ package project.services;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,6 +17,9 @@ import project.persistance.entities.Chatroom;
 import project.persistance.entities.Membership;
 import project.persistance.entities.Tag;
 import project.persistance.entities.User;
+import project.persistance.queryresults.ChatroomReference;
+import project.persistance.queryresults.ChatroomSummary;
+import project.persistance.queryresults.UserPrincipal;
 import project.persistance.repositories.ChatroomRepository;
 // import project.persistance.repositories.TagRepository;
 import project.persistance.repositories.UserRepository;
@@ -45,14 +49,100 @@ public class ChatroomService {
 	@Autowired
 	private AuthenticationService authenticationService;
 
+	@Autowired
+	private MembershipIndex membershipIndex;
+
+	@Autowired
+	private ChatroomSearchIndex chatroomSearchIndex;
+
+	@Autowired
+	private LastMessageReceivedBuffer lastMessageReceivedBuffer;
+
+	/**
+	 * Records that chat room <code>chatroomName</code> received a message now.
+	 * The time is written to the database in batches by
+	 * <code>LastMessageReceivedBuffer</code>.
+	 * 
+	 * @param chatroomName
+	 */
 	public void updateLastMessageReceived(String chatroomName) {
-		try {
-			Chatroom chatroom = findByChatname(chatroomName);
-			chatroom.setLastMessageReceived((new Date()).getTime());
-			saveChatroom(chatroom);
-		} catch (NotFoundException e) {
-			e.printStackTrace();
+		lastMessageReceivedBuffer.touch(chatroomName, (new Date()).getTime());
+	}
+
+	/**
+	 * Records that the latest message of chat room <code>chatroomName</code> was
+	 * posted at <code>timestamp</code>, e.g. the newest of a batch.
+	 * 
+	 * @param chatroomName
+	 * @param timestamp    Unix time in milliseconds.
+	 */
+	public void updateLastMessageReceived(String chatroomName, long timestamp) {
+		lastMessageReceivedBuffer.touch(chatroomName, timestamp);
+	}
+
+	/**
+	 * Sets the time of the latest message of chat room <code>chatroom</code> to
+	 * include a message that hasn't been written to the database yet, before it's
+	 * returned to a client.
+	 * 
+	 * @param chatroom
+	 * @return the chat room
+	 */
+	public Chatroom withLastMessageReceived(Chatroom chatroom) {
+		chatroom.setLastMessageReceived(
+				lastMessageReceivedBuffer.latest(chatroom.getChatroomName(), chatroom.getLastMessageReceived()));
+		return chatroom;
+	}
+
+	/**
+	 * Sets the time of the latest message of chat rooms <code>chatrooms</code>,
+	 * like <code>withLastMessageReceived(Chatroom)</code>.
+	 * 
+	 * @param chatrooms
+	 * @return the chat rooms
+	 */
+	public List<Chatroom> chatroomsWithLastMessageReceived(List<Chatroom> chatrooms) {
+		chatrooms.forEach(this::withLastMessageReceived);
+		return chatrooms;
+	}
+
+	/**
+	 * Sets the time of the latest message of the chat room of membership
+	 * <code>membership</code>, like <code>withLastMessageReceived(Chatroom)</code>.
+	 * 
+	 * @param membership
+	 * @return the membership
+	 */
+	public Membership withLastMessageReceived(Membership membership) {
+		withLastMessageReceived(membership.getChatroom());
+		return membership;
+	}
+
+	/**
+	 * Sets the time of the latest message of the chat rooms of memberships
+	 * <code>memberships</code>, like <code>withLastMessageReceived(Chatroom)</code>.
+	 * 
+	 * @param memberships
+	 * @return the memberships
+	 */
+	public List<Membership> membershipsWithLastMessageReceived(List<Membership> memberships) {
+		memberships.forEach(this::withLastMessageReceived);
+		return memberships;
+	}
+
+	/**
+	 * Sets the time of the latest message of chat room summaries
+	 * <code>summaries</code>, like <code>withLastMessageReceived(Chatroom)</code>.
+	 * 
+	 * @param summaries
+	 * @return the summaries
+	 */
+	public List<ChatroomSummary> summariesWithLastMessageReceived(List<ChatroomSummary> summaries) {
+		for (ChatroomSummary summary : summaries) {
+			summary.setLastMessageReceived(
+					lastMessageReceivedBuffer.latest(summary.getChatroomName(), summary.getLastMessageReceived()));
 		}
+		return summaries;
 	}
 
 	/**
@@ -79,22 +169,44 @@ public class ChatroomService {
 		if(chatroomName == null || chatroomName.length() == 0) {
 			throw new NotFoundException("No chatroom name given");
 		}
-		// throw error if user doesn't exist
-		if (!chatroomExists(chatroomName)) {
+		Chatroom chatroom = this.chatroomRepository.findByChatroomName(chatroomName);
+		// throw error if chatroom doesn't exist
+		if (chatroom == null) {
 			throw new NotFoundException("Chatroom not found");
 		}
 
-		Chatroom chatroom = this.chatroomRepository.findByChatroomName(chatroomName);
-
 		return chatroom;
 	}
 	
+	/**
+	 * Returns the id and name of chat room <code>chatroomName</code>, without
+	 * loading its members, admins and tags. Use it when that's all a request
+	 * needs, e.g. to authorize reading or posting messages.
+	 * 
+	 * @param chatroomName
+	 * @return the chat room's id and name
+	 * @throws NotFoundException if chatroomName doesn't belong to any chatroom
+	 */
+	public ChatroomReference findReference(String chatroomName) throws NotFoundException {
+		if (chatroomName == null || chatroomName.length() == 0) {
+			throw new NotFoundException("No chatroom name given");
+		}
+		ChatroomReference chatroom = this.chatroomRepository.findReferenceByChatroomName(chatroomName);
+		if (chatroom == null) {
+			throw new NotFoundException("Chatroom not found");
+		}
+		return chatroom;
+	}
+
 	/**
 	 * returns all listed chatroom whose tag or displayName match the search term and user is not a member of
 	 * @param searchTerm the search term
 	 * @return
 	 */
 	public List<Chatroom> listedChatroomSearch(String searchTerm, User user) {
+		if (chatroomSearchIndex.isReady()) {
+			return this.indexedChatroomSearch(searchTerm, user, true);
+		}
 		List<Chatroom> chatrooms = this.chatroomRepository.findByListed(true);
 		
 		// remove chatrooms user is member of
@@ -110,6 +222,9 @@ public class ChatroomService {
 	 * @return
 	 */
 	public List<Chatroom> allChatroomSearch(String searchTerm, User user) {
+		if (chatroomSearchIndex.isReady()) {
+			return this.indexedChatroomSearch(searchTerm, user, false);
+		}
 		List<Chatroom> chatrooms = this.chatroomRepository.findAll();
 
 		// remove chatrooms user is member of
@@ -118,6 +233,28 @@ public class ChatroomService {
 		return this.filterChatrooms(chatrooms, searchTerm);
 	}
 	
+	/**
+	 * search the chatroom search index, and only load the matching chatrooms
+	 * @param searchTerm the search term
+	 * @param user
+	 * @param listedOnly only return listed chatrooms
+	 * @return chatrooms matching the search term that user is not a member of
+	 */
+	private List<Chatroom> indexedChatroomSearch(String searchTerm, User user, boolean listedOnly) {
+		Set<Long> ids = this.chatroomSearchIndex.search(searchTerm, listedOnly);
+		List<Chatroom> chatrooms = new ArrayList<Chatroom>();
+		if (ids.isEmpty()) {
+			return chatrooms;
+		}
+		// load all matches at once
+		this.chatroomRepository.findAllById(ids).forEach(chatrooms::add);
+
+		// remove chatrooms user is member of
+		chatrooms.removeIf(x -> this.isMember(user, x));
+
+		return chatrooms;
+	}
+
 	/**
 	 * #TODO: ekki hægt að senda íslenska stafi sem url
 	 * Filters a list of chatrooms
@@ -128,14 +265,16 @@ public class ChatroomService {
 	 */
 	private List<Chatroom> filterChatrooms(List<Chatroom> chatrooms, String searchTerm){
 		 List<Chatroom> filteredChatrooms = new ArrayList<Chatroom>();
+		 // the search term is matched literally, it's not a regular expression
+		 String needle = searchTerm.toLowerCase();
 		 outer: for(Chatroom x : chatrooms) {
-			 if(x.getDisplayName().toLowerCase().matches(".*"+searchTerm.toLowerCase()+".*")) {
+			 if(x.getDisplayName().toLowerCase().contains(needle)) {
 				 filteredChatrooms.add(x);
 				 continue outer;
 			 }
 
 			 inner: for(Tag y : x.getTags()) {
-				 if(y.getName().toLowerCase().equals(searchTerm.toLowerCase())) {
+				 if(y.getName().toLowerCase().equals(needle)) {
 					 filteredChatrooms.add(x);
 					 continue outer;
 				 }
@@ -153,7 +292,12 @@ public class ChatroomService {
 	 */
 	@Transactional(readOnly = false)
 	public Chatroom saveChatroom(Chatroom chatroom) {
-		return chatroomRepository.save(chatroom);
+		// don't overwrite a newer time that hasn't been flushed yet with the loaded one
+		chatroom.setLastMessageReceived(
+				lastMessageReceivedBuffer.latest(chatroom.getChatroomName(), chatroom.getLastMessageReceived()));
+		Chatroom saved = chatroomRepository.save(chatroom);
+		chatroomSearchIndex.index(saved);
+		return saved;
 	}
 
 	/**
@@ -249,6 +393,8 @@ public class ChatroomService {
 
 		// save the chatroom, this will also save the user's new relations
 		Chatroom chatroom = chatroomRepository.save(newChatroom);
+		membershipIndex.grant(user, chatroom, MembershipIndex.OWNER);
+		chatroomSearchIndex.index(chatroom);
 		return chatroom;
 	}
 
@@ -460,12 +606,30 @@ public class ChatroomService {
 	 * @return true if user is a member, else false
 	 */
 	public boolean isMember(User user, Chatroom chatroom) {
+		if (useIndex(user, chatroom)) {
+			return membershipIndex.hasRole(user, chatroom, MembershipIndex.MEMBER);
+		}
 		List<Chatroom> chatrooms = user.getMemberOfChatrooms();
 		List<User> users = chatroom.getMembers();
 
 		return chatrooms.contains(chatroom) && users.contains(user);
 	}
 
+	/**
+	 * Check if a user is a member of a chatroom, without loading the relations
+	 * of either
+	 * 
+	 * @param user     the user's principal
+	 * @param chatroom the chat room's reference
+	 * @return true if user is a member, else false
+	 */
+	public boolean isMember(UserPrincipal user, ChatroomReference chatroom) {
+		if (membershipIndex.isReady()) {
+			return membershipIndex.hasRole(user.getId(), chatroom.getId(), MembershipIndex.MEMBER);
+		}
+		return chatroomRepository.hasMember(chatroom.getId(), user.getId());
+	}
+
 	/**
 	 * Check if a user is an administrator of a chatroom
 	 * 
@@ -474,6 +638,9 @@ public class ChatroomService {
 	 * @return true if user is an administrator, else false
 	 */
 	public boolean isAdmin(User user, Chatroom chatroom) {
+		if (useIndex(user, chatroom)) {
+			return membershipIndex.hasRole(user, chatroom, MembershipIndex.ADMIN);
+		}
 		List<Chatroom> chatrooms = user.getAdminOfChatrooms();
 		List<User> users = chatroom.getAdministrators();
 
@@ -488,6 +655,9 @@ public class ChatroomService {
 	 * @return true if user is owner, else false
 	 */
 	public boolean isOwner(User user, Chatroom chatroom) {
+		if (useIndex(user, chatroom)) {
+			return membershipIndex.hasRole(user, chatroom, MembershipIndex.OWNER);
+		}
 		List<Chatroom> chatrooms = user.getOwnedChatrooms();
 
 		return chatrooms.contains(chatroom) && chatroom.getOwner() == user;
@@ -502,6 +672,9 @@ public class ChatroomService {
 	 *         false
 	 */
 	public boolean memberInvitationSent(User user, Chatroom chatroom) {
+		if (useIndex(user, chatroom)) {
+			return membershipIndex.hasRole(user, chatroom, MembershipIndex.MEMBER_INVITE);
+		}
 		List<Chatroom> chatroomInvites = user.getChatroomInvites();
 		List<User> invitees = chatroom.getMemberInvitees();
 
@@ -517,12 +690,27 @@ public class ChatroomService {
 	 *         false
 	 */
 	public boolean adminInvitationSent(User user, Chatroom chatroom) {
+		if (useIndex(user, chatroom)) {
+			return membershipIndex.hasRole(user, chatroom, MembershipIndex.ADMIN_INVITE);
+		}
 		List<Chatroom> adminInvites = user.getChatroomAdminInvites();
 		List<User> admins = chatroom.getAdminInvitees();
 
 		return admins.contains(user) && adminInvites.contains(chatroom);
 	}
 
+	/**
+	 * Check if the role checks can be answered by the membership index, i.e. it
+	 * has been warmed and both entities have been saved.
+	 * 
+	 * @param user
+	 * @param chatroom
+	 * @return true if the index can be used, else false
+	 */
+	private boolean useIndex(User user, Chatroom chatroom) {
+		return membershipIndex.isReady() && user.getId() != null && chatroom.getId() != null;
+	}
+
 	/**
 	 * Delete chatroom <code>chatroom</code> and all its relations, also all
 	 * associated chat messages.
@@ -537,6 +725,8 @@ public class ChatroomService {
 		tagService.removeAllTagsFromChatroom(chatroom);
 		// delete the chatroom
 		chatroomRepository.delete(chatroom);
+		membershipIndex.removeChatroom(chatroom);
+		chatroomSearchIndex.remove(chatroom);
 	}
 
 	public Membership getUserMembershipOfChatroom(User user, Chatroom chatroom) throws NotFoundException {
@@ -575,6 +765,7 @@ public class ChatroomService {
 		chatroomRepository.save(chatroom);
 		// save the user to preserve relations
 		userRepository.save(user);
+		membershipIndex.grant(user, chatroom, MembershipIndex.MEMBER);
 	}
 
 	/**
@@ -591,6 +782,7 @@ public class ChatroomService {
 		users.add(user);
 		// save the chatroom, and its relations
 		chatroomRepository.save(chatroom);
+		membershipIndex.grant(user, chatroom, MembershipIndex.ADMIN);
 	}
 
 	/**
@@ -607,6 +799,7 @@ public class ChatroomService {
 		users.add(user);
 		// save the chatroom, and its relations
 		chatroomRepository.save(chatroom);
+		membershipIndex.grant(user, chatroom, MembershipIndex.MEMBER_INVITE);
 	}
 
 	/**
@@ -623,6 +816,7 @@ public class ChatroomService {
 		users.add(user);
 		// save the chatroom, and its relations
 		chatroomRepository.save(chatroom);
+		membershipIndex.grant(user, chatroom, MembershipIndex.ADMIN_INVITE);
 	}
 
 	/**
@@ -641,6 +835,7 @@ public class ChatroomService {
 			users.remove(user);
 			// save the chatroom, and update its relations
 			chatroomRepository.save(chatroom);
+			membershipIndex.revoke(user, chatroom, MembershipIndex.MEMBER_INVITE);
 		}
 	}
 
@@ -660,6 +855,7 @@ public class ChatroomService {
 			users.remove(user);
 			// save the chatroom, and update its relations
 			chatroomRepository.save(chatroom);
+			membershipIndex.revoke(user, chatroom, MembershipIndex.ADMIN_INVITE);
 		}
 	}
 
@@ -688,6 +884,7 @@ public class ChatroomService {
 			}
 			// save the chatroom, and update its relations
 			chatroomRepository.save(chatroom);
+			membershipIndex.revoke(user, chatroom, MembershipIndex.MEMBER);
 		}
 	}
 
@@ -707,6 +904,7 @@ public class ChatroomService {
 			users.remove(user);
 			// save the chatroom, and update its relations
 			chatroomRepository.save(chatroom);
+			membershipIndex.revoke(user, chatroom, MembershipIndex.ADMIN);
 		}
 	}
 
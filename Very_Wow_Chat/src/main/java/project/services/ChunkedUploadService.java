@@ -0,0 +1,325 @@
+package project.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import project.errors.BadRequestException;
+import project.errors.HttpException;
+import project.errors.NotFoundException;
+import project.errors.UnauthorizedException;
+import project.persistance.entities.BlobMetadata;
+
+/**
+ * Resumable uploads of large files in chunks.
+ *
+ * A client starts an upload with the size and SHA-256 of the file, then sends
+ * the file in chunks, each with the offset it starts at, in any order and in
+ * parallel, re-sending the ones that failed. Each chunk is written at its
+ * offset with a positional <code>FileChannel</code> write into a temporary
+ * file in the content directory. When the client finishes the upload the
+ * server verifies the SHA-256 of the whole file and moves it into the content
+ * addressable storage with an atomic rename.
+ *
+ * The upload session, and which chunks have been received, are kept in Redis
+ * and expire 30 minutes after the last chunk. The partly uploaded files of
+ * expired sessions are temporary files, and are deleted as such.
+ *
+ * Every request of an upload names the chat room it was started in, and the
+ * caller must check the user is still a member of it. A finished upload can
+ * be attached to one message by the user who uploaded it, within 30 minutes.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Service
+public class ChunkedUploadService {
+
+	private static final String KEY_PREFIX = "upload:";
+
+	private static final String CHUNKS_SUFFIX = ":chunks";
+
+	// upload:done:{username}:{sha256}, set when a user finishes an upload until it's attached
+	private static final String DONE_PREFIX = "upload:done:";
+
+	// chunk writes share a lock, finishing an upload takes it alone while it marks the upload
+	private static final ReadWriteLock[] LOCKS = new ReadWriteLock[64];
+
+	static {
+		for (int i = 0; i < LOCKS.length; i++) {
+			LOCKS[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	// largest file that can be uploaded
+	@Value("${content.upload.maxBytes:2147483648}")
+	private long maxBytes;
+
+	@Autowired
+	private TemporaryUserStorageService temporaryUserStorageService;
+
+	@Autowired
+	private ContentAddressableStorageService cass;
+
+	// uploads being verified and stored, chunks for them are refused
+	private final Set<String> finishing = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Starts an upload by user <code>username</code> to chat room
+	 * <code>chatroomName</code>. The caller must have checked the user is a
+	 * member of the chat room.
+	 *
+	 * @param username
+	 * @param chatroomName
+	 * @param size         Size of the file in bytes.
+	 * @param sha256       SHA-256 of the file, in hex.
+	 * @param filename     Name of the file, or <code>null</code> if unknown.
+	 * @return id of the upload
+	 * @throws BadRequestException if the size or hash isn't valid
+	 * @throws IOException
+	 */
+	public String create(String username, String chatroomName, long size, String sha256, String filename)
+			throws BadRequestException, IOException {
+		if (size <= 0 || size > maxBytes) {
+			throw new BadRequestException("Size must be between 1 and " + maxBytes + " bytes.");
+		}
+		String hash = sha256 == null ? null : sha256.toLowerCase();
+		if (!ContentAddressableStorageService.isValidHash(hash)) {
+			throw new BadRequestException("sha256 must be 64 hex characters.");
+		}
+
+		String uploadId = UUID.randomUUID().toString();
+		Files.createFile(cass.uploadPath(uploadId));
+
+		JSONObject session = new JSONObject();
+		session.put("username", username);
+		session.put("chatroomName", chatroomName);
+		session.put("size", size);
+		session.put("sha256", hash);
+		if (filename != null) {
+			session.put("filename", filename);
+		}
+		temporaryUserStorageService.insertString(KEY_PREFIX + uploadId, session.toString());
+		return uploadId;
+	}
+
+	/**
+	 * Writes the chunk <code>data</code> at <code>offset</code> of upload
+	 * <code>uploadId</code>. A chunk can be sent again, e.g. when the connection
+	 * dropped while sending it.
+	 *
+	 * @param username     User sending the chunk.
+	 * @param chatroomName Chat room the upload was started in.
+	 * @param uploadId
+	 * @param offset       Where in the file the chunk starts.
+	 * @param data         Content of the chunk.
+	 * @throws HttpException if there is no such upload, it's someone else's, or
+	 *                       the chunk goes past the end of the file
+	 * @throws IOException
+	 */
+	public void writeChunk(String username, String chatroomName, String uploadId, long offset, InputStream data)
+			throws HttpException, IOException {
+		Lock lock = lock(uploadId, false);
+		try {
+			JSONObject session = getSession(username, chatroomName, uploadId);
+			if (finishing.contains(uploadId)) {
+				throw new BadRequestException("The upload is being finished.");
+			}
+			long size = session.getLong("size");
+			if (offset < 0 || offset >= size) {
+				throw new BadRequestException("Offset must be between 0 and " + (size - 1) + ".");
+			}
+
+			long position = offset;
+			try (FileChannel channel = FileChannel.open(cass.uploadPath(uploadId), StandardOpenOption.WRITE)) {
+				ReadableByteChannel in = Channels.newChannel(data);
+				ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+				while (in.read(buffer) >= 0) {
+					buffer.flip();
+					if (position + buffer.remaining() > size) {
+						throw new BadRequestException("Chunk goes past the end of the file.");
+					}
+					while (buffer.hasRemaining()) {
+						position += channel.write(buffer, position);
+					}
+					buffer.clear();
+				}
+			} catch (NoSuchFileException e) {
+				throw new NotFoundException("Upload not found.");
+			}
+
+			if (position > offset) {
+				temporaryUserStorageService.addToSet(KEY_PREFIX + uploadId + CHUNKS_SUFFIX,
+						offset + ":" + (position - offset));
+				temporaryUserStorageService.refresh(KEY_PREFIX + uploadId);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the size of upload <code>uploadId</code> and the chunks received
+	 * so far, ordered by offset, so a client can resume it.
+	 *
+	 * @param username
+	 * @param chatroomName Chat room the upload was started in.
+	 * @param uploadId
+	 * @return <code>{size, chunks: [{offset, length}, ...]}</code>
+	 * @throws HttpException if there is no such upload or it's someone else's
+	 */
+	public Map<String, Object> getStatus(String username, String chatroomName, String uploadId)
+			throws HttpException {
+		JSONObject session = getSession(username, chatroomName, uploadId);
+		List<long[]> ranges = new ArrayList<>();
+		for (String chunk : temporaryUserStorageService.getSet(KEY_PREFIX + uploadId + CHUNKS_SUFFIX)) {
+			int colon = chunk.indexOf(':');
+			ranges.add(new long[] { Long.parseLong(chunk.substring(0, colon)),
+					Long.parseLong(chunk.substring(colon + 1)) });
+		}
+		ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+
+		List<Map<String, Long>> chunks = new ArrayList<>();
+		for (long[] range : ranges) {
+			Map<String, Long> chunk = new LinkedHashMap<>();
+			chunk.put("offset", range[0]);
+			chunk.put("length", range[1]);
+			chunks.add(chunk);
+		}
+		Map<String, Object> status = new LinkedHashMap<>();
+		status.put("size", session.getLong("size"));
+		status.put("chunks", chunks);
+		return status;
+	}
+
+	/**
+	 * Finishes upload <code>uploadId</code>: verifies the file has the SHA-256
+	 * the upload was started with and stores it. If it doesn't, or storing it
+	 * fails, the upload stays open so the client can re-send chunks or try
+	 * again.
+	 *
+	 * The upload is marked as finishing under its lock, which waits for the
+	 * chunks being written, and hashed after the lock is released, so uploads
+	 * sharing the lock can go on meanwhile.
+	 *
+	 * @param username
+	 * @param chatroomName Chat room the upload was started in.
+	 * @param uploadId
+	 * @return metadata of the stored file
+	 * @throws HttpException if there is no such upload, it's someone else's, it's
+	 *                       already being finished, or the file doesn't match
+	 *                       its hash
+	 * @throws IOException
+	 */
+	public BlobMetadata finish(String username, String chatroomName, String uploadId)
+			throws HttpException, IOException {
+		JSONObject session;
+		Lock lock = lock(uploadId, true);
+		try {
+			session = getSession(username, chatroomName, uploadId);
+			if (!finishing.add(uploadId)) {
+				throw new BadRequestException("The upload is already being finished.");
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			String sha256 = session.getString("sha256");
+			Path path = cass.uploadPath(uploadId);
+			if (!Files.exists(path) && cass.getMetadata(sha256) != null) {
+				// stored by an earlier attempt that failed before closing the session
+				return close(uploadId, sha256, session);
+			}
+			String hash = Files.exists(path) && Files.size(path) == session.getLong("size") ? cass.hashFile(path)
+					: null;
+			if (hash == null || !hash.equals(sha256)) {
+				throw new BadRequestException("The uploaded file doesn't match its SHA-256, re-send its chunks.");
+			}
+			cass.commit(path, hash);
+			return close(uploadId, hash, session);
+		} finally {
+			finishing.remove(uploadId);
+		}
+	}
+
+	/**
+	 * Takes the right of user <code>username</code> to attach content
+	 * <code>sha256</code>, which they finished uploading. Knowing a hash isn't
+	 * enough to attach the content, the user might not have access to any
+	 * message it's in.
+	 *
+	 * @param username
+	 * @param sha256   A valid hash.
+	 * @return <code>true</code> if the user finished uploading the content in
+	 *         the last 30 minutes and hasn't attached it since
+	 */
+	public boolean claimFinished(String username, String sha256) {
+		return temporaryUserStorageService.getAndDestroyString(DONE_PREFIX + username + ":" + sha256) != null;
+	}
+
+	/**
+	 * Records the metadata of the content upload <code>uploadId</code> stored,
+	 * lets its user attach it, and ends the upload.
+	 */
+	private BlobMetadata close(String uploadId, String hash, JSONObject session) throws IOException {
+		BlobMetadata metadata = cass.recordMetadata(hash, session.optString("filename", null));
+		temporaryUserStorageService.insertString(DONE_PREFIX + session.getString("username") + ":" + hash, uploadId);
+		temporaryUserStorageService.destroy(KEY_PREFIX + uploadId);
+		temporaryUserStorageService.destroy(KEY_PREFIX + uploadId + CHUNKS_SUFFIX);
+		return metadata;
+	}
+
+	/**
+	 * Returns the session of upload <code>uploadId</code>, if it belongs to
+	 * <code>username</code> and was started in chat room
+	 * <code>chatroomName</code>.
+	 */
+	private JSONObject getSession(String username, String chatroomName, String uploadId) throws HttpException {
+		String stored = temporaryUserStorageService.getString(KEY_PREFIX + uploadId);
+		if (stored == null) {
+			throw new NotFoundException("Upload not found.");
+		}
+		JSONObject session = new JSONObject(stored);
+		if (!session.getString("chatroomName").equals(chatroomName)) {
+			throw new NotFoundException("Upload not found.");
+		}
+		if (!session.getString("username").equals(username)) {
+			throw new UnauthorizedException("This upload belongs to someone else.");
+		}
+		return session;
+	}
+
+	/**
+	 * Locks upload <code>uploadId</code> in this process, so no chunk is being
+	 * written to the file while it's verified and moved into the store. The
+	 * file is on local disk, so every request of an upload is served here.
+	 */
+	private static Lock lock(String uploadId, boolean exclusive) {
+		ReadWriteLock lock = LOCKS[Math.floorMod(uploadId.hashCode(), LOCKS.length)];
+		Lock held = exclusive ? lock.writeLock() : lock.readLock();
+		held.lock();
+		return held;
+	}
+}
@@ -1,34 +1,228 @@
 package project.services;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.tika.Tika;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import project.persistance.entities.BlobMetadata;
+
 /**
+ * Stores files by the SHA-256 of their content, and serves them.
+ * 
+ * Files are stored as <code>ab/cd/abcd...</code> under the content directory,
+ * so directories stay small however big the store gets. Files are written to a temporary name and renamed into place.
  * 
+ * Since the content of a hash never changes, downloads are served with the hash
+ * as a strong ETag and as immutable, support single byte ranges (resumable
+ * downloads, seeking in video) and are sent with sendfile when the connector
+ * supports it, otherwise with <code>FileChannel.transferTo</code>.
  *
+ * @author Davíð Helgason (dah38@hi.is)
  */
 @Service
 public class ContentAddressableStorageService {
 
+	private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+	private static final String TEMPORARY_PREFIX = ".tmp-";
+
+	private static final Pattern SINGLE_RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+	// a year, the longest max-age caches are expected to honor
+	private static final String CACHE_CONTROL = "private, max-age=31536000, immutable";
+
+	// thread safe, and expensive to create
+	private static final Tika TIKA = new Tika();
+
 	@Value("${content.directory}")
 	private String fileDirectory;
-	
+
+	@Autowired
+	private BlobMetadataService blobMetadataService;
+
+	// files at least this large are handed to the connector's sendfile, if it has it
+	@Value("${content.sendfileThreshold:49152}")
+	private long sendfileThreshold;
+
+	/**
+	 * Returns true if <code>hash</code> looks like a hash of stored content, i.e.
+	 * 64 lower case hex characters, so it's safe to use in a path.
+	 * 
+	 * @param hash
+	 * @return
+	 */
+	public static boolean isValidHash(String hash) {
+		return hash != null && HASH.matcher(hash).matches();
+	}
+
+	/**
+	 * Returns true if <code>name</code> is the name of a file being written,
+	 * e.g. an unfinished upload, rather than of stored content.
+	 * 
+	 * @param name File name.
+	 * @return
+	 */
+	public static boolean isTemporaryName(String name) {
+		return name.startsWith(TEMPORARY_PREFIX);
+	}
+
+	/**
+	 * Returns the file with content <code>hash</code>, which might not exist.
+	 * 
+	 * Content is stored as <code>ab/cd/abcd...</code>, so no directory gets too
+	 * big. Files stored before that are directly in the content directory until
+	 * <code>ContentLayoutMigrator</code> moves them, so that's checked too.
+	 * 
+	 * @param hash A valid hash.
+	 * @return
+	 */
+	public File getFile(String hash) {
+		Path sharded = shardedPath(hash);
+		if (Files.exists(sharded)) {
+			return sharded.toFile();
+		}
+		Path legacy = legacyPath(hash);
+		if (Files.exists(legacy)) {
+			return legacy.toFile();
+		}
+		// it might have been migrated between the two checks
+		return sharded.toFile();
+	}
+
+	/**
+	 * Returns where content <code>hash</code> is stored in the sharded layout.
+	 * 
+	 * @param hash A valid hash.
+	 * @return
+	 */
+	public Path shardedPath(String hash) {
+		return Paths.get(fileDirectory, hash.substring(0, 2), hash.substring(2, 4), hash);
+	}
+
+	/**
+	 * Returns where content <code>hash</code> was stored before the layout was
+	 * sharded.
+	 * 
+	 * @param hash A valid hash.
+	 * @return
+	 */
+	public Path legacyPath(String hash) {
+		return Paths.get(fileDirectory, hash);
+	}
+
+	/**
+	 * @return the directory content is stored in
+	 */
+	public Path getRootDirectory() {
+		return Paths.get(fileDirectory);
+	}
+
+	/**
+	 * Writes the content <code>hash</code> to <code>response</code>, honoring
+	 * <code>If-None-Match</code>, <code>Range</code> and <code>If-Range</code>.
+	 * Sends 404 if there is no such content.
+	 * 
+	 * @param hash        Hash of the content.
+	 * @param contentType Content type to send, or <code>null</code> to not send
+	 *                    one.
+	 * @param request
+	 * @param response
+	 * @throws IOException
+	 */
+	public void serve(String hash, String contentType, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		if (!isValidHash(hash)) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Resource not found");
+			return;
+		}
+		File file = getFile(hash);
+		if (!file.isFile()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Resource not found");
+			return;
+		}
+		long length = file.length();
+
+		String etag = "\"" + hash + "\"";
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", CACHE_CONTROL);
+		response.setHeader("Accept-Ranges", "bytes");
+
+		if (matchesETag(request.getHeader("If-None-Match"), etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		long start = 0;
+		long end = length - 1;
+		String range = request.getHeader("Range");
+		String ifRange = request.getHeader("If-Range");
+		// a range for some other version of the content is ignored
+		if (range != null && (ifRange == null || ifRange.equals(etag))) {
+			long[] bounds = parseRange(range, length);
+			if (bounds != null && bounds.length == 0) {
+				response.setHeader("Content-Range", "bytes */" + length);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+			if (bounds != null) {
+				start = bounds[0];
+				end = bounds[1];
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+			}
+		}
+
+		if (contentType != null) {
+			response.setContentType(contentType);
+		}
+		long count = end - start + 1;
+		response.setContentLengthLong(count);
+		if ("HEAD".equals(request.getMethod()) || count <= 0) {
+			return;
+		}
+
+		boolean sendfile = Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"));
+		if (sendfile && count >= sendfileThreshold) {
+			// tomcat sends the file from the kernel once the handler returns
+			request.setAttribute("org.apache.tomcat.sendfile.filename", file.getCanonicalPath());
+			request.setAttribute("org.apache.tomcat.sendfile.start", start);
+			request.setAttribute("org.apache.tomcat.sendfile.end", end + 1);
+			return;
+		}
+		transfer(file.toPath(), start, count, response.getOutputStream());
+	}
+
 	/**
 	 * Returns true if successful, otherwise false
 	 * 
@@ -38,23 +232,17 @@ public class ContentAddressableStorageService {
 	 * @throws IOException 
 	 */
 	public boolean fetchAsServletOutputStream(String hash, ServletOutputStream servletOutputStream) throws IOException {
-		// TODO: ensure hash is legal
-		String path = Paths.get(fileDirectory, hash).toString();
-		
-		File file = new File(path);
-		
-		if (file.exists()) {
-			
-			InputStream is = new FileInputStream(file);
-		    // copy it to response's OutputStream
-			IOUtils.copy(is, servletOutputStream);
+		if (!isValidHash(hash)) {
+			return false;
+		}
+		File file = getFile(hash);
+		if (file.isFile()) {
+			transfer(file.toPath(), 0, file.length(), servletOutputStream);
 			return true;
 		}
-		
 		return false;
 	}
 	
-	
 	/**
 	 * 
 	 * @param hash
@@ -72,6 +260,26 @@ public class ContentAddressableStorageService {
 	}
 	
 	
+	/**
+	 * Returns the metadata of content <code>hash</code>. Files stored before
+	 * metadata was recorded get it recorded the first time they're asked for.
+	 * 
+	 * @param hash A valid hash.
+	 * @return the metadata, or <code>null</code> if there is no such content
+	 * @throws IOException
+	 */
+	public BlobMetadata getMetadata(String hash) throws IOException {
+		BlobMetadata metadata = blobMetadataService.get(hash);
+		if (metadata != null) {
+			return metadata;
+		}
+		File file = getFile(hash);
+		if (!file.isFile()) {
+			return null;
+		}
+		return recordMetadata(hash, file, null);
+	}
+
 	/**
 	 * 
 	 * @param bytes
@@ -80,6 +288,19 @@ public class ContentAddressableStorageService {
 	 * @throws IOException
 	 */
 	public String storeBytes(byte[] bytes) throws NoSuchAlgorithmException, IOException {
+		return storeBytes(bytes, null);
+	}
+
+	/**
+	 * Stores <code>bytes</code> and records their metadata.
+	 * 
+	 * @param bytes
+	 * @param filename Name of the uploaded file, or <code>null</code> if unknown.
+	 * @return SHA-256 of bytes
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 */
+	public String storeBytes(byte[] bytes, String filename) throws NoSuchAlgorithmException, IOException {
 		
 		final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
 		
@@ -88,13 +309,15 @@ public class ContentAddressableStorageService {
 		byte[] hash = messageDigest.digest();
 		
 		String hashDigest = toHex(hash);
-		String finalPath = Paths.get(fileDirectory, hashDigest).toString();
-		
-		File finalFile = new File(finalPath);
+		File finalFile = getFile(hashDigest);
 		
-		if (!finalFile.exists()) {
-			FileUtils.writeByteArrayToFile(finalFile, bytes);
+		// touched before deciding it's stored, so the garbage collector sees it as new
+		if (!touch(finalFile)) {
+			Path temporary = newTemporaryPath();
+			Files.write(temporary, bytes);
+			finalFile = commit(temporary, hashDigest);
 		}
+		recordMetadata(hashDigest, finalFile, filename);
 		
 		return hashDigest;
 	}
@@ -107,49 +330,293 @@ public class ContentAddressableStorageService {
 	 * @throws IOException
 	 */
 	public String storeInputStream(InputStream dataStream) throws NoSuchAlgorithmException, IOException {
-		
-		final MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
-		
-		// TODO: ensure temporaryName doesn't exist
+		return storeInputStream(dataStream, null);
+	}
+
+	/**
+	 * Stores the content of <code>dataStream</code> and records its metadata.
+	 * 
+	 * @param dataStream
+	 * @param filename   Name of the uploaded file, or <code>null</code> if
+	 *                   unknown.
+	 * @return SHA-256 of the content
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 */
+	public String storeInputStream(InputStream dataStream, String filename)
+			throws NoSuchAlgorithmException, IOException {
+		String hash;
+		try {
+			hash = storeStream(out -> IOUtils.copy(dataStream, out));
+		} finally {
+			IOUtils.closeQuietly(dataStream);
+		}
+		recordMetadata(hash, filename);
+		return hash;
+	}
+
+	/**
+	 * Stores whatever <code>writer</code> writes, hashing it on the way to disk,
+	 * so content of any size is stored with a fixed size buffer. The caller
+	 * should record its metadata with <code>recordMetadata</code>.
+	 * 
+	 * @param writer Writes the content.
+	 * @return SHA-256 of the content
+	 * @throws IOException if writing fails, nothing is stored then
+	 */
+	public String storeStream(ContentWriter writer) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
 
-		String temporaryName = getRandomName(64);
-		String pathToSaveFile = Paths.get(fileDirectory, temporaryName).toString();
+		Path temporary = newTemporaryPath();
+		try (OutputStream file = Files.newOutputStream(temporary, StandardOpenOption.CREATE_NEW);
+				OutputStream out = new DigestOutputStream(new BufferedOutputStream(file, 8 * 1024), messageDigest)) {
+			writer.writeTo(out);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
 
-		File targetFile = new File(pathToSaveFile);
+		String hashDigest = toHex(messageDigest.digest());
+		commit(temporary, hashDigest);
+		return hashDigest;
+	}
 
-		OutputStream outStream = new FileOutputStream(targetFile);
+	/**
+	 * Writes content to be stored, see <code>storeStream</code>.
+	 */
+	@FunctionalInterface
+	public interface ContentWriter {
+		void writeTo(OutputStream out) throws IOException;
+	}
 
-		byte[] buffer = new byte[8 * 1024];
-		int bytesRead;
-		while ((bytesRead = dataStream.read(buffer)) != -1) {
-			outStream.write(buffer, 0, bytesRead);
-			messageDigest.update(buffer, 0, bytesRead);
+	/**
+	 * Moves the fully written <code>temporary</code> file into place as content
+	 * <code>hash</code>, or deletes it if the content is already stored. The
+	 * move is atomic, so readers never see a partly written file.
+	 * 
+	 * The caller must have made sure <code>hash</code> is the hash of the
+	 * content.
+	 * 
+	 * @return the stored file
+	 */
+	public File commit(Path temporary, String hash) throws IOException {
+		File existing = getFile(hash);
+		// touched before the copy is dropped, if the garbage collector took it meanwhile it's stored again
+		if (touch(existing)) {
+			Files.delete(temporary);
+			return existing;
 		}
-		IOUtils.closeQuietly(dataStream);
-		IOUtils.closeQuietly(outStream);
+		Path target = shardedPath(hash);
+		Files.createDirectories(target.getParent());
+		// if the same content is stored concurrently the rename just replaces it
+		Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+		return target.toFile();
+	}
 
-		byte[] hash = messageDigest.digest();
-		
-		String hashDigest = toHex(hash);
-		
-		
-		String finalPathToSave = Paths.get(fileDirectory, hashDigest).toString();
-		
-		// Rename file
-		
-		// File (or directory) with old name
-		File file = new File(pathToSaveFile);
+	/**
+	 * Marks content <code>hash</code>, which is about to be referenced again, as
+	 * just stored, so <code>ContentGarbageCollector</code> keeps it until the
+	 * message referencing it has been saved.
+	 * 
+	 * @param hash A valid hash.
+	 * @return <code>false</code> if the content isn't stored, e.g. the garbage
+	 *         collector is deleting it
+	 */
+	public boolean touch(String hash) {
+		return touch(getFile(hash));
+	}
 
-		// File (or directory) with new name
-		File file2 = new File(finalPathToSave);
-		
-		if (file2.exists()) {
-			file.delete();
-		} else {
-			file.renameTo(file2);
+	/**
+	 * Marks stored content as just stored again, so
+	 * <code>ContentGarbageCollector</code> treats it as new until the message
+	 * referencing it has been saved.
+	 */
+	private static boolean touch(File file) {
+		try {
+			Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (IOException e) {
+			// read only, the content is still there
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the name stored content <code>content</code> is renamed to while
+	 * the garbage collector deletes it. It's a temporary name, so content stored
+	 * meanwhile is stored again, and a left over file is deleted as temporary.
+	 * 
+	 * @param content Path of stored content.
+	 * @return
+	 */
+	public static Path condemnedPath(Path content) {
+		return content.resolveSibling(TEMPORARY_PREFIX + "gc-" + content.getFileName());
+	}
+
+	/**
+	 * Returns a new path for a file being written, in the same file system as the
+	 * store so it can be renamed into place. Its name can't be mistaken for a
+	 * hash.
+	 */
+	private Path newTemporaryPath() {
+		return Paths.get(fileDirectory, TEMPORARY_PREFIX + getRandomName(32));
+	}
+
+	/**
+	 * Returns where the chunks of upload <code>uploadId</code> are put together.
+	 * It's a temporary file, so it's in the same file system as the store and
+	 * can be committed once the upload is complete.
+	 * 
+	 * @param uploadId Id of the upload, letters, digits and dashes only.
+	 * @return
+	 */
+	public Path uploadPath(String uploadId) {
+		return Paths.get(fileDirectory, TEMPORARY_PREFIX + "upload-" + uploadId);
+	}
+
+	/**
+	 * Computes the SHA-256 of file <code>path</code>.
+	 * 
+	 * @param path
+	 * @return SHA-256 of the file's content, in hex
+	 * @throws IOException
+	 */
+	public String hashFile(Path path) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				messageDigest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return toHex(messageDigest.digest());
+	}
+
+	/**
+	 * Records the metadata of stored content <code>hash</code>, unless it's been
+	 * recorded already. The content type is detected once here instead of on
+	 * every download.
+	 * 
+	 * @param hash     A valid hash of stored content.
+	 * @param filename Name of the uploaded file, or <code>null</code> if unknown.
+	 * @return the recorded metadata
+	 * @throws IOException
+	 */
+	public BlobMetadata recordMetadata(String hash, String filename) throws IOException {
+		return recordMetadata(hash, getFile(hash), filename);
+	}
+
+	private BlobMetadata recordMetadata(String hash, File file, String filename) throws IOException {
+		BlobMetadata existing = blobMetadataService.get(hash);
+		if (existing != null) {
+			return existing;
+		}
+		String mimeType;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			mimeType = TIKA.detect(in, filename);
+		}
+		return blobMetadataService.recordIfAbsent(
+				new BlobMetadata(hash, mimeType, file.length(), filename, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Copies <code>count</code> bytes of <code>path</code> from
+	 * <code>start</code> to <code>out</code> with
+	 * <code>FileChannel.transferTo</code>, so no buffer is allocated per request.
+	 */
+	private static void transfer(Path path, long start, long count, OutputStream out) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			WritableByteChannel target = Channels.newChannel(out);
+			long position = start;
+			long remaining = count;
+			while (remaining > 0) {
+				long sent = channel.transferTo(position, remaining, target);
+				if (sent <= 0) {
+					// the file got shorter
+					break;
+				}
+				position += sent;
+				remaining -= sent;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the <code>If-None-Match</code> header <code>header</code>
+	 * matches <code>etag</code>.
+	 */
+	private static boolean matchesETag(String header, String etag) {
+		if (header == null) {
+			return false;
+		}
+		for (String candidate : header.split(",")) {
+			String tag = candidate.trim();
+			// weak comparison, W/"x" matches "x"
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Parses a single byte range, e.g. <code>bytes=0-499</code>,
+	 * <code>bytes=500-</code> or <code>bytes=-500</code>, of content of
+	 * <code>length</code> bytes.
+	 * 
+	 * @return <code>{first, last}</code>, an empty array if the range can't be
+	 *         satisfied, or <code>null</code> if the header should be ignored
+	 *         (malformed or several ranges), in which case everything is sent.
+	 */
+	private static long[] parseRange(String header, long length) {
+		Matcher matcher = SINGLE_RANGE.matcher(header.trim());
+		if (!matcher.matches()) {
+			return null;
+		}
+		String first = matcher.group(1);
+		String last = matcher.group(2);
+		try {
+			if (first.isEmpty()) {
+				if (last.isEmpty()) {
+					return null;
+				}
+				// the last n bytes
+				long suffix = Long.parseLong(last);
+				if (suffix == 0 || length == 0) {
+					return new long[0];
+				}
+				return new long[] { Math.max(0, length - suffix), length - 1 };
+			}
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+			if (!last.isEmpty() && Long.parseLong(last) < start) {
+				return null;
+			}
+			if (start >= length) {
+				return new long[0];
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException e) {
+			// too many digits for a long
+			return null;
 		}
-		
-		return hashDigest;
 	}
 
 	/**
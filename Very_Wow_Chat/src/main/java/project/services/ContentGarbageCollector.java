@@ -0,0 +1,260 @@
+package project.services;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import project.persistance.repositories.mongo.ChatMessageRepository;
+
+/**
+ * Deletes stored content no chat message references any more, e.g. after a
+ * chat room and its messages were deleted, and files left behind by uploads
+ * that were never finished.
+ *
+ * Mark and sweep: the hashes referenced by messages are collected with an
+ * aggregation over <code>resources</code> of each message collection, stored a
+ * document each or in buckets, then the content directory is
+ * walked and every file that isn't referenced, and is older than
+ * <code>content.gc.graceMillis</code>, is deleted along with its metadata. The
+ * grace period covers content stored after the mark whose message hasn't been
+ * saved yet, storing content that already exists makes it new again. Content
+ * is renamed to a temporary name before it's deleted and kept if it was made
+ * new meanwhile, from then on storing it stores it again.
+ *
+ * Runs every <code>content.gc.intervalMillis</code> on its own thread, looking
+ * at <code>content.gc.batchSize</code> files at a time with a pause in
+ * between, so it doesn't compete with downloads for the disk.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Component
+public class ContentGarbageCollector {
+
+	private static final Logger logger = LoggerFactory.getLogger(ContentGarbageCollector.class);
+
+	private static final Pattern SHARD = Pattern.compile("[0-9a-f]{2}");
+
+	@Value("${content.gc.enabled:true}")
+	private boolean enabled;
+
+	@Value("${content.gc.initialDelayMillis:600000}")
+	private long initialDelayMillis;
+
+	@Value("${content.gc.intervalMillis:86400000}")
+	private long intervalMillis;
+
+	// unreferenced content younger than this is kept
+	@Value("${content.gc.graceMillis:86400000}")
+	private long graceMillis;
+
+	// files looked at before pausing
+	@Value("${content.gc.batchSize:500}")
+	private int batchSize;
+
+	@Value("${content.gc.batchPauseMillis:200}")
+	private long batchPauseMillis;
+
+	@Autowired
+	private ContentAddressableStorageService cass;
+
+	@Autowired
+	private BlobMetadataService blobMetadataService;
+
+	@Autowired
+	private ChatMessageRepository chatMessageRepository;
+
+	private volatile boolean stopped = false;
+
+	private Thread worker;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public synchronized void start() {
+		if (!enabled || worker != null) {
+			return;
+		}
+		worker = new Thread(this::run, "content-gc");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	@PreDestroy
+	public synchronized void stop() throws InterruptedException {
+		stopped = true;
+		if (worker != null) {
+			worker.interrupt();
+			worker.join(10000);
+		}
+	}
+
+	private void run() {
+		try {
+			Thread.sleep(initialDelayMillis);
+			while (!stopped) {
+				collect();
+				Thread.sleep(intervalMillis);
+			}
+		} catch (InterruptedException e) {
+			// stopping
+		}
+	}
+
+	/**
+	 * Runs one mark and sweep over the content directory.
+	 *
+	 * @throws InterruptedException if stopped meanwhile
+	 */
+	public void collect() throws InterruptedException {
+		Path root = cass.getRootDirectory();
+		if (!Files.isDirectory(root)) {
+			return;
+		}
+		long started = System.currentTimeMillis();
+		// anything newer might be referenced by a message that isn't saved yet
+		long cutoff = started - graceMillis;
+
+		Set<String> live;
+		try {
+			live = chatMessageRepository.findReferencedResources();
+		} catch (DataAccessException e) {
+			logger.warn("Content garbage collection skipped, could not collect referenced content", e);
+			return;
+		}
+
+		Sweep sweep = new Sweep(live, cutoff);
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+			for (Path entry : entries) {
+				String name = entry.getFileName().toString();
+				if (isShard(name) && Files.isDirectory(entry)) {
+					sweepShard(entry, 2, sweep);
+				} else {
+					// content in the old flat layout and unfinished uploads
+					sweep.visit(entry);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Content garbage collection failed", e);
+		}
+		logger.info("Content garbage collection looked at {} files and deleted {} ({} bytes) in {} ms", sweep.visited,
+				sweep.deleted, sweep.freed, System.currentTimeMillis() - started);
+	}
+
+	/**
+	 * Sweeps shard directory <code>directory</code>, which has
+	 * <code>depth</code> levels of shards below it including itself.
+	 */
+	private void sweepShard(Path directory, int depth, Sweep sweep) throws IOException, InterruptedException {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				if (depth > 1) {
+					if (isShard(entry.getFileName().toString()) && Files.isDirectory(entry)) {
+						sweepShard(entry, depth - 1, sweep);
+					}
+				} else {
+					sweep.visit(entry);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// removed meanwhile
+		}
+	}
+
+	private static boolean isShard(String name) {
+		return SHARD.matcher(name).matches();
+	}
+
+	/**
+	 * State of one sweep.
+	 */
+	private class Sweep {
+
+		private final Set<String> live;
+		private final long cutoff;
+		private long visited = 0;
+		private long deleted = 0;
+		private long freed = 0;
+
+		Sweep(Set<String> live, long cutoff) {
+			this.live = live;
+			this.cutoff = cutoff;
+		}
+
+		/**
+		 * Deletes file <code>path</code> if it's content no message references or
+		 * an abandoned temporary file, and it's older than the grace period.
+		 */
+		void visit(Path path) throws InterruptedException {
+			if (stopped) {
+				throw new InterruptedException();
+			}
+			if (++visited % batchSize == 0) {
+				Thread.sleep(batchPauseMillis);
+			}
+
+			String name = path.getFileName().toString();
+			boolean content = ContentAddressableStorageService.isValidHash(name);
+			if (!content && !ContentAddressableStorageService.isTemporaryName(name)) {
+				return;
+			}
+			if (content && live.contains(name)) {
+				return;
+			}
+			try {
+				if (!Files.isRegularFile(path) || Files.getLastModifiedTime(path).toMillis() >= cutoff) {
+					return;
+				}
+				long size = Files.size(path);
+				if (content) {
+					path = condemn(path);
+					if (path == null) {
+						return;
+					}
+					// metadata first, a file left without it just gets it recorded again
+					blobMetadataService.delete(name);
+				}
+				if (Files.deleteIfExists(path)) {
+					deleted++;
+					freed += size;
+				}
+			} catch (NoSuchFileException e) {
+				// moved by the layout migration, or deleted, meanwhile
+			} catch (IOException | DataAccessException e) {
+				logger.warn("Could not delete " + path, e);
+			}
+		}
+
+		/**
+		 * Renames content <code>path</code> out of the store, so it can't be
+		 * touched any more, and checks it wasn't touched before that. Touched
+		 * content is renamed back.
+		 *
+		 * @return the new path, or <code>null</code> if it's kept
+		 */
+		private Path condemn(Path path) throws IOException {
+			Path condemned = ContentAddressableStorageService.condemnedPath(path);
+			Files.move(path, condemned, StandardCopyOption.ATOMIC_MOVE);
+			if (Files.getLastModifiedTime(condemned).toMillis() < cutoff) {
+				return condemned;
+			}
+			// stored again or attached since it was looked at, if it was stored again
+			// after the rename the new copy has the same content
+			Files.move(condemned, path, StandardCopyOption.ATOMIC_MOVE);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package project.services;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Moves content stored directly in the content directory (the old flat layout)
+ * into the sharded <code>ab/cd/hash</code> layout, in the background while the
+ * server runs. Until a file has been moved,
+ * <code>ContentAddressableStorageService</code> still finds it in the old
+ * place.
+ *
+ * Starts when the application is ready, unless
+ * <code>content.migrateLayout</code> is false, and stops when it's done or the
+ * application stops. It's safe to interrupt, the next start continues where it
+ * left off.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Component
+public class ContentLayoutMigrator {
+
+	private static final Logger logger = LoggerFactory.getLogger(ContentLayoutMigrator.class);
+
+	@Value("${content.migrateLayout:true}")
+	private boolean enabled;
+
+	@Autowired
+	private ContentAddressableStorageService cass;
+
+	private volatile boolean stopped = false;
+
+	private Thread worker;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public synchronized void start() {
+		if (!enabled || worker != null) {
+			return;
+		}
+		worker = new Thread(this::migrate, "content-layout-migrator");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	@PreDestroy
+	public synchronized void stop() throws InterruptedException {
+		stopped = true;
+		if (worker != null) {
+			worker.join(10000);
+		}
+	}
+
+	/**
+	 * Moves every file in the content directory whose name is a hash into the
+	 * sharded layout.
+	 */
+	private void migrate() {
+		Path root = cass.getRootDirectory();
+		if (!Files.isDirectory(root)) {
+			return;
+		}
+		long moved = 0;
+		// hash names only, so shard directories and files being written are skipped
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(root,
+				path -> ContentAddressableStorageService.isValidHash(path.getFileName().toString())
+						&& Files.isRegularFile(path))) {
+			for (Path legacy : files) {
+				if (stopped) {
+					logger.info("Content layout migration stopped after moving {} files", moved);
+					return;
+				}
+				if (move(legacy)) {
+					moved++;
+					if (moved % 10000 == 0) {
+						logger.info("Content layout migration has moved {} files", moved);
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Content layout migration failed after moving " + moved + " files", e);
+			return;
+		}
+		if (moved > 0) {
+			logger.info("Content layout migration done, moved {} files", moved);
+		}
+	}
+
+	private boolean move(Path legacy) {
+		String hash = legacy.getFileName().toString();
+		Path target = cass.shardedPath(hash);
+		try {
+			Files.createDirectories(target.getParent());
+			if (Files.exists(target)) {
+				// stored again since the new layout, same content
+				Files.delete(legacy);
+			} else {
+				// atomic, readers find it in one place or the other
+				Files.move(legacy, target, StandardCopyOption.ATOMIC_MOVE);
+			}
+			return true;
+		} catch (NoSuchFileException e) {
+			// deleted meanwhile
+			return false;
+		} catch (IOException e) {
+			logger.warn("Could not move " + legacy + " to " + target, e);
+			return false;
+		}
+	}
+}
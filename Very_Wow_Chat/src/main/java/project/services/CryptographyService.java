@@ -1,12 +1,20 @@
 package project.services;
 
+import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 import javax.annotation.PostConstruct;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -18,8 +26,30 @@ public class CryptographyService {
 	@Value("${cryptography.storage.salt}")
 	private String salt;
 
-	private static String spw;
-	private static String ss;
+	/*
+	 * The format of the ciphertexts is the same as Spring's
+	 * Encryptors.text(password, salt), i.e. hex(iv + AES/CBC(plaintext)) with a
+	 * key derived with PBKDF2, so messages encrypted before are still readable.
+	 */
+	private static final String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA1";
+	private static final int KEY_DERIVATION_ITERATIONS = 1024;
+	private static final int KEY_LENGTH = 256;
+	private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+	private static final int IV_LENGTH = 16;
+
+	// derived once in init(), deriving it is what makes encryption slow
+	private static SecretKeySpec secretKey;
+
+	private static final SecureRandom IV_GENERATOR = new SecureRandom();
+
+	// Cipher objects are not thread safe, so every thread gets its own
+	private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance(CIPHER_TRANSFORMATION);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to create cipher " + CIPHER_TRANSFORMATION, e);
+		}
+	});
 
 	private static final String PASSWORD_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789!@#$%&*()-_=+[{]}|;:,<.>?";
 
@@ -27,13 +57,29 @@ public class CryptographyService {
 
 	/*
 	 * After Spring has populated `password` and `salt` (and constructed this
-	 * object), `init` is invoked and `spw` and `ss` are populated so this service
+	 * object), `init` is invoked and the secret key is derived so this service
 	 * can be access by regular Java classes (not Spring).
 	 */
 	@PostConstruct
 	public void init() {
-		spw = password;
-		ss = salt;
+		initialize(password, salt);
+	}
+
+	/**
+	 * Derives the secret key from <code>password</code> and <code>salt</code>.
+	 * 
+	 * @param password Storage password.
+	 * @param salt     Hex encoded salt.
+	 */
+	static void initialize(String password, String salt) {
+		try {
+			PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(), Hex.decode(salt), KEY_DERIVATION_ITERATIONS,
+					KEY_LENGTH);
+			byte[] key = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM).generateSecret(keySpec).getEncoded();
+			secretKey = new SecretKeySpec(key, "AES");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to derive storage key", e);
+		}
 	}
 
 	/**
@@ -70,7 +116,18 @@ public class CryptographyService {
 	 * @return ciphertext
 	 */
 	public static String getCiphertext(String plaintext) {
-		return Encryptors.text(spw, ss).encrypt(plaintext);
+		byte[] iv = new byte[IV_LENGTH];
+		IV_GENERATOR.nextBytes(iv);
+		try {
+			Cipher cipher = CIPHERS.get();
+			cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
+			byte[] encrypted = cipher.doFinal(Utf8.encode(plaintext));
+			byte[] ivAndEncrypted = Arrays.copyOf(iv, IV_LENGTH + encrypted.length);
+			System.arraycopy(encrypted, 0, ivAndEncrypted, IV_LENGTH, encrypted.length);
+			return new String(Hex.encode(ivAndEncrypted));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to encrypt", e);
+		}
 	}
 
 	/**
@@ -80,6 +137,14 @@ public class CryptographyService {
 	 * @return plaintext
 	 */
 	public static String getPlaintext(String ciphertext) {
-		return Encryptors.text(spw, ss).decrypt(ciphertext);
+		byte[] ivAndEncrypted = Hex.decode(ciphertext);
+		try {
+			Cipher cipher = CIPHERS.get();
+			cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(ivAndEncrypted, 0, IV_LENGTH));
+			byte[] decrypted = cipher.doFinal(ivAndEncrypted, IV_LENGTH, ivAndEncrypted.length - IV_LENGTH);
+			return Utf8.decode(decrypted);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to decrypt", e);
+		}
 	}
 }
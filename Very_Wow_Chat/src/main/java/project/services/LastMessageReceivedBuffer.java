@@ -0,0 +1,109 @@
+package project.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import project.persistance.repositories.ChatroomRepository;
+
+/**
+ * Keeps the time of the latest message of each chat room in memory and writes
+ * them to Neo4j in batches, so posting a message doesn't write the chat room
+ * graph every time.
+ *
+ * Updates to the same chat room between flushes are coalesced into the latest
+ * one. Until a value has been flushed it's only in memory, so
+ * <code>ChatroomService</code> reads it through <code>latest()</code> before
+ * chat rooms are returned or saved.
+ *
+ * @author Vilhelml
+ */
+@Component
+public class LastMessageReceivedBuffer {
+
+	private static final Logger logger = LoggerFactory.getLogger(LastMessageReceivedBuffer.class);
+
+	@Autowired
+	private ChatroomRepository chatroomRepository;
+
+	// chat room name -> time of the latest message not yet written to Neo4j
+	private final Map<String, Long> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * Writes what's left when the application stops.
+	 */
+	@PreDestroy
+	public void destroy() {
+		flush();
+	}
+
+	/**
+	 * Records that chat room <code>chatroomName</code> received a message at
+	 * <code>timestamp</code>.
+	 *
+	 * @param chatroomName
+	 * @param timestamp    milliseconds since epoch
+	 */
+	public void touch(String chatroomName, long timestamp) {
+		pending.merge(chatroomName, timestamp, Math::max);
+	}
+
+	/**
+	 * Returns the time of the latest message of chat room
+	 * <code>chatroomName</code>, whichever is later of <code>stored</code> and
+	 * the value waiting to be written.
+	 *
+	 * @param chatroomName
+	 * @param stored       the value read from Neo4j, may be null
+	 * @return
+	 */
+	public Long latest(String chatroomName, Long stored) {
+		if (chatroomName == null) {
+			return stored;
+		}
+		Long buffered = pending.get(chatroomName);
+		if (buffered == null) {
+			return stored;
+		}
+		return stored == null ? buffered : Math.max(stored, buffered);
+	}
+
+	/**
+	 * Writes the pending times to Neo4j in one query. Values are only dropped
+	 * from memory once they are written, and only if no later message came in
+	 * meanwhile, so a failed flush is retried the next time.
+	 */
+	@Scheduled(fixedDelayString = "${chatroom.lastMessageReceived.flushIntervalMillis:2000}")
+	public synchronized void flush() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		Map<String, Long> snapshot = new HashMap<>(pending);
+		List<Map<String, Object>> updates = new ArrayList<>(snapshot.size());
+		for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+			Map<String, Object> update = new HashMap<>();
+			update.put("chatroomName", entry.getKey());
+			update.put("timestamp", entry.getValue());
+			updates.add(update);
+		}
+		try {
+			chatroomRepository.updateLastMessageReceived(updates);
+		} catch (RuntimeException e) {
+			logger.warn("Could not write the time of the latest messages of {} chat rooms", snapshot.size(), e);
+			return;
+		}
+		for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+			pending.remove(entry.getKey(), entry.getValue());
+		}
+	}
+}
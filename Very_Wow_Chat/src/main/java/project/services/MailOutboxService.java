@@ -0,0 +1,237 @@
+package project.services;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.xml.bind.DatatypeConverter;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands.SetOption;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import project.pojo.Mailer;
+
+/**
+ * Sends emails in the background, so registering or resetting a password
+ * doesn't wait for the (possibly sleeping) email server.
+ *
+ * Emails are put in an outbox in Redis, so they survive a restart, and a
+ * bounded pool of workers sends them. The keys are:
+ * <ul>
+ * <li><code>mail:outbox</code> list of emails waiting to be sent.</li>
+ * <li><code>mail:outbox:processing</code> list of emails being sent, moved
+ * back to the outbox on startup in case the server died while sending.</li>
+ * <li><code>mail:outbox:retry</code> sorted set of failed emails, scored by
+ * when to try again (exponential backoff).</li>
+ * <li><code>mail:outbox:dead</code> list of emails that failed too often.</li>
+ * <li><code>mail:outbox:dedupe:{hash}</code> marks that the same email was
+ * recently queued for the same recipient, so double submits send it once.</li>
+ * </ul>
+ *
+ * The jobs are encrypted with <code>CryptographyService</code>, like the rest
+ * of the user data we store.
+ *
+ * @author Róman(ror9@hi.is)
+ */
+@Service
+public class MailOutboxService {
+
+	private static final Logger logger = LoggerFactory.getLogger(MailOutboxService.class);
+
+	private static final String OUTBOX = "mail:outbox";
+	private static final String PROCESSING = "mail:outbox:processing";
+	private static final String RETRY = "mail:outbox:retry";
+	private static final String DEAD = "mail:outbox:dead";
+	private static final String DEDUPE_PREFIX = "mail:outbox:dedupe:";
+
+	@Value("${email.server.url}")
+	private String emailServerUrl;
+
+	@Value("${email.server.secretkey}")
+	private String emailServerSecretKey;
+
+	// how many emails are sent at the same time
+	@Value("${email.outbox.workers:4}")
+	private int workers;
+
+	// how many attempts before an email is given up on
+	@Value("${email.outbox.maxAttempts:6}")
+	private int maxAttempts;
+
+	// delay before the first retry, doubled for every attempt after that
+	@Value("${email.outbox.retryDelayMillis:5000}")
+	private long retryDelayMillis;
+
+	// only one email of a kind is sent to a recipient within this window
+	@Value("${email.outbox.dedupeSeconds:600}")
+	private long dedupeSeconds;
+
+	@Autowired
+	private StringRedisTemplate redisTemplate;
+
+	private ThreadPoolExecutor executor;
+
+	@PostConstruct
+	public void init() {
+		workers = Math.max(1, workers);
+		// the queue is small on purpose, emails that don't fit stay in Redis
+		executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(workers * 2));
+	}
+
+	@PreDestroy
+	public void destroy() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Emails that were being sent when the server stopped are put back in the
+	 * outbox.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void recover() {
+		try {
+			while (redisTemplate.opsForList().rightPopAndLeftPush(PROCESSING, OUTBOX) != null) {
+				// move them all
+			}
+		} catch (DataAccessException e) {
+			logger.warn("Could not recover the mail outbox", e);
+		}
+	}
+
+	/**
+	 * Queues an email to be sent to <code>recipientEmail</code>, unless an email
+	 * of the same kind was queued for them recently. The content isn't part of
+	 * that, e.g. every password reset email has a new key.
+	 *
+	 * @param recipientEmail who to send email to
+	 * @param kind           what the email is for, e.g. <code>password_reset</code>
+	 * @param emailContent   contents of email
+	 */
+	public void enqueue(String recipientEmail, String kind, String emailContent) {
+		String dedupeKey = DEDUPE_PREFIX + hash(recipientEmail + "\n" + kind);
+		// SET NX EX, so the marker can't be left behind without an expiry
+		Boolean first = redisTemplate.execute((RedisConnection connection) -> connection.set(
+				dedupeKey.getBytes(StandardCharsets.UTF_8), new byte[] { '1' },
+				Expiration.seconds(dedupeSeconds), SetOption.ifAbsent()));
+		if (first == null || !first) {
+			logger.info("Dropping duplicate email");
+			return;
+		}
+
+		JSONObject job = new JSONObject();
+		job.put("id", UUID.randomUUID().toString());
+		job.put("toMail", recipientEmail);
+		job.put("content", emailContent);
+		job.put("attempts", 0);
+		redisTemplate.opsForList().leftPush(OUTBOX, CryptographyService.getCiphertext(job.toString()));
+	}
+
+	/**
+	 * Moves emails whose retry time has come back to the outbox, and hands
+	 * emails from the outbox to the workers while they have room.
+	 */
+	@Scheduled(fixedDelayString = "${email.outbox.pollIntervalMillis:1000}")
+	public void drain() {
+		try {
+			requeueDueRetries();
+			while (executor.getQueue().remainingCapacity() > 0) {
+				String job = redisTemplate.opsForList().rightPopAndLeftPush(OUTBOX, PROCESSING);
+				if (job == null) {
+					return;
+				}
+				try {
+					executor.execute(() -> deliver(job));
+				} catch (RejectedExecutionException e) {
+					// shutting down, it will be recovered on the next start
+					return;
+				}
+			}
+		} catch (DataAccessException e) {
+			logger.warn("Could not drain the mail outbox", e);
+		}
+	}
+
+	private void requeueDueRetries() {
+		Set<String> due = redisTemplate.opsForZSet().rangeByScore(RETRY, 0, System.currentTimeMillis());
+		if (due == null) {
+			return;
+		}
+		for (String job : due) {
+			// only whoever removes it from the retry set puts it in the outbox
+			Long removed = redisTemplate.opsForZSet().remove(RETRY, job);
+			if (removed != null && removed > 0) {
+				redisTemplate.opsForList().leftPush(OUTBOX, job);
+			}
+		}
+	}
+
+	/**
+	 * Sends the email <code>encryptedJob</code>, and schedules a retry if that
+	 * fails. A job that can't be decrypted or parsed is dropped, retrying it
+	 * would never help.
+	 */
+	private void deliver(String encryptedJob) {
+		try {
+			JSONObject job;
+			try {
+				job = new JSONObject(CryptographyService.getPlaintext(encryptedJob));
+			} catch (RuntimeException e) {
+				logger.error("Dropping an email job that can't be read", e);
+				return;
+			}
+			send(job, encryptedJob);
+		} finally {
+			redisTemplate.opsForList().remove(PROCESSING, 1, encryptedJob);
+		}
+	}
+
+	private void send(JSONObject job, String encryptedJob) {
+		try {
+			new Mailer(job.getString("toMail"), job.getString("content"), emailServerUrl, emailServerSecretKey)
+					.tryToSend();
+		} catch (Exception e) {
+			int attempts = job.getInt("attempts") + 1;
+			if (attempts >= maxAttempts) {
+				logger.error("Giving up on email " + job.getString("id") + " after " + attempts + " attempts", e);
+				redisTemplate.opsForList().leftPush(DEAD, encryptedJob);
+			} else {
+				long delay = retryDelayMillis << (attempts - 1);
+				logger.warn("Could not send email " + job.getString("id") + ", retrying in " + delay + " ms", e);
+				job.put("attempts", attempts);
+				redisTemplate.opsForZSet().add(RETRY, CryptographyService.getCiphertext(job.toString()),
+						System.currentTimeMillis() + delay);
+			}
+		}
+	}
+
+	private static String hash(String value) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return DatatypeConverter.printHexBinary(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
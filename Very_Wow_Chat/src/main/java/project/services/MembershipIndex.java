@@ -0,0 +1,333 @@
+package project.services;
+
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import project.persistance.entities.Chatroom;
+import project.persistance.entities.User;
+import project.persistance.queryresults.MembershipRelation;
+import project.persistance.repositories.ChatroomRepository;
+
+/**
+ * In memory index of the roles users have in chat rooms, so authorization
+ * checks don't have to go through the relationship lists of the user and the
+ * chat room.
+ *
+ * Maps <code>(user id, chat room id)</code> to a bitmask of roles in an open
+ * addressing hash table (linear probing) of primitive arrays. It's warmed from
+ * Neo4j when the application starts, and <code>ChatroomService</code> updates
+ * it whenever it changes a relation. Until it's warm <code>isReady()</code> is
+ * false and callers should fall back to the relationship lists.
+ *
+ * @author Vilhelml
+ */
+@Component
+public class MembershipIndex {
+
+	public static final int MEMBER = 1;
+	public static final int ADMIN = 1 << 1;
+	public static final int OWNER = 1 << 2;
+	public static final int MEMBER_INVITE = 1 << 3;
+	public static final int ADMIN_INVITE = 1 << 4;
+
+	private static final Logger logger = LoggerFactory.getLogger(MembershipIndex.class);
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	@Autowired
+	private ChatroomRepository chatroomRepository;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// a slot is empty iff its role is 0, ids can be 0 so they can't mark empty slots
+	private long[] userIds = new long[INITIAL_CAPACITY];
+	private long[] chatroomIds = new long[INITIAL_CAPACITY];
+	private byte[] roles = new byte[INITIAL_CAPACITY];
+	private int size = 0;
+
+	private volatile boolean ready = false;
+
+	/**
+	 * Loads all relations from Neo4j. If the database isn't reachable the index
+	 * stays cold and the checks fall back to the relationship lists.
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void warm() {
+		lock.writeLock().lock();
+		try {
+			List<MembershipRelation> relations = chatroomRepository.findAllMembershipRelations();
+			clear();
+			for (MembershipRelation relation : relations) {
+				int role = roleOf(relation.getRelation());
+				if (role != 0) {
+					add(relation.getUserId(), relation.getChatroomId(), role);
+				}
+			}
+			ready = true;
+			logger.info("Membership index warmed with {} user/chat room pairs", size);
+		} catch (RuntimeException e) {
+			logger.warn("Could not warm the membership index, falling back to relationship lists", e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if the index has been warmed and can be trusted.
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return how many user/chat room pairs have a role.
+	 */
+	int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of slots in the table.
+	 */
+	int capacity() {
+		lock.readLock().lock();
+		try {
+			return roles.length;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns true if <code>user</code> has <code>role</code> in
+	 * <code>chatroom</code>. Only meaningful if <code>isReady()</code>.
+	 *
+	 * @param user
+	 * @param chatroom
+	 * @param role     One of the role constants.
+	 * @return
+	 */
+	public boolean hasRole(User user, Chatroom chatroom, int role) {
+		return hasRole(user.getId(), chatroom.getId(), role);
+	}
+
+	public boolean hasRole(long userId, long chatroomId, int role) {
+		lock.readLock().lock();
+		try {
+			int slot = find(userId, chatroomId);
+			return slot >= 0 && (roles[slot] & role) != 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gives <code>user</code> <code>role</code> in <code>chatroom</code>.
+	 *
+	 * @param user
+	 * @param chatroom
+	 * @param role
+	 */
+	public void grant(User user, Chatroom chatroom, int role) {
+		lock.writeLock().lock();
+		try {
+			add(user.getId(), chatroom.getId(), role);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Takes <code>role</code> in <code>chatroom</code> from <code>user</code>.
+	 *
+	 * @param user
+	 * @param chatroom
+	 * @param role
+	 */
+	public void revoke(User user, Chatroom chatroom, int role) {
+		if (user.getId() == null || chatroom.getId() == null) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			int slot = find(user.getId(), chatroom.getId());
+			if (slot >= 0) {
+				roles[slot] &= ~role;
+				if (roles[slot] == 0) {
+					remove(slot);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all roles in chat room <code>chatroom</code>, e.g. when it's
+	 * deleted.
+	 *
+	 * @param chatroom
+	 */
+	public void removeChatroom(Chatroom chatroom) {
+		removeWhere(chatroom.getId(), false);
+	}
+
+	/**
+	 * Removes all roles of user <code>user</code>, e.g. when the user is deleted.
+	 *
+	 * @param user
+	 */
+	public void removeUser(User user) {
+		removeWhere(user.getId(), true);
+	}
+
+	private void removeWhere(Long id, boolean byUser) {
+		if (id == null) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			int slot = 0;
+			while (slot < roles.length) {
+				long slotId = byUser ? userIds[slot] : chatroomIds[slot];
+				// removing shifts a later entry into this slot, so look at it again
+				if (roles[slot] != 0 && slotId == id) {
+					remove(slot);
+				} else {
+					slot++;
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static int roleOf(String relation) {
+		switch (relation) {
+		case "HAS_MEMBER":
+			return MEMBER;
+		case "ADMIN_OF":
+			return ADMIN;
+		case "OWNS":
+			return OWNER;
+		case "INVITES":
+			return MEMBER_INVITE;
+		case "ADMIN_INVITES":
+			return ADMIN_INVITE;
+		default:
+			return 0;
+		}
+	}
+
+	/*
+	 * The methods below are the hash table itself, the caller must hold the lock.
+	 */
+
+	// package private for the tests
+	int slotOf(long userId, long chatroomId) {
+		long h = userId * 0x9E3779B97F4A7C15L + chatroomId;
+		h ^= h >>> 32;
+		h *= 0xC2B2AE3D27D4EB4FL;
+		h ^= h >>> 29;
+		return (int) h & (roles.length - 1);
+	}
+
+	private int find(long userId, long chatroomId) {
+		int mask = roles.length - 1;
+		int slot = slotOf(userId, chatroomId);
+		while (roles[slot] != 0) {
+			if (userIds[slot] == userId && chatroomIds[slot] == chatroomId) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void add(Long userId, Long chatroomId, int role) {
+		if (userId == null || chatroomId == null) {
+			// not saved yet, nothing to index
+			return;
+		}
+		int slot = find(userId, chatroomId);
+		if (slot >= 0) {
+			roles[slot] |= role;
+			return;
+		}
+		// keep the load factor under a half
+		if ((size + 1) * 2 > roles.length) {
+			resize(roles.length * 2);
+		}
+		insert(userId, chatroomId, (byte) role);
+		size++;
+	}
+
+	private void insert(long userId, long chatroomId, byte role) {
+		int mask = roles.length - 1;
+		int slot = slotOf(userId, chatroomId);
+		while (roles[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		userIds[slot] = userId;
+		chatroomIds[slot] = chatroomId;
+		roles[slot] = role;
+	}
+
+	/**
+	 * Empties <code>slot</code> and shifts the following entries of its probe
+	 * sequence back, so no tombstones are needed.
+	 */
+	private void remove(int slot) {
+		int mask = roles.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (roles[next] != 0) {
+			int home = slotOf(userIds[next], chatroomIds[next]);
+			// the entry can fill the hole if its home slot isn't between the hole and it
+			boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+			if (movable) {
+				userIds[hole] = userIds[next];
+				chatroomIds[hole] = chatroomIds[next];
+				roles[hole] = roles[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		roles[hole] = 0;
+		size--;
+	}
+
+	private void resize(int capacity) {
+		long[] oldUserIds = userIds;
+		long[] oldChatroomIds = chatroomIds;
+		byte[] oldRoles = roles;
+		userIds = new long[capacity];
+		chatroomIds = new long[capacity];
+		roles = new byte[capacity];
+		for (int i = 0; i < oldRoles.length; i++) {
+			if (oldRoles[i] != 0) {
+				insert(oldUserIds[i], oldChatroomIds[i], oldRoles[i]);
+			}
+		}
+	}
+
+	private void clear() {
+		userIds = new long[INITIAL_CAPACITY];
+		chatroomIds = new long[INITIAL_CAPACITY];
+		roles = new byte[INITIAL_CAPACITY];
+		size = 0;
+	}
+}
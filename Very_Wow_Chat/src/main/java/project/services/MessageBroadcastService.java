@@ -0,0 +1,34 @@
+package project.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Service;
+
+import project.configuration.WebSocketConfig;
+import project.payloads.MessageResponse;
+import project.persistance.entities.ChatMessage;
+
+/**
+ * Pushes newly posted chat messages to the subscribers of the chat room's
+ * STOMP topic.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Service
+public class MessageBroadcastService {
+
+	@Autowired
+	private SimpMessagingTemplate messagingTemplate;
+
+	/**
+	 * Publishes <code>chatMessage</code> to the topic of its chat room. The
+	 * message is assumed to be persisted (and encrypted), subscribers receive it
+	 * decrypted in the same format as the message history endpoints.
+	 *
+	 * @param chatMessage Persisted chat message.
+	 */
+	public void broadcast(ChatMessage chatMessage) {
+		String destination = WebSocketConfig.CHATROOM_TOPIC_PREFIX + chatMessage.getChatroomName();
+		messagingTemplate.convertAndSend(destination, new MessageResponse(chatMessage));
+	}
+}
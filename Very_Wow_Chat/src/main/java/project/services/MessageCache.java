@@ -0,0 +1,428 @@
+package project.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import project.payloads.MessageCursor;
+import project.payloads.MessageResponse;
+import project.persistance.entities.ChatMessage;
+import project.persistance.repositories.mongo.ChatMessageRepository;
+
+/**
+ * Keeps the newest decrypted messages of recently read chat rooms in memory,
+ * so opening a chat room or catching up on it doesn't go to MongoDB or decrypt
+ * anything.
+ *
+ * Every cached chat room has a ring buffer of its last
+ * <code>messages.cache.roomCapacity</code> messages, oldest first, and the
+ * total number of messages in the chat room. A room is loaded the first time
+ * it's read, new messages are appended by <code>MessageService</code>, and
+ * the least recently read rooms are dropped when the cached messages take more
+ * than <code>messages.cache.maxBytes</code> (estimated).
+ *
+ * The read methods return <code>null</code> when the answer isn't all in the
+ * cache, e.g. a page far back in the history, and the caller should then go to
+ * the database.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Component
+public class MessageCache {
+
+	// how many of the newest messages are cached per chat room, 0 disables the cache
+	@Value("${messages.cache.roomCapacity:200}")
+	private int roomCapacity;
+
+	// estimated memory all cached messages may take together
+	@Value("${messages.cache.maxBytes:67108864}")
+	private long maxBytes;
+
+	@Autowired
+	private ChatMessageRepository chatMessageRepository;
+
+	@Autowired
+	private MessageDecryptionService messageDecryptionService;
+
+	// chat room name -> cached room, in least recently used order
+	private final LinkedHashMap<String, Room> rooms = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long bytes = 0;
+
+	/**
+	 * Returns up to <code>limit</code> messages of chat room
+	 * <code>chatroomName</code> starting from <code>offset</code>, counted from
+	 * the oldest message.
+	 *
+	 * @param chatroomName
+	 * @param offset
+	 * @param limit        0 for no limit, like MongoDB's
+	 * @return the messages, or <code>null</code> if they aren't all cached
+	 */
+	public List<MessageResponse> page(String chatroomName, int offset, int limit) {
+		if (limit == 0) {
+			limit = Integer.MAX_VALUE;
+		}
+		Room room = acquire(chatroomName);
+		if (room == null) {
+			return null;
+		}
+		synchronized (this) {
+			if (!room.loaded) {
+				return null;
+			}
+			long first = room.total - room.size;
+			if (offset < first) {
+				return null;
+			}
+			int from = (int) Math.min(offset - first, room.size);
+			return room.slice(from, (int) Math.min((long) from + limit, room.size));
+		}
+	}
+
+	/**
+	 * Returns up to <code>limit</code> messages of chat room
+	 * <code>chatroomName</code> posted right before <code>cursor</code>, oldest
+	 * first.
+	 *
+	 * @param chatroomName
+	 * @param cursor
+	 * @param limit
+	 * @return the messages, or <code>null</code> if they aren't all cached
+	 */
+	public List<MessageResponse> before(String chatroomName, MessageCursor cursor, int limit) {
+		Room room = acquire(chatroomName);
+		if (room == null) {
+			return null;
+		}
+		synchronized (this) {
+			if (!room.loaded) {
+				return null;
+			}
+			// index of the first message that isn't before the cursor
+			int end = room.firstNotBefore(cursor.getTimestamp(), cursor.getId(), false);
+			if (end < limit && !room.complete()) {
+				// older messages are only in the database
+				return null;
+			}
+			return room.slice(Math.max(0, end - limit), end);
+		}
+	}
+
+	/**
+	 * Returns up to <code>limit</code> messages of chat room
+	 * <code>chatroomName</code> posted right after <code>cursor</code>, oldest
+	 * first.
+	 *
+	 * @param chatroomName
+	 * @param cursor
+	 * @param limit
+	 * @return the messages, or <code>null</code> if they aren't all cached
+	 */
+	public List<MessageResponse> after(String chatroomName, MessageCursor cursor, int limit) {
+		Room room = acquire(chatroomName);
+		if (room == null) {
+			return null;
+		}
+		synchronized (this) {
+			if (!room.loaded) {
+				return null;
+			}
+			// index of the first message after the cursor
+			int start = room.firstNotBefore(cursor.getTimestamp(), cursor.getId(), true);
+			// all messages after the cursor are cached if some cached message isn't
+			if (start == 0 && !room.complete()) {
+				return null;
+			}
+			return room.slice(start, (int) Math.min((long) start + limit, room.size));
+		}
+	}
+
+	/**
+	 * Returns the messages of chat room <code>chatroomName</code> posted from
+	 * <code>startTime</code> to <code>endTime</code>, oldest first.
+	 *
+	 * @param chatroomName
+	 * @param startTime    Start Unix time in milliseconds.
+	 * @param endTime      End Unix time in milliseconds.
+	 * @return the messages, or <code>null</code> if they aren't all cached
+	 */
+	public List<MessageResponse> between(String chatroomName, long startTime, long endTime) {
+		Room room = acquire(chatroomName);
+		if (room == null) {
+			return null;
+		}
+		synchronized (this) {
+			if (!room.loaded) {
+				return null;
+			}
+			// messages at exactly startTime might be older than the oldest cached one
+			if (!room.complete() && (room.size == 0 || room.get(0).getTimestamp() >= startTime)) {
+				return null;
+			}
+			int from = room.firstNotBefore(startTime, null, false);
+			int to = room.firstNotBefore(endTime, null, true);
+			return room.slice(from, Math.max(from, to));
+		}
+	}
+
+	/**
+	 * Appends message <code>message</code>, which was just stored, to its chat
+	 * room if the room is cached. The message is only decrypted if it is.
+	 *
+	 * @param message
+	 */
+	public void add(ChatMessage message) {
+		if (roomCapacity <= 0 || !track(message.getChatroomName())) {
+			return;
+		}
+		MessageResponse response;
+		try {
+			response = new MessageResponse(message);
+		} catch (RuntimeException e) {
+			// can't be decrypted, let the next read load the room again
+			invalidate(message.getChatroomName());
+			return;
+		}
+		synchronized (this) {
+			// the room might have been dropped or reloaded while decrypting
+			if (!track(message.getChatroomName())) {
+				return;
+			}
+			Room room = rooms.get(message.getChatroomName());
+			int order = room.size == 0 ? -1
+					: compare(room.get(room.size - 1), response.getTimestamp(), response.getId());
+			if (order == 0) {
+				// stored just before the room was loaded, so it's already there and counted
+				return;
+			}
+			if (order > 0) {
+				// posted out of order, not worth sorting
+				remove(message.getChatroomName());
+				return;
+			}
+			bytes += room.push(response);
+			evict();
+		}
+	}
+
+	/**
+	 * Returns whether a message just stored to chat room
+	 * <code>chatroomName</code> should be appended, i.e. the room is cached and
+	 * loaded. A room being loaded is marked so it isn't cached without it.
+	 */
+	private synchronized boolean track(String chatroomName) {
+		Room room = rooms.get(chatroomName);
+		if (room == null) {
+			return false;
+		}
+		if (!room.loaded) {
+			// the room is being loaded and might miss this message
+			room.generation++;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Drops chat room <code>chatroomName</code> from the cache, e.g. when its
+	 * messages are deleted.
+	 *
+	 * @param chatroomName
+	 */
+	public synchronized void invalidate(String chatroomName) {
+		remove(chatroomName);
+	}
+
+	/**
+	 * Returns the cached room <code>chatroomName</code>, loading it from the
+	 * database if it isn't cached. The room isn't loaded if a message was posted
+	 * to it while loading, or it was invalidated.
+	 */
+	private Room acquire(String chatroomName) {
+		if (roomCapacity <= 0) {
+			return null;
+		}
+		Room room;
+		long generation;
+		synchronized (this) {
+			room = rooms.get(chatroomName);
+			if (room != null && room.loaded) {
+				return room;
+			}
+			if (room == null) {
+				room = new Room(roomCapacity);
+				rooms.put(chatroomName, room);
+			}
+			generation = room.generation;
+		}
+
+		List<ChatMessage> newest = chatMessageRepository.findPageBefore(chatroomName, Long.MAX_VALUE, null,
+				roomCapacity);
+		// counted up to the oldest loaded message, not the whole room, so a message
+		// stored meanwhile is counted exactly when it's loaded
+		long total = newest.size();
+		if (newest.size() == roomCapacity) {
+			ChatMessage oldest = newest.get(0);
+			total += chatMessageRepository.countBefore(chatroomName, oldest.getTimestamp(), oldest.getId());
+		}
+		List<MessageResponse> responses = messageDecryptionService.decrypt(newest);
+
+		synchronized (this) {
+			if (rooms.get(chatroomName) != room || room.loaded || room.generation != generation) {
+				return null;
+			}
+			for (MessageResponse response : responses) {
+				bytes += room.push(response);
+			}
+			room.total = total;
+			room.loaded = true;
+			evict();
+			return room;
+		}
+	}
+
+	private void remove(String chatroomName) {
+		Room room = rooms.remove(chatroomName);
+		if (room != null) {
+			bytes -= room.bytes;
+		}
+	}
+
+	/**
+	 * Drops the least recently read rooms until the cache is within its budget.
+	 * The most recently read room is always kept.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Room>> iterator = rooms.entrySet().iterator();
+		while (bytes > maxBytes && rooms.size() > 1 && iterator.hasNext()) {
+			Room room = iterator.next().getValue();
+			bytes -= room.bytes;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Compares message <code>message</code> to the message at
+	 * <code>(timestamp, id)</code> in the order of <code>(timestamp, _id)</code>.
+	 */
+	private static int compare(MessageResponse message, long timestamp, String id) {
+		int byTime = Long.compare(message.getTimestamp(), timestamp);
+		if (byTime != 0) {
+			return byTime;
+		}
+		// object ids are fixed length hex, so they compare like their strings
+		return message.getId().compareToIgnoreCase(id);
+	}
+
+	private static long estimateBytes(MessageResponse message) {
+		long chars = length(message.getId()) + length(message.getChatroomName())
+				+ length(message.getSenderUsername()) + length(message.getSenderDisplayName())
+				+ length(message.getMessage());
+		long resources = 0;
+		if (message.getResources() != null) {
+			for (String resource : message.getResources()) {
+				resources += 40 + 2 * length(resource);
+			}
+		}
+		// object headers and fields plus two bytes per char
+		return 120 + 2 * chars + resources;
+	}
+
+	private static int length(String s) {
+		return s == null ? 0 : s.length();
+	}
+
+	/**
+	 * The newest messages of a chat room in a ring buffer.
+	 */
+	private static class Room {
+
+		private final MessageResponse[] ring;
+		private int head = 0;
+		private int size = 0;
+		// number of messages in the chat room, cached or not
+		private long total = 0;
+		private long bytes = 0;
+		private boolean loaded = false;
+		// bumped when a message is posted while the room is loading
+		private long generation = 0;
+
+		Room(int capacity) {
+			ring = new MessageResponse[capacity];
+		}
+
+		MessageResponse get(int i) {
+			return ring[(head + i) % ring.length];
+		}
+
+		/**
+		 * Appends <code>message</code>, overwriting the oldest message if full.
+		 *
+		 * @return change in estimated bytes
+		 */
+		long push(MessageResponse message) {
+			long delta = estimateBytes(message);
+			if (size == ring.length) {
+				delta -= estimateBytes(ring[head]);
+				ring[head] = message;
+				head = (head + 1) % ring.length;
+			} else {
+				ring[(head + size) % ring.length] = message;
+				size++;
+			}
+			total++;
+			bytes += delta;
+			return delta;
+		}
+
+		boolean complete() {
+			return size == total;
+		}
+
+		/**
+		 * Index of the first cached message at or after the position, or strictly
+		 * after it if <code>strictly</code>. A position without an id stands for
+		 * its whole millisecond. Binary search, the messages are in order.
+		 */
+		int firstNotBefore(long timestamp, String id, boolean strictly) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				MessageResponse message = get(middle);
+				boolean before;
+				if (id == null) {
+					before = strictly ? message.getTimestamp() <= timestamp : message.getTimestamp() < timestamp;
+				} else {
+					int c = compare(message, timestamp, id);
+					before = strictly ? c <= 0 : c < 0;
+				}
+				if (before) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		List<MessageResponse> slice(int from, int to) {
+			if (from >= to) {
+				return Collections.emptyList();
+			}
+			List<MessageResponse> result = new ArrayList<>(to - from);
+			for (int i = from; i < to; i++) {
+				result.add(get(i));
+			}
+			return result;
+		}
+	}
+}
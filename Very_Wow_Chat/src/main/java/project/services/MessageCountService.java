@@ -0,0 +1,160 @@
+package project.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import project.persistance.entities.ChatroomMessageCount;
+import project.persistance.repositories.mongo.ChatMessageRepository;
+
+/**
+ * Keeps the number of messages of every chat room in the
+ * <code>chatroomMessageCount</code> collection, so counting the messages of a
+ * chat room doesn't depend on how long its history is.
+ *
+ * Posting a message increments the count atomically and deleting the messages
+ * of a chat room deletes it. Counts are also cached locally for
+ * <code>messages.count.cacheMillis</code>. Chat rooms that have messages from
+ * before the counters existed are counted the first time they're asked for,
+ * and a periodic job recounts every chat room to fix drift, e.g. from a
+ * message whose count update failed.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Service
+public class MessageCountService {
+
+	private static final Logger logger = LoggerFactory.getLogger(MessageCountService.class);
+
+	// how long a count is served from memory
+	@Value("${messages.count.cacheMillis:2000}")
+	private long cacheMillis;
+
+	@Autowired
+	private ChatMessageRepository chatMessageRepository;
+
+	// chat room name -> cached count
+	private final ConcurrentMap<String, CachedCount> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the number of messages in chat room <code>chatroomName</code>.
+	 *
+	 * @param chatroomName
+	 * @return number of messages
+	 */
+	public long getCount(String chatroomName) {
+		long now = System.currentTimeMillis();
+		CachedCount cached = cache.get(chatroomName);
+		if (cached != null && cached.expires > now) {
+			return cached.count;
+		}
+		Long count = chatMessageRepository.findMessageCount(chatroomName);
+		if (count == null) {
+			count = seed(chatroomName);
+		}
+		cache.put(chatroomName, new CachedCount(count, now + cacheMillis));
+		return count;
+	}
+
+	/**
+	 * Counts a message that was just posted to chat room
+	 * <code>chatroomName</code>.
+	 *
+	 * @param chatroomName
+	 */
+	public void messagePosted(String chatroomName) {
+		messagesPosted(chatroomName, 1);
+	}
+
+	/**
+	 * Counts <code>amount</code> messages that were just posted to chat room
+	 * <code>chatroomName</code> together, with a single update.
+	 *
+	 * @param chatroomName
+	 * @param amount
+	 */
+	public void messagesPosted(String chatroomName, int amount) {
+		long count;
+		try {
+			count = chatMessageRepository.incrementMessageCount(chatroomName, amount);
+		} catch (DataAccessException e) {
+			// the message is stored, the reconciliation will count it
+			logger.warn("Could not count message in chat room {}", chatroomName, e);
+			cache.remove(chatroomName);
+			return;
+		}
+		if (count == amount) {
+			// either the first messages, or the counter was just created for old messages
+			count = seed(chatroomName);
+		}
+		cache.put(chatroomName, new CachedCount(count, System.currentTimeMillis() + cacheMillis));
+	}
+
+	/**
+	 * Forgets the count of chat room <code>chatroomName</code>, after its
+	 * messages were deleted.
+	 *
+	 * @param chatroomName
+	 */
+	public void messagesDeleted(String chatroomName) {
+		chatMessageRepository.deleteMessageCount(chatroomName);
+		cache.remove(chatroomName);
+	}
+
+	/**
+	 * Recounts the messages of every chat room with a counter and fixes the
+	 * counters that are off. A counter that changes while its chat room is
+	 * recounted is left for the next run.
+	 */
+	@Scheduled(fixedDelayString = "${messages.count.reconcileIntervalMillis:600000}")
+	public void reconcile() {
+		int fixed = 0;
+		try (CloseableIterator<ChatroomMessageCount> counts = chatMessageRepository.streamMessageCounts()) {
+			while (counts.hasNext()) {
+				ChatroomMessageCount counter = counts.next();
+				long actual = chatMessageRepository.getNrOfMessage(counter.getChatroomName());
+				if (actual != counter.getCount() && chatMessageRepository
+						.replaceMessageCount(counter.getChatroomName(), counter.getCount(), actual)) {
+					cache.remove(counter.getChatroomName());
+					fixed++;
+				}
+			}
+		} catch (DataAccessException e) {
+			logger.warn("Could not reconcile message counts", e);
+			return;
+		}
+		if (fixed > 0) {
+			logger.info("Fixed the message count of {} chat rooms", fixed);
+		}
+	}
+
+	/**
+	 * Counts the messages of chat room <code>chatroomName</code> and raises its
+	 * counter to that, without losing increments made meanwhile.
+	 */
+	private long seed(String chatroomName) {
+		long count = chatMessageRepository.getNrOfMessage(chatroomName);
+		chatMessageRepository.raiseMessageCount(chatroomName, count);
+		Long stored = chatMessageRepository.findMessageCount(chatroomName);
+		return stored != null ? stored : count;
+	}
+
+	private static class CachedCount {
+
+		private final long count;
+		private final long expires;
+
+		CachedCount(long count, long expires) {
+			this.count = count;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package project.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import project.payloads.MessageResponse;
+import project.persistance.entities.ChatMessage;
+
+/**
+ * Turns stored (encrypted) chat messages into decrypted
+ * <code>MessageResponse</code>s.
+ *
+ * Small pages are decrypted on the request thread. Larger result lists (e.g.
+ * <code>/messages/all</code> of a busy chat room) are split across a dedicated
+ * ForkJoin pool, so decryption doesn't compete with the common pool and the
+ * number of threads decrypting is bounded no matter how many requests come in.
+ * The order of the messages is preserved.
+ *
+ * Batches of posted messages are encrypted on the same pool.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Service
+public class MessageDecryptionService {
+
+	// number of threads decrypting, defaults to the number of cores
+	@Value("${messages.decryption.parallelism:0}")
+	private int parallelism;
+
+	// lists shorter than this are decrypted on the request thread
+	@Value("${messages.decryption.threshold:256}")
+	private int threshold;
+
+	// how many messages each fork join task decrypts at most
+	@Value("${messages.decryption.batchSize:128}")
+	private int batchSize;
+
+	// how many messages are read from a cursor and decrypted at a time when streaming
+	@Value("${messages.decryption.streamBatchSize:1024}")
+	private int streamBatchSize;
+
+	private ForkJoinPool pool;
+
+	@PostConstruct
+	public void init() {
+		int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		pool = new ForkJoinPool(threads);
+		batchSize = Math.max(1, batchSize);
+		streamBatchSize = Math.max(1, streamBatchSize);
+	}
+
+	@PreDestroy
+	public void destroy() throws InterruptedException {
+		pool.shutdown();
+		pool.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Decrypts <code>messages</code>.
+	 *
+	 * @param messages Encrypted chat messages.
+	 *
+	 * @return Decrypted messages, in the same order as <code>messages</code>.
+	 */
+	public List<MessageResponse> decrypt(List<ChatMessage> messages) {
+		if (messages.size() < threshold) {
+			List<MessageResponse> responses = new ArrayList<>(messages.size());
+			for (ChatMessage message : messages) {
+				responses.add(new MessageResponse(message));
+			}
+			return responses;
+		}
+
+		// every task writes its own range of the array, so the order is kept
+		ChatMessage[] source = messages.toArray(new ChatMessage[messages.size()]);
+		MessageResponse[] responses = new MessageResponse[source.length];
+		pool.invoke(new ConvertRange<>(source, responses, MessageResponse::new, 0, source.length));
+		return Arrays.asList(responses);
+	}
+
+	/**
+	 * Encrypts <code>plaintexts</code>, e.g. the messages of a batch that's being
+	 * posted.
+	 *
+	 * @param plaintexts Messages in plain text.
+	 *
+	 * @return Encrypted messages, in the same order as <code>plaintexts</code>.
+	 */
+	public List<String> encrypt(List<String> plaintexts) {
+		if (plaintexts.size() < threshold) {
+			List<String> ciphertexts = new ArrayList<>(plaintexts.size());
+			for (String plaintext : plaintexts) {
+				ciphertexts.add(CryptographyService.getCiphertext(plaintext));
+			}
+			return ciphertexts;
+		}
+
+		String[] source = plaintexts.toArray(new String[plaintexts.size()]);
+		String[] ciphertexts = new String[source.length];
+		pool.invoke(new ConvertRange<>(source, ciphertexts, CryptographyService::getCiphertext, 0, source.length));
+		return Arrays.asList(ciphertexts);
+	}
+
+	/**
+	 * Reads the next batch of messages from <code>messages</code> and decrypts
+	 * them, so a cursor can be streamed without holding all of its messages in
+	 * memory.
+	 *
+	 * @param messages Cursor over encrypted chat messages.
+	 *
+	 * @return Next decrypted messages, in order, or an empty list if
+	 *         <code>messages</code> is exhausted.
+	 */
+	public List<MessageResponse> decryptNextBatch(Iterator<ChatMessage> messages) {
+		List<ChatMessage> batch = new ArrayList<>(streamBatchSize);
+		while (batch.size() < streamBatchSize && messages.hasNext()) {
+			batch.add(messages.next());
+		}
+		return decrypt(batch);
+	}
+
+	/**
+	 * Converts (decrypts or encrypts) <code>source[from..to)</code> into
+	 * <code>target[from..to)</code>, splitting the range in halves until it's at
+	 * most <code>batchSize</code> messages.
+	 */
+	private class ConvertRange<S, T> extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final S[] source;
+		private final T[] target;
+		private final Function<S, T> convert;
+		private final int from;
+		private final int to;
+
+		ConvertRange(S[] source, T[] target, Function<S, T> convert, int from, int to) {
+			this.source = source;
+			this.target = target;
+			this.convert = convert;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= batchSize) {
+				for (int i = from; i < to; i++) {
+					target[i] = convert.apply(source[i]);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new ConvertRange<>(source, target, convert, from, middle),
+					new ConvertRange<>(source, target, convert, middle, to));
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package project.services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import project.persistance.entities.ChatMessage;
+
+/**
+ * Remembers recently posted messages that have a client message id for
+ * <code>messages.dedupe.cacheSeconds</code>, so a client retrying a post
+ * (e.g. after a timeout) gets the stored message back without another trip to
+ * the database.
+ *
+ * Retries after the entry expires, or to another server, are caught by the
+ * unique index on <code>{chatroomName, senderUsernameId, clientMessageId}</code>
+ * instead.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Component
+public class MessageDedupeCache {
+
+	// how long a posted message is remembered
+	@Value("${messages.dedupe.cacheSeconds:120}")
+	private long cacheSeconds;
+
+	// chat room name, sender and client message id -> stored message
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the message user <code>senderUsernameId</code> recently posted to
+	 * chat room <code>chatroomName</code> with client message id
+	 * <code>clientMessageId</code>.
+	 *
+	 * @param chatroomName
+	 * @param senderUsernameId
+	 * @param clientMessageId
+	 * @return the stored message, or <code>null</code> if it isn't remembered
+	 */
+	public ChatMessage get(String chatroomName, long senderUsernameId, String clientMessageId) {
+		Entry entry = entries.get(key(chatroomName, senderUsernameId, clientMessageId));
+		return entry != null && entry.expires > System.currentTimeMillis() ? entry.message : null;
+	}
+
+	/**
+	 * Remembers stored message <code>message</code>, which has a client message
+	 * id.
+	 *
+	 * @param message
+	 */
+	public void put(ChatMessage message) {
+		entries.put(key(message.getChatroomName(), message.getSenderUsernameId(), message.getClientMessageId()),
+				new Entry(message, System.currentTimeMillis() + cacheSeconds * 1000));
+	}
+
+	/**
+	 * Forgets the messages of chat room <code>chatroomName</code>, e.g. when
+	 * they're deleted.
+	 *
+	 * @param chatroomName
+	 */
+	public void invalidate(String chatroomName) {
+		entries.values().removeIf(entry -> entry.message.getChatroomName().equals(chatroomName));
+	}
+
+	@Scheduled(fixedDelayString = "${messages.dedupe.purgeIntervalMillis:60000}")
+	public void purge() {
+		long now = System.currentTimeMillis();
+		entries.values().removeIf(entry -> entry.expires <= now);
+	}
+
+	private static String key(String chatroomName, long senderUsernameId, String clientMessageId) {
+		// the separator can't be in a client message id
+		return chatroomName + '\n' + senderUsernameId + '\n' + clientMessageId;
+	}
+
+	private static class Entry {
+
+		private final ChatMessage message;
+		private final long expires;
+
+		Entry(ChatMessage message, long expires) {
+			this.message = message;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package project.services;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Component;
+
+import project.persistance.repositories.mongo.ChatMessageRepository;
+
+/**
+ * Makes sure the <code>chatMessage</code> collection has the indexes its
+ * queries need when the application starts, so reading the history of a chat
+ * room never scans the collection, and applies the message retention.
+ *
+ * The indexes are built in the background (<code>messages.indexes.background</code>)
+ * so the collection stays usable while an index is built on a large
+ * collection. If <code>messages.retentionDays</code> is set, messages are
+ * deleted by MongoDB that long after they were posted. Messages posted before
+ * <code>createdAt</code> existed get it set from their timestamp, a batch at a
+ * time, so they expire too.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Component
+public class MessageIndexProvisioner {
+
+	private static final Logger logger = LoggerFactory.getLogger(MessageIndexProvisioner.class);
+
+	private static final int BACKFILL_BATCH_SIZE = 1000;
+
+	private static final String CREATED_AT_BACKFILL = "createdAtBackfill";
+
+	@Value("${messages.indexes.background:true}")
+	private boolean background;
+
+	// 0 keeps messages forever
+	@Value("${messages.retentionDays:0}")
+	private long retentionDays;
+
+	@Value("${messages.indexes.statsEnabled:false}")
+	private boolean statsEnabled;
+
+	@Autowired
+	private ChatMessageRepository chatMessageRepository;
+
+	private volatile boolean stopped = false;
+
+	private Thread worker;
+
+	/**
+	 * Before the application takes any requests, checks the messages are all
+	 * where <code>messages.storage</code> reads them from, and creates the
+	 * unique client message id index, until it exists a retry that isn't in
+	 * <code>MessageDedupeCache</code> would store a duplicate. The index is
+	 * built in the background, so other database clients go on meanwhile, but
+	 * startup waits for it. The application doesn't start if either fails.
+	 */
+	@PostConstruct
+	public void prepare() {
+		chatMessageRepository.checkStorage();
+		chatMessageRepository.ensureClientMessageIdIndex();
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public synchronized void start() {
+		if (worker != null) {
+			return;
+		}
+		worker = new Thread(this::provision, "message-index-provisioner");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	@PreDestroy
+	public synchronized void stop() throws InterruptedException {
+		stopped = true;
+		if (worker != null) {
+			worker.join(10000);
+		}
+	}
+
+	/**
+	 * Returns the usage of every index of the <code>chatMessage</code>
+	 * collection, or <code>null</code> if <code>messages.indexes.statsEnabled</code>
+	 * is off.
+	 *
+	 * @return One document per index.
+	 */
+	public List<Document> getIndexStats() {
+		return statsEnabled ? chatMessageRepository.getIndexStats() : null;
+	}
+
+	private void provision() {
+		try {
+			long started = System.currentTimeMillis();
+			chatMessageRepository.ensureIndexes(background);
+			logger.info("Chat message indexes ready in {} ms", System.currentTimeMillis() - started);
+
+			chatMessageRepository.ensureRetention(TimeUnit.DAYS.toSeconds(retentionDays), background);
+			if (retentionDays <= 0) {
+				return;
+			}
+			backfillCreatedAt();
+		} catch (DataAccessException e) {
+			logger.warn("Could not provision the chat message indexes", e);
+		}
+	}
+
+	/**
+	 * Walks the messages once in <code>_id</code> order, recording how far it got
+	 * after every batch, so a restart resumes where it stopped and later starts
+	 * skip it.
+	 */
+	private void backfillCreatedAt() {
+		Document state = chatMessageRepository.getMigration(CREATED_AT_BACKFILL);
+		if (state != null && state.getBoolean("done", false)) {
+			return;
+		}
+		Object position = state != null ? state.get("position") : null;
+		while (!stopped) {
+			Object last = chatMessageRepository.backfillCreatedAt(position, BACKFILL_BATCH_SIZE);
+			if (last == null) {
+				chatMessageRepository.saveMigration(CREATED_AT_BACKFILL, position, true);
+				logger.info("Older chat messages have createdAt set, they now expire after {} days", retentionDays);
+				return;
+			}
+			position = last;
+			chatMessageRepository.saveMigration(CREATED_AT_BACKFILL, position, false);
+		}
+	}
+}
@@ -3,15 +3,23 @@ package project.services;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.stereotype.Service;
 
+import project.payloads.MessageCursor;
+import project.payloads.MessageResponse;
 import project.persistance.entities.ChatMessage;
 import project.persistance.entities.Chatroom;
+import project.persistance.queryresults.ChatroomReference;
 import project.persistance.repositories.mongo.ChatMessageRepository;
 
 /**
  * A message service.
  * 
+ * The newest messages of recently read chat rooms are served decrypted from
+ * <code>MessageCache</code>, older ones are read from the database.
+ * 
  * @author Davíð Helgason (dah38@hi.is)
  */
 @Service
@@ -20,6 +28,21 @@ public class MessageService {
 	@Autowired
 	private ChatMessageRepository chatMessageRepository;
 
+	@Autowired
+	private UnreadCountService unreadCountService;
+
+	@Autowired
+	private MessageCache messageCache;
+
+	@Autowired
+	private MessageCountService messageCountService;
+
+	@Autowired
+	private MessageDecryptionService messageDecryptionService;
+
+	@Autowired
+	private MessageDedupeCache messageDedupeCache;
+
 	/**
 	 * Returns `limit` messages from chat room `chatroom` starting from `offset`.
 	 * 
@@ -28,11 +51,15 @@ public class MessageService {
 	 * @param offset
 	 * @return
 	 */
-	public List<ChatMessage> getChatPage(Chatroom chatroom, int offset, int limit) {
+	public List<MessageResponse> getChatPage(ChatroomReference chatroom, int offset, int limit) {
 		String chatroomName = chatroom.getChatroomName();
+		List<MessageResponse> cached = messageCache.page(chatroomName, offset, limit);
+		if (cached != null) {
+			return cached;
+		}
 		List<ChatMessage> chatMessages = chatMessageRepository.findPagedResultByChatroomName(chatroomName, offset,
 				limit);
-		return chatMessages;
+		return messageDecryptionService.decrypt(chatMessages);
 	}
 
 	/**
@@ -42,10 +69,50 @@ public class MessageService {
 	 * @param offset
 	 * @return
 	 */
-	public List<ChatMessage> getChatPage(Chatroom chatroom, int offset) {
+	public List<MessageResponse> getChatPage(ChatroomReference chatroom, int offset) {
 		String chatroomName = chatroom.getChatroomName();
+		List<MessageResponse> cached = messageCache.page(chatroomName, offset, Integer.MAX_VALUE);
+		if (cached != null) {
+			return cached;
+		}
 		List<ChatMessage> chatMessages = chatMessageRepository.findPagedResultByChatroomName(chatroomName, offset);
-		return chatMessages;
+		return messageDecryptionService.decrypt(chatMessages);
+	}
+
+	/**
+	 * Returns up to `limit` messages from chat room `chatroom` that were posted
+	 * right before `cursor`, oldest first.
+	 * 
+	 * @param chatroom
+	 * @param cursor
+	 * @param limit
+	 * @return
+	 */
+	public List<MessageResponse> getChatPageBefore(ChatroomReference chatroom, MessageCursor cursor, int limit) {
+		List<MessageResponse> cached = messageCache.before(chatroom.getChatroomName(), cursor, limit);
+		if (cached != null) {
+			return cached;
+		}
+		return messageDecryptionService.decrypt(chatMessageRepository.findPageBefore(chatroom.getChatroomName(),
+				cursor.getTimestamp(), cursor.getId(), limit));
+	}
+
+	/**
+	 * Returns up to `limit` messages from chat room `chatroom` that were posted
+	 * right after `cursor`, oldest first.
+	 * 
+	 * @param chatroom
+	 * @param cursor
+	 * @param limit
+	 * @return
+	 */
+	public List<MessageResponse> getChatPageAfter(ChatroomReference chatroom, MessageCursor cursor, int limit) {
+		List<MessageResponse> cached = messageCache.after(chatroom.getChatroomName(), cursor, limit);
+		if (cached != null) {
+			return cached;
+		}
+		return messageDecryptionService.decrypt(chatMessageRepository.findPageAfter(chatroom.getChatroomName(),
+				cursor.getTimestamp(), cursor.getId(), limit));
 	}
 
 	/**
@@ -67,6 +134,9 @@ public class MessageService {
 	 */
 	public void deleteAllChatMessagesOfChatroom(Chatroom chatroom) {
 		chatMessageRepository.deleteAllChatMessagesOfChatroom(chatroom.getChatroomName());
+		messageCache.invalidate(chatroom.getChatroomName());
+		messageCountService.messagesDeleted(chatroom.getChatroomName());
+		messageDedupeCache.invalidate(chatroom.getChatroomName());
 	}
 
 	/**
@@ -78,8 +148,41 @@ public class MessageService {
 	 * @param endTime
 	 * @return
 	 */
-	public List<ChatMessage> getChatroomMessagesBetweenTime(Chatroom chatroom, Long startTime, Long endTime) {
-		return chatMessageRepository.getChatroomMessagesBetweenTime(chatroom.getChatroomName(), startTime, endTime);
+	public List<MessageResponse> getChatroomMessagesBetweenTime(ChatroomReference chatroom, Long startTime, Long endTime) {
+		List<MessageResponse> cached = messageCache.between(chatroom.getChatroomName(), startTime, endTime);
+		if (cached != null) {
+			return cached;
+		}
+		return messageDecryptionService.decrypt(
+				chatMessageRepository.getChatroomMessagesBetweenTime(chatroom.getChatroomName(), startTime, endTime));
+	}
+
+	/**
+	 * Streams all messages of chat room `chatroom`, oldest first. The iterator
+	 * must be closed.
+	 * 
+	 * @param chatroom
+	 * 
+	 * @return Open cursor over the messages.
+	 */
+	public CloseableIterator<ChatMessage> streamAllMessages(ChatroomReference chatroom) {
+		return chatMessageRepository.streamAllMessages(chatroom.getChatroomName());
+	}
+
+	/**
+	 * Streams all messages of chat room `chatroom` posted between `startTime` and
+	 * `endTime`, oldest first. The iterator must be closed.
+	 * 
+	 * @param chatroom
+	 * @param startTime Start Unix time in milliseconds.
+	 * @param endTime   End Unix time in milliseconds.
+	 * 
+	 * @return Open cursor over the messages.
+	 */
+	public CloseableIterator<ChatMessage> streamChatroomMessagesBetweenTime(ChatroomReference chatroom, long startTime,
+			long endTime) {
+		return chatMessageRepository.streamChatroomMessagesBetweenTime(chatroom.getChatroomName(), startTime,
+				endTime);
 	}
 
 	/**
@@ -89,6 +192,66 @@ public class MessageService {
 	 */
 	public void addChatMessage(ChatMessage chatMessage) {
 		chatMessageRepository.addChatMessage(chatMessage);
+		unreadCountService.messagePosted(chatMessage.getChatroomName());
+		messageCache.add(chatMessage);
+		messageCountService.messagePosted(chatMessage.getChatroomName());
+	}
+
+	/**
+	 * Adds chat message <code>chatMessage</code> unless its sender already posted
+	 * a message with the same client message id to the chat room, e.g. when a
+	 * client retries a post that timed out. Recent posts are found in
+	 * <code>MessageDedupeCache</code> without going to the database.
+	 * 
+	 * @param chatMessage The chat message, maybe with a client message id.
+	 * 
+	 * @return <code>chatMessage</code> if it was added, otherwise the message
+	 *         posted earlier.
+	 */
+	public ChatMessage addChatMessageOnce(ChatMessage chatMessage) {
+		String clientMessageId = chatMessage.getClientMessageId();
+		if (clientMessageId == null) {
+			addChatMessage(chatMessage);
+			return chatMessage;
+		}
+		String chatroomName = chatMessage.getChatroomName();
+		long senderUsernameId = chatMessage.getSenderUsernameId();
+		ChatMessage earlier = messageDedupeCache.get(chatroomName, senderUsernameId, clientMessageId);
+		if (earlier != null) {
+			return earlier;
+		}
+		try {
+			addChatMessage(chatMessage);
+		} catch (DuplicateKeyException e) {
+			// posted before the cache entry expired, or concurrently
+			earlier = chatMessageRepository.findByClientMessageId(chatroomName, senderUsernameId, clientMessageId);
+			if (earlier == null) {
+				throw e;
+			}
+			messageDedupeCache.put(earlier);
+			return earlier;
+		}
+		messageDedupeCache.put(chatMessage);
+		return chatMessage;
+	}
+
+	/**
+	 * Adds chat messages <code>chatMessages</code>, all to the same chat room,
+	 * with a single insert and a single count update.
+	 * 
+	 * @param chatroomName Name of the chat room.
+	 * @param chatMessages The chat messages, in order.
+	 */
+	public void addChatMessages(String chatroomName, List<ChatMessage> chatMessages) {
+		if (chatMessages.isEmpty()) {
+			return;
+		}
+		chatMessageRepository.addChatMessages(chatMessages);
+		for (ChatMessage chatMessage : chatMessages) {
+			unreadCountService.messagePosted(chatroomName);
+			messageCache.add(chatMessage);
+		}
+		messageCountService.messagesPosted(chatroomName, chatMessages.size());
 	}
 	
 	/**
@@ -97,7 +260,7 @@ public class MessageService {
 	 * @param id
 	 * @return
 	 */
-	public ChatMessage getChatMessage(Chatroom chatroom, String id) {
+	public ChatMessage getChatMessage(ChatroomReference chatroom, String id) {
 		ChatMessage chatMessage = chatMessageRepository.getChatMessage(chatroom.getChatroomName(), id);
 		return chatMessage;
 	}
@@ -110,7 +273,7 @@ public class MessageService {
 	 * 
 	 * @return Number of messages for chat room <code>chatroom</code>.
 	 */
-	public long getNrOfMessage(Chatroom chatroom) {
-		return chatMessageRepository.getNrOfMessage(chatroom.getChatroomName());
+	public long getNrOfMessage(ChatroomReference chatroom) {
+		return messageCountService.getCount(chatroom.getChatroomName());
 	}
 }
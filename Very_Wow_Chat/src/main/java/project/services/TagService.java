@@ -1,5 +1,7 @@
 package project.services;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -11,6 +13,7 @@ import project.errors.BadRequestException;
 import project.errors.NotFoundException;
 import project.persistance.entities.Chatroom;
 import project.persistance.entities.Tag;
+import project.persistance.queryresults.ChatroomSummary;
 import project.persistance.repositories.ChatroomRepository;
 import project.persistance.repositories.TagRepository;
 
@@ -23,6 +26,9 @@ public class TagService {
 	@Autowired
 	private TagRepository tagRepository;
 
+	@Autowired
+	private ChatroomSearchIndex chatroomSearchIndex;
+
 	/**
 	 * remove the old tags and add new ones
 	 * 
@@ -46,6 +52,7 @@ public class TagService {
 		}
 		// save the changes
 		this.chatroomRepository.save(chatroom);
+		this.chatroomSearchIndex.index(chatroom);
 	}
 
 	/**
@@ -70,6 +77,7 @@ public class TagService {
 		chatrooms.add(chatroom);
 
 		this.chatroomRepository.save(chatroom);
+		this.chatroomSearchIndex.index(chatroom);
 	}
 
 	/**
@@ -93,6 +101,7 @@ public class TagService {
 		chatrooms.remove(chatroom);
 		// saving the changes
 		this.chatroomRepository.save(chatroom);
+		this.chatroomSearchIndex.index(chatroom);
 	}
 
 	/**
@@ -123,14 +132,26 @@ public class TagService {
 	 * @param tagName
 	 * @return list of listed chatrooms wit the tag
 	 */
-	public List<Chatroom> findListedChatroomsWithTag(String tagName) {
-		// get the names of chatrooms with the tag
-		List<String> chatroomNames = this.chatroomRepository.findListedChatroomsWithTag(tagName);
-		// fetch the chatrooms
-		List<Chatroom> chatrooms = chatroomNames.stream().map(x -> this.chatroomRepository.findByChatroomName(x))
-				.collect(Collectors.toList());
-
-		return chatrooms;
+	public List<ChatroomSummary> findListedChatroomsWithTag(String tagName) {
+		return this.findListedChatroomsWithTags(Collections.singletonList(tagName), 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * find a page of the listed chatrooms that have all the given tags, with
+	 * their owner and tags, in a single query
+	 * 
+	 * @param tagNames
+	 * @param offset   how many chatrooms to skip
+	 * @param limit    how many chatrooms at most to return
+	 * @return list of listed chatrooms with all the tags, ordered by chatroom name
+	 */
+	public List<ChatroomSummary> findListedChatroomsWithTags(List<String> tagNames, int offset, int limit) {
+		// the query counts the distinct tags each chatroom matched, so duplicates would never match
+		List<String> distinctTagNames = tagNames.stream().distinct().collect(Collectors.toList());
+		if (distinctTagNames.isEmpty()) {
+			return new ArrayList<ChatroomSummary>();
+		}
+		return this.chatroomRepository.findListedChatroomsWithTags(distinctTagNames, offset, limit);
 	}
 
 	/**
@@ -179,6 +200,7 @@ public class TagService {
 		tags.clear();
 		// save the changes
 		this.chatroomRepository.save(chatroom);
+		this.chatroomSearchIndex.index(chatroom);
 		// delete the tags that are no longer in use
 		this.cleanTags();
 	}
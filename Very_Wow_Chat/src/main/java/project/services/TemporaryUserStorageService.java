@@ -1,5 +1,7 @@
 package project.services;
 
+import java.util.Set;
+
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -53,11 +55,13 @@ public class TemporaryUserStorageService {
 	 * NOTE: assumes the entry is stringified JSON.
 	 * 
 	 * @param key of entry.
+	 * 
+	 * @return The entry, or <code>null</code> if it doesn't exist (or has
+	 *         expired).
 	 */
 	public JSONObject getAndDestroyData(String key) {
-		JSONObject data = this.redisRepository.getData(key);
-		this.redisRepository.destroyData(key);
-		return data;
+		String data = this.redisRepository.getAndDestroy(key);
+		return data == null ? null : new JSONObject(data);
 	}
 
 	/**
@@ -88,11 +92,49 @@ public class TemporaryUserStorageService {
 	 * 
 	 * @param key Key of entry.
 	 * 
-	 * @return String entry.
+	 * @return String entry, or <code>null</code> if it doesn't exist (or has
+	 *         expired).
 	 */
 	public String getAndDestroyString(String key) {
-		String string = redisRepository.getString(key);
+		return redisRepository.getAndDestroy(key);
+	}
+
+	/**
+	 * Adds <code>member</code> to the set with key <code>key</code>.
+	 * 
+	 * @param key    Key of the set.
+	 * @param member The member to add.
+	 */
+	public void addToSet(String key, String member) {
+		redisRepository.addToSet(key, member);
+	}
+
+	/**
+	 * Retrieves the members of the set with key <code>key</code>.
+	 * 
+	 * @param key Key of the set.
+	 * 
+	 * @return The members, empty if the set doesn't exist (or has expired).
+	 */
+	public Set<String> getSet(String key) {
+		return redisRepository.getSet(key);
+	}
+
+	/**
+	 * Keeps entry <code>key</code> alive for another 30 minutes.
+	 * 
+	 * @param key Key of entry.
+	 */
+	public void refresh(String key) {
+		redisRepository.refresh(key);
+	}
+
+	/**
+	 * Deletes entry <code>key</code>, if it exists.
+	 * 
+	 * @param key Key of entry.
+	 */
+	public void destroy(String key) {
 		redisRepository.destroyData(key);
-		return string;
 	}
 }
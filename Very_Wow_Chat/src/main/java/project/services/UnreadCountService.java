@@ -0,0 +1,147 @@
+package project.services;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import project.persistance.queryresults.MembershipLastRead;
+import project.persistance.repositories.UserRepository;
+import project.persistance.repositories.mongo.ChatMessageRepository;
+
+/**
+ * Counts the unread messages in all chat rooms of a user.
+ *
+ * The counts are computed with a single aggregation over the chat rooms the
+ * user is a member of, and then cached. Every chat room has a counter of posted
+ * messages that <code>MessageService</code> increments, so a cached count stays
+ * right by adding the messages posted since it was computed. A cached count is
+ * recomputed when the user's <code>lastRead</code> for the chat room changes or
+ * after <code>messages.unread.cacheSeconds</code>.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@Service
+public class UnreadCountService {
+
+	// how long a computed count is trusted
+	@Value("${messages.unread.cacheSeconds:300}")
+	private long cacheSeconds;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private ChatMessageRepository chatMessageRepository;
+
+	// chat room name -> number of messages posted since the application started
+	private final ConcurrentMap<String, AtomicLong> posted = new ConcurrentHashMap<>();
+
+	// user name -> chat room name -> cached count
+	private final ConcurrentMap<String, ConcurrentMap<String, Count>> counts = new ConcurrentHashMap<>();
+
+	/**
+	 * Records that a message was posted to chat room <code>chatroomName</code>.
+	 *
+	 * @param chatroomName
+	 */
+	public void messagePosted(String chatroomName) {
+		postedCounter(chatroomName).incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of messages posted after the user last read each of the
+	 * chat rooms the user is a member of.
+	 *
+	 * @param username Name of user.
+	 *
+	 * @return Chat room name -&gt; number of unread messages.
+	 */
+	public Map<String, Long> getUnreadCounts(String username) {
+		List<MembershipLastRead> memberships = userRepository.findMembershipLastReads(username);
+		ConcurrentMap<String, Count> cached = counts.computeIfAbsent(username, x -> new ConcurrentHashMap<>());
+		long now = System.currentTimeMillis();
+
+		Map<String, Long> result = new LinkedHashMap<>();
+		Map<String, Long> missing = new HashMap<>();
+		Map<String, Long> postedBefore = new HashMap<>();
+		for (MembershipLastRead membership : memberships) {
+			String chatroomName = membership.getChatroomName();
+			long lastRead = membership.getLastRead() != null ? membership.getLastRead() : 0L;
+			long postedNow = postedCounter(chatroomName).get();
+			Count count = cached.get(chatroomName);
+			if (count != null && count.lastRead == lastRead && count.expires > now) {
+				result.put(chatroomName, count.unread + postedNow - count.posted);
+			} else {
+				result.put(chatroomName, 0L);
+				missing.put(chatroomName, lastRead);
+				postedBefore.put(chatroomName, postedNow);
+			}
+		}
+		if (missing.isEmpty()) {
+			return result;
+		}
+
+		Map<String, Long> computed = chatMessageRepository.countMessagesAfter(missing);
+		long expires = now + cacheSeconds * 1000;
+		for (Map.Entry<String, Long> entry : missing.entrySet()) {
+			String chatroomName = entry.getKey();
+			long unread = computed.getOrDefault(chatroomName, 0L);
+			result.put(chatroomName, unread);
+			// if a message was posted meanwhile we can't tell if it was counted
+			long before = postedBefore.get(chatroomName);
+			if (postedCounter(chatroomName).get() == before) {
+				cached.put(chatroomName, new Count(entry.getValue(), unread, before, expires));
+			} else {
+				cached.remove(chatroomName);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Drops expired counts, so users that stopped asking don't stay in memory.
+	 */
+	@Scheduled(fixedDelayString = "${messages.unread.purgeIntervalMillis:60000}")
+	public void purge() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, ConcurrentMap<String, Count>> entry : counts.entrySet()) {
+			entry.getValue().values().removeIf(count -> count.expires <= now);
+			if (entry.getValue().isEmpty()) {
+				counts.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private AtomicLong postedCounter(String chatroomName) {
+		return posted.computeIfAbsent(chatroomName, x -> new AtomicLong());
+	}
+
+	/**
+	 * A computed count of unread messages of a user in a chat room.
+	 */
+	private static class Count {
+
+		// the lastRead the count was computed for
+		private final long lastRead;
+		private final long unread;
+		// the chat room's posted counter when the count was computed
+		private final long posted;
+		private final long expires;
+
+		Count(long lastRead, long unread, long posted, long expires) {
+			this.lastRead = lastRead;
+			this.unread = unread;
+			this.posted = posted;
+			this.expires = expires;
+		}
+	}
+}
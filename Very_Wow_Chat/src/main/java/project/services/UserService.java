@@ -6,10 +6,13 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
 import project.errors.BadRequestException;
 import project.errors.NotFoundException;
 import project.persistance.entities.User;
+import project.persistance.queryresults.UserPrincipal;
 import project.persistance.repositories.UserRepository;
 
 /**
@@ -25,6 +28,12 @@ public class UserService {
 	@Autowired
 	private UserRepository userRepository;
 
+	@Autowired
+	private MembershipIndex membershipIndex;
+
+	// request attribute the principal of a user is cached in
+	private static final String PRINCIPAL_ATTRIBUTE_PREFIX = UserService.class.getName() + ".principal.";
+
 	/**
 	 * Updates user with user name <code>username</code>. Use <code>null</code> for
 	 * those properties you don't want to update.
@@ -135,16 +144,54 @@ public class UserService {
 		if(username == null || username.length()  == 0) {
 			throw new NotFoundException("No username given");
 		}
+		User user = this.userRepository.findByUsername(username);
 		// throw error if user doesn't exist
-		if (!userExistsAndActive(username)) {
+		if (user == null || !user.getIsActive()) {
 			throw new NotFoundException("User not found");
 		}
 
-		User user = this.userRepository.findByUsername(username);
-
 		return user;
 	}
 
+	/**
+	 * Returns the principal (id, user name, display name) of the user
+	 * <code>username</code>, without loading the user's relations. The principal
+	 * is cached for the rest of the current request, so an endpoint can look it
+	 * up as often as it likes.
+	 * 
+	 * @param username
+	 * 
+	 * @return the user's principal
+	 * @throws NotFoundException if userName doesn't belong to any active user
+	 */
+	public UserPrincipal findPrincipal(String username) throws NotFoundException {
+		// throw error if no username given
+		if (username == null || username.length() == 0) {
+			throw new NotFoundException("No username given");
+		}
+
+		// null outside of HTTP requests, e.g. STOMP frames
+		RequestAttributes request = RequestContextHolder.getRequestAttributes();
+		String key = PRINCIPAL_ATTRIBUTE_PREFIX + username;
+		if (request != null) {
+			UserPrincipal cached = (UserPrincipal) request.getAttribute(key, RequestAttributes.SCOPE_REQUEST);
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		UserPrincipal principal = this.userRepository.findPrincipalByUsername(username);
+		// throw error if user doesn't exist
+		if (principal == null || principal.getIsActive() == null || !principal.getIsActive()) {
+			throw new NotFoundException("User not found");
+		}
+
+		if (request != null) {
+			request.setAttribute(key, principal, RequestAttributes.SCOPE_REQUEST);
+		}
+		return principal;
+	}
+
 	/**
 	 * disable the user and delete all their relations
 	 * 
@@ -159,6 +206,7 @@ public class UserService {
 		// delete all the user's relations
 		this.userRepository.deleteUserRelations(username);
 		userRepository.save(user);
+		membershipIndex.removeUser(user);
 	}
 
 	/**
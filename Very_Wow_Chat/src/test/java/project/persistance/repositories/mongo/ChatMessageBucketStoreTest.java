@@ -0,0 +1,764 @@
+package project.persistance.repositories.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.MongoExceptionTranslator;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationResults;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+
+import project.persistance.entities.ChatMessage;
+
+/**
+ * The bucketed message storage of <code>ChatMessageBucketStore</code>: buckets
+ * filling up and overflowing, pages by offset and by cursor across periods,
+ * ties between messages posted in the same millisecond, counts, and reading no
+ * more buckets than a page needs. MongoDB is replaced by an in-memory
+ * collection that understands the queries, updates and aggregations the store
+ * sends.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+public class ChatMessageBucketStoreTest {
+
+	private static final long BUCKET_MILLIS = 1000;
+	private static final int BUCKET_SIZE = 3;
+
+	private static final Comparator<ChatMessage> CHRONOLOGICAL = Comparator.comparing(ChatMessage::getTimestamp)
+			.thenComparing(ChatMessage::getId);
+
+	private InMemoryMongoTemplate mongo;
+	private ChatMessageBucketStore store;
+	// every stored message, in (timestamp, _id) order once sorted
+	private final List<ChatMessage> stored = new ArrayList<>();
+
+	@Before
+	public void setUp() throws ReflectiveOperationException {
+		mongo = new InMemoryMongoTemplate();
+		store = new ChatMessageBucketStore();
+		set(store, "bucketMillis", BUCKET_MILLIS);
+		set(store, "bucketSize", BUCKET_SIZE);
+		set(store, "mongoTemplate", mongo);
+	}
+
+	@Test
+	public void fullBucketsOverflowIntoNewOnes() {
+		for (int i = 0; i < 7; i++) {
+			insert("room", 5000 + i);
+		}
+
+		List<Document> buckets = mongo.buckets("room");
+		assertEquals(3, buckets.size());
+		for (Document bucket : buckets) {
+			assertEquals(5000L, bucket.get("start"));
+			int count = ((Number) bucket.get("count")).intValue();
+			assertTrue(count <= BUCKET_SIZE);
+			assertEquals(count, ((List<?>) bucket.get("messages")).size());
+		}
+		assertEquals(7, store.count("room"));
+		assertEquals(ids(stored), ids(store.findPage("room", 0, 100)));
+	}
+
+	@Test
+	public void bucketsKeepTheirPeriodsBounds() {
+		insert("room", 5300);
+		insert("room", 5100);
+		insert("room", 5900);
+
+		Document bucket = mongo.buckets("room").get(0);
+		assertEquals(5100L, bucket.get("first"));
+		assertEquals(5900L, bucket.get("last"));
+		assertEquals(new Date(5900), bucket.get("createdAt"));
+	}
+
+	@Test
+	public void pagesByOffsetSkipWholePeriods() {
+		// periods of 1, 4 (two buckets), 0, 3 and 2 messages
+		long[] timestamps = { 1500, 2100, 2200, 2300, 2400, 4000, 4000, 4999, 5001, 5002 };
+		for (long timestamp : timestamps) {
+			insert("room", timestamp);
+		}
+		insert("other", 2500);
+		sortStored("room");
+
+		for (int offset = 0; offset <= timestamps.length + 1; offset++) {
+			for (int limit = 1; limit <= 5; limit++) {
+				assertEquals("offset " + offset + " limit " + limit, ids(slice(offset, offset + limit)),
+						ids(store.findPage("room", offset, limit)));
+			}
+		}
+	}
+
+	@Test
+	public void cursorPagesBreakTiesByObjectId() {
+		// a burst in one millisecond, spread over buckets
+		for (int i = 0; i < 8; i++) {
+			insert("room", 3500);
+		}
+		insert("room", 3499);
+		insert("room", 3501);
+		sortStored("room");
+
+		for (int i = 0; i < stored.size(); i++) {
+			ChatMessage cursor = stored.get(i);
+			assertEquals(ids(slice(i - 3, i)), ids(store.findPageBefore("room", cursor.getTimestamp(), cursor.getId(), 3)));
+			assertEquals(ids(slice(i + 1, i + 4)), ids(store.findPageAfter("room", cursor.getTimestamp(), cursor.getId(), 3)));
+			assertEquals(i, store.countBefore("room", cursor.getTimestamp(), cursor.getId()));
+		}
+		// a cursor without an id stands for its whole millisecond
+		assertEquals(ids(slice(0, 1)), ids(store.findPageBefore("room", 3500, null, 5)));
+		assertEquals(ids(slice(9, 10)), ids(store.findPageAfter("room", 3500, null, 5)));
+		assertEquals(1, store.countBefore("room", 3500, null));
+	}
+
+	@Test
+	public void agreesWithSortedMessages() {
+		Random random = new Random(7);
+		for (int i = 0; i < 300; i++) {
+			// few distinct timestamps, so plenty of ties, posted out of order
+			insert("room", 10000 + random.nextInt(60) * 97);
+		}
+		sortStored("room");
+
+		for (int trial = 0; trial < 200; trial++) {
+			int i = random.nextInt(stored.size());
+			int limit = 1 + random.nextInt(40);
+			ChatMessage cursor = stored.get(i);
+			assertEquals(ids(slice(i, i + limit)), ids(store.findPage("room", i, limit)));
+			assertEquals(ids(slice(i - limit, i)),
+					ids(store.findPageBefore("room", cursor.getTimestamp(), cursor.getId(), limit)));
+			assertEquals(ids(slice(i + 1, i + 1 + limit)),
+					ids(store.findPageAfter("room", cursor.getTimestamp(), cursor.getId(), limit)));
+			assertEquals(i, store.countBefore("room", cursor.getTimestamp(), cursor.getId()));
+
+			long from = stored.get(random.nextInt(stored.size())).getTimestamp();
+			long to = from + random.nextInt(3000);
+			List<ChatMessage> between = new ArrayList<>();
+			for (ChatMessage message : stored) {
+				if (message.getTimestamp() >= from && message.getTimestamp() <= to) {
+					between.add(message);
+				}
+			}
+			assertEquals(ids(between), ids(store.findBetween("room", from, to)));
+			assertEquals(ids(between), ids(drain(store.streamBetween("room", from, to))));
+		}
+		assertEquals(ids(stored), ids(drain(store.stream("room"))));
+		assertEquals(stored.size(), store.count("room"));
+	}
+
+	@Test
+	public void cursorPagesReadOnlyTheBucketsTheyNeed() {
+		// a long history, a message per period
+		for (int i = 0; i < 200; i++) {
+			insert("room", i * BUCKET_MILLIS + 10);
+		}
+		sortStored("room");
+
+		mongo.read = 0;
+		assertEquals(ids(slice(197, 200)), ids(store.findPageBefore("room", Long.MAX_VALUE, null, 3)));
+		// the three periods and the first bucket of the next one
+		assertTrue("read " + mongo.read, mongo.read <= 4);
+
+		mongo.read = 0;
+		ChatMessage cursor = stored.get(20);
+		assertEquals(ids(slice(21, 23)), ids(store.findPageAfter("room", cursor.getTimestamp(), cursor.getId(), 2)));
+		assertTrue("read " + mongo.read, mongo.read <= 4);
+
+		mongo.read = 0;
+		assertEquals(ids(slice(150, 152)), ids(store.findPage("room", 150, 2)));
+		assertTrue("read " + mongo.read, mongo.read <= 3);
+		assertEquals(0, mongo.open);
+	}
+
+	@Test
+	public void closedStreamsCloseTheirCursor() {
+		for (int i = 0; i < 10; i++) {
+			insert("room", i * BUCKET_MILLIS);
+		}
+
+		CloseableIterator<ChatMessage> messages = store.stream("room");
+		messages.next();
+		assertEquals(1, mongo.open);
+		messages.close();
+		assertEquals(0, mongo.open);
+	}
+
+	@Test
+	public void findsMessagesByIdAndClientMessageId() {
+		for (int i = 0; i < 5; i++) {
+			insert("room", 7000 + i);
+		}
+		ChatMessage message = message("room", 7002);
+		message.setClientMessageId("client-1");
+		store.insert(message);
+
+		assertEquals(message.getId(), store.findById("room", message.getId()).getId());
+		assertEquals("message 7002", store.findById("room", message.getId()).getMessage());
+		assertNull(store.findById("other", message.getId()));
+		assertNull(store.findById("room", "not an id"));
+
+		assertEquals(message.getId(), store.findByClientMessageId("room", 1, "client-1").getId());
+		assertNull(store.findByClientMessageId("room", 2, "client-1"));
+		try {
+			ChatMessage retry = message("room", 7003);
+			retry.setClientMessageId("client-1");
+			store.insert(retry);
+			fail("a retried message was stored twice");
+		} catch (DuplicateKeyException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void countsMessagesAfterPerRoom() {
+		insert("a", 1000);
+		insert("a", 2500);
+		insert("a", 2600);
+		insert("b", 1000);
+		insert("c", 9000);
+
+		Map<String, Long> after = new HashMap<>();
+		after.put("a", 2000L);
+		after.put("b", 1000L);
+		after.put("c", 0L);
+		Map<String, Long> expected = new HashMap<>();
+		expected.put("a", 2L);
+		expected.put("c", 1L);
+		assertEquals(expected, store.countMessagesAfter(after));
+	}
+
+	@Test
+	public void collectsReferencedResourcesAndDeletesRooms() {
+		ChatMessage withFiles = message("a", 1000);
+		withFiles.setResources(new ArrayList<>(Arrays.asList("h1", "h2")));
+		store.insert(withFiles);
+		ChatMessage withFile = message("b", 1000);
+		withFile.setResources(new ArrayList<>(Arrays.asList("h2", "h3")));
+		store.insert(withFile);
+		insert("b", 1001);
+
+		assertEquals(new HashSet<>(Arrays.asList("h1", "h2", "h3")), store.findReferencedResources());
+
+		store.deleteAll("b");
+		assertEquals(0, store.count("b"));
+		assertEquals(new HashSet<>(Arrays.asList("h1", "h2")), store.findReferencedResources());
+	}
+
+	private void insert(String chatroomName, long timestamp) {
+		ChatMessage message = message(chatroomName, timestamp);
+		store.insert(message);
+		stored.add(message);
+	}
+
+	private static ChatMessage message(String chatroomName, long timestamp) {
+		return new ChatMessage(null, chatroomName, 1, "user", "User", "message " + timestamp, timestamp,
+				new ArrayList<>());
+	}
+
+	/**
+	 * Keeps only the messages of chat room <code>chatroomName</code>, in order.
+	 */
+	private void sortStored(String chatroomName) {
+		stored.removeIf(message -> !message.getChatroomName().equals(chatroomName));
+		stored.sort(CHRONOLOGICAL);
+	}
+
+	private List<ChatMessage> slice(int from, int to) {
+		return stored.subList(Math.max(0, Math.min(from, stored.size())), Math.max(0, Math.min(to, stored.size())));
+	}
+
+	private static List<String> ids(List<ChatMessage> messages) {
+		List<String> ids = new ArrayList<>();
+		for (ChatMessage message : messages) {
+			ids.add(message.getId());
+		}
+		return ids;
+	}
+
+	private static List<ChatMessage> drain(CloseableIterator<ChatMessage> messages) {
+		List<ChatMessage> result = new ArrayList<>();
+		try {
+			messages.forEachRemaining(result::add);
+		} finally {
+			messages.close();
+		}
+		return result;
+	}
+
+	private static void set(Object target, String name, Object value) throws ReflectiveOperationException {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+
+	/**
+	 * The bucket collection in a list. Queries, updates and aggregation
+	 * pipelines are evaluated the way MongoDB would, as far as the store uses
+	 * them: field paths through arrays, comparisons, <code>$exists</code>,
+	 * <code>$in</code>, <code>$or</code>, <code>$elemMatch</code>, upserts with
+	 * <code>$push</code>, <code>$inc</code>, <code>$min</code> and
+	 * <code>$max</code>, and the <code>$match</code>, <code>$unwind</code>,
+	 * <code>$group</code> and <code>$sort</code> stages.
+	 */
+	private static class InMemoryMongoTemplate extends MongoTemplate {
+
+		private final List<Document> documents = new ArrayList<>();
+		// bucket documents handed out by finds and cursors
+		private int read = 0;
+		// cursors not closed yet
+		private int open = 0;
+
+		InMemoryMongoTemplate() {
+			super((MongoDbFactory) Proxy.newProxyInstance(InMemoryMongoTemplate.class.getClassLoader(),
+					new Class<?>[] { MongoDbFactory.class }, (proxy, method, args) -> {
+						if (method.getName().equals("getExceptionTranslator")) {
+							return new MongoExceptionTranslator();
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}));
+		}
+
+		List<Document> buckets(String chatroomName) {
+			List<Document> buckets = new ArrayList<>();
+			for (Document document : documents) {
+				if (chatroomName.equals(document.get("chatroomName"))) {
+					buckets.add(document);
+				}
+			}
+			return buckets;
+		}
+
+		@Override
+		public UpdateResult upsert(Query query, Update update, String collectionName) {
+			Document target = null;
+			for (Document document : documents) {
+				if (matches(document, query.getQueryObject())) {
+					target = document;
+					break;
+				}
+			}
+			if (target == null) {
+				target = new Document();
+				for (Map.Entry<String, Object> condition : query.getQueryObject().entrySet()) {
+					if (!isOperators(condition.getValue())) {
+						target.put(condition.getKey(), condition.getValue());
+					}
+				}
+				documents.add(target);
+			}
+			apply(target, update.getUpdateObject());
+			return null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> List<T> find(Query query, Class<T> entityClass, String collectionName) {
+			List<Document> result = new ArrayList<>();
+			for (Document document : documents) {
+				if (matches(document, query.getQueryObject())) {
+					result.add(project(document, query.getFieldsObject()));
+				}
+			}
+			result.sort(order(query.getSortObject()));
+			read += result.size();
+			return (List<T>) result;
+		}
+
+		@Override
+		public <T> T findOne(Query query, Class<T> entityClass, String collectionName) {
+			List<T> result = find(query, entityClass, collectionName);
+			return result.isEmpty() ? null : result.get(0);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> CloseableIterator<T> stream(Query query, Class<T> entityClass, String collectionName) {
+			List<Document> result = new ArrayList<>();
+			for (Document document : documents) {
+				if (matches(document, query.getQueryObject())) {
+					result.add(project(document, query.getFieldsObject()));
+				}
+			}
+			result.sort(order(query.getSortObject()));
+			return (CloseableIterator<T>) cursor(result, true);
+		}
+
+		@Override
+		public DeleteResult remove(Query query, String collectionName) {
+			documents.removeIf(document -> matches(document, query.getQueryObject()));
+			return null;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <O> AggregationResults<O> aggregate(Aggregation aggregation, String collectionName,
+				Class<O> outputType) {
+			return new AggregationResults<>((List<O>) run(aggregation, collectionName), new Document());
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <O> CloseableIterator<O> aggregateStream(Aggregation aggregation, String collectionName,
+				Class<O> outputType) {
+			return (CloseableIterator<O>) cursor(run(aggregation, collectionName), false);
+		}
+
+		private CloseableIterator<Document> cursor(List<Document> result, boolean buckets) {
+			open++;
+			Iterator<Document> iterator = result.iterator();
+			return new CloseableIterator<Document>() {
+
+				private boolean closed = false;
+
+				@Override
+				public boolean hasNext() {
+					return iterator.hasNext();
+				}
+
+				@Override
+				public Document next() {
+					if (buckets) {
+						read++;
+					}
+					return iterator.next();
+				}
+
+				@Override
+				public void close() {
+					if (!closed) {
+						closed = true;
+						open--;
+					}
+				}
+			};
+		}
+
+		@SuppressWarnings("unchecked")
+		private List<Document> run(Aggregation aggregation, String collectionName) {
+			List<Document> pipeline = (List<Document>) aggregation
+					.toDocument(collectionName, Aggregation.DEFAULT_CONTEXT).get("pipeline");
+			List<Document> result = new ArrayList<>(documents);
+			for (Document stage : pipeline) {
+				String operator = stage.keySet().iterator().next();
+				Object argument = stage.get(operator);
+				switch (operator) {
+				case "$match":
+					result.removeIf(document -> !matches(document, (Document) argument));
+					break;
+				case "$unwind":
+					String path = (argument instanceof Document ? ((Document) argument).getString("path")
+							: (String) argument).substring(1);
+					List<Document> unwound = new ArrayList<>();
+					for (Document document : result) {
+						Object array = get(document, path);
+						if (array instanceof List) {
+							for (Object element : (List<Object>) array) {
+								unwound.add(with(document, path, element));
+							}
+						}
+					}
+					result = unwound;
+					break;
+				case "$group":
+					result = group(result, (Document) argument);
+					break;
+				case "$sort":
+					result.sort(order((Document) argument));
+					break;
+				default:
+					throw new UnsupportedOperationException(operator);
+				}
+			}
+			return result;
+		}
+
+		private static List<Document> group(List<Document> documents, Document spec) {
+			Map<Object, Document> groups = new LinkedHashMap<>();
+			for (Document document : documents) {
+				Object key = evaluate(document, spec.get("_id"));
+				Document group = groups.computeIfAbsent(key, k -> new Document("_id", k));
+				for (Map.Entry<String, Object> field : spec.entrySet()) {
+					if (field.getKey().equals("_id")) {
+						continue;
+					}
+					Object sum = ((Document) field.getValue()).get("$sum");
+					Number value = (Number) evaluate(document, sum);
+					Number total = (Number) group.getOrDefault(field.getKey(), 0L);
+					group.put(field.getKey(), total.longValue() + (value != null ? value.longValue() : 0));
+				}
+			}
+			return new ArrayList<>(groups.values());
+		}
+
+		private static Object evaluate(Document document, Object expression) {
+			if (expression instanceof String && ((String) expression).startsWith("$")) {
+				return get(document, ((String) expression).substring(1));
+			}
+			return expression;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static void apply(Document document, Document update) {
+			for (Map.Entry<String, Object> operation : update.entrySet()) {
+				for (Map.Entry<String, Object> field : ((Document) operation.getValue()).entrySet()) {
+					String name = field.getKey();
+					Object value = field.getValue();
+					Object current = document.get(name);
+					switch (operation.getKey()) {
+					case "$push":
+						if (current == null) {
+							current = new ArrayList<>();
+							document.put(name, current);
+						}
+						((List<Object>) current).add(value);
+						break;
+					case "$inc":
+						document.put(name, (current == null ? 0 : ((Number) current).intValue())
+								+ ((Number) value).intValue());
+						break;
+					case "$min":
+						if (current == null || compare(value, current) < 0) {
+							document.put(name, value);
+						}
+						break;
+					case "$max":
+						if (current == null || compare(value, current) > 0) {
+							document.put(name, value);
+						}
+						break;
+					default:
+						throw new UnsupportedOperationException(operation.getKey());
+					}
+				}
+			}
+		}
+
+		/**
+		 * Copies <code>document</code> with only the first element matching an
+		 * <code>$elemMatch</code> projection left in its array. Other fields are
+		 * all returned.
+		 */
+		@SuppressWarnings("unchecked")
+		private static Document project(Document document, Document fields) {
+			Document copy = new Document(document);
+			for (Map.Entry<String, Object> field : fields.entrySet()) {
+				if (field.getValue() instanceof Document && ((Document) field.getValue()).containsKey("$elemMatch")) {
+					Document condition = (Document) ((Document) field.getValue()).get("$elemMatch");
+					List<Object> first = new ArrayList<>();
+					for (Object element : (List<Object>) document.get(field.getKey())) {
+						if (element instanceof Document && matches((Document) element, condition)) {
+							first.add(element);
+							break;
+						}
+					}
+					copy.put(field.getKey(), first);
+				}
+			}
+			return copy;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static boolean matches(Document document, Document query) {
+			for (Map.Entry<String, Object> condition : query.entrySet()) {
+				String key = condition.getKey();
+				if (key.equals("$or") || key.equals("$and")) {
+					boolean any = false;
+					boolean all = true;
+					for (Document clause : (List<Document>) condition.getValue()) {
+						boolean match = matches(document, clause);
+						any |= match;
+						all &= match;
+					}
+					if (key.equals("$or") ? !any : !all) {
+						return false;
+					}
+				} else if (!test(values(document, key), condition.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static boolean test(List<Object> values, Object condition) {
+			if (!isOperators(condition)) {
+				return values.stream().anyMatch(value -> equal(value, condition));
+			}
+			for (Map.Entry<String, Object> operator : ((Document) condition).entrySet()) {
+				Object operand = operator.getValue();
+				boolean match;
+				switch (operator.getKey()) {
+				case "$exists":
+					match = values.isEmpty() != (Boolean) operand;
+					break;
+				case "$in":
+					match = values.stream().anyMatch(
+							value -> ((Collection<Object>) operand).stream().anyMatch(option -> equal(value, option)));
+					break;
+				case "$elemMatch":
+					match = values.stream()
+							.anyMatch(value -> value instanceof Document && matches((Document) value, (Document) operand));
+					break;
+				case "$lt":
+					match = values.stream().anyMatch(value -> comparable(value, operand) && compare(value, operand) < 0);
+					break;
+				case "$lte":
+					match = values.stream().anyMatch(value -> comparable(value, operand) && compare(value, operand) <= 0);
+					break;
+				case "$gt":
+					match = values.stream().anyMatch(value -> comparable(value, operand) && compare(value, operand) > 0);
+					break;
+				case "$gte":
+					match = values.stream().anyMatch(value -> comparable(value, operand) && compare(value, operand) >= 0);
+					break;
+				default:
+					throw new UnsupportedOperationException(operator.getKey());
+				}
+				if (!match) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static boolean isOperators(Object condition) {
+			return condition instanceof Document && !((Document) condition).isEmpty()
+					&& ((Document) condition).keySet().stream().allMatch(key -> key.startsWith("$"));
+		}
+
+		/**
+		 * Every value at dotted path <code>path</code>, going into arrays along
+		 * the way, and the elements of an array at the end as well as the array.
+		 */
+		@SuppressWarnings("unchecked")
+		private static List<Object> values(Object document, String path) {
+			List<Object> current = Collections.singletonList(document);
+			for (String part : path.split("\\.")) {
+				List<Object> next = new ArrayList<>();
+				for (Object value : current) {
+					if (value instanceof Document) {
+						if (((Document) value).containsKey(part)) {
+							next.add(((Document) value).get(part));
+						}
+					} else if (value instanceof List) {
+						List<Object> list = (List<Object>) value;
+						if (part.matches("\\d+")) {
+							int index = Integer.parseInt(part);
+							if (index < list.size()) {
+								next.add(list.get(index));
+							}
+						} else {
+							for (Object element : list) {
+								if (element instanceof Document && ((Document) element).containsKey(part)) {
+									next.add(((Document) element).get(part));
+								}
+							}
+						}
+					}
+				}
+				current = next;
+			}
+			List<Object> result = new ArrayList<>();
+			for (Object value : current) {
+				if (value instanceof List) {
+					result.addAll((List<Object>) value);
+				}
+				result.add(value);
+			}
+			return result;
+		}
+
+		private static Object get(Document document, String path) {
+			Object value = document;
+			for (String part : path.split("\\.")) {
+				if (!(value instanceof Document)) {
+					return null;
+				}
+				value = ((Document) value).get(part);
+			}
+			return value;
+		}
+
+		/**
+		 * Copies <code>document</code> with the value at dotted path
+		 * <code>path</code> replaced, copying the documents along the path.
+		 */
+		private static Document with(Document document, String path, Object value) {
+			int dot = path.indexOf('.');
+			Document copy = new Document(document);
+			if (dot < 0) {
+				copy.put(path, value);
+			} else {
+				String head = path.substring(0, dot);
+				copy.put(head, with((Document) document.get(head), path.substring(dot + 1), value));
+			}
+			return copy;
+		}
+
+		private static Comparator<Document> order(Document sort) {
+			Comparator<Document> order = (a, b) -> 0;
+			for (Map.Entry<String, Object> key : sort.entrySet()) {
+				int direction = ((Number) key.getValue()).intValue();
+				order = order.thenComparing((a, b) -> direction * compare(get(a, key.getKey()), get(b, key.getKey())));
+			}
+			return order;
+		}
+
+		private static boolean equal(Object a, Object b) {
+			if (a instanceof Number && b instanceof Number) {
+				return compare(a, b) == 0;
+			}
+			return Objects.equals(a, b);
+		}
+
+		private static boolean comparable(Object a, Object b) {
+			return a instanceof Number && b instanceof Number || a != null && b != null && a.getClass() == b.getClass();
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private static int compare(Object a, Object b) {
+			if (a == null || b == null) {
+				return a == null ? (b == null ? 0 : -1) : 1;
+			}
+			if (a instanceof Number && b instanceof Number) {
+				return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+			}
+			if (a instanceof ObjectId || a instanceof Date || a instanceof String) {
+				return ((Comparable) a).compareTo(b);
+			}
+			throw new UnsupportedOperationException("can't compare " + a.getClass());
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package project.services;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.security.crypto.encrypt.Encryptors;
+
+/**
+ * Messages decrypted per second, before (a new <code>Encryptors.text</code>,
+ * and thereby a new key derivation, for every message) and after (key derived
+ * once in <code>CryptographyService</code>).
+ *
+ * Not a unit test, run it with e.g.
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=project.services.CryptographyServiceBenchmark</code>
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptographyServiceBenchmark {
+
+	private static final String PASSWORD = "benchmark-password";
+	private static final String SALT = "5c0744940b5c369b";
+
+	private String ciphertext;
+
+	@Setup
+	public void setup() {
+		CryptographyService.initialize(PASSWORD, SALT);
+		// a typical chat message, encrypted the way it was before
+		ciphertext = Encryptors.text(PASSWORD, SALT).encrypt("Hello world! Are we still meeting at noon?");
+	}
+
+	@Benchmark
+	public String decryptWithEncryptorsPerMessage() {
+		return Encryptors.text(PASSWORD, SALT).decrypt(ciphertext);
+	}
+
+	@Benchmark
+	public String decryptWithCachedKey() {
+		return CryptographyService.getPlaintext(ciphertext);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(CryptographyServiceBenchmark.class.getSimpleName()).build()).run();
+	}
+}
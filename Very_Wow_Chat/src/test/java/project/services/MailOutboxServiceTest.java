@@ -0,0 +1,373 @@
+package project.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.ListOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Sends emails from the outbox to a stub email server, with an in-memory
+ * stand-in for Redis.
+ *
+ * @author Róman(ror9@hi.is)
+ */
+public class MailOutboxServiceTest {
+
+	private static final String OUTBOX = "mail:outbox";
+	private static final String PROCESSING = "mail:outbox:processing";
+	private static final String RETRY = "mail:outbox:retry";
+	private static final String DEAD = "mail:outbox:dead";
+
+	private static final long RETRY_DELAY_MILLIS = 50;
+	private static final int MAX_ATTEMPTS = 3;
+
+	private HttpServer server;
+	// form bodies the stub received
+	private final List<Map<String, String>> received = new CopyOnWriteArrayList<>();
+	// the stub answers 500 to this many requests before answering 200
+	private final AtomicInteger failuresLeft = new AtomicInteger();
+
+	private InMemoryRedisTemplate redis;
+	private MailOutboxService outbox;
+
+	@Before
+	public void setUp() throws Exception {
+		CryptographyService.initialize("test-password", "5c0744940b5c369b");
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			try (InputStream in = exchange.getRequestBody()) {
+				received.add(parseForm(IOUtils.toString(in, StandardCharsets.UTF_8)));
+			}
+			int status = failuresLeft.getAndDecrement() > 0 ? 500 : 200;
+			byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(status, body.length);
+			exchange.getResponseBody().write(body);
+			exchange.close();
+		});
+		server.start();
+
+		redis = new InMemoryRedisTemplate();
+		outbox = new MailOutboxService();
+		set("emailServerUrl", "http://127.0.0.1:" + server.getAddress().getPort() + "/send");
+		set("emailServerSecretKey", "secret");
+		set("workers", 2);
+		set("maxAttempts", MAX_ATTEMPTS);
+		set("retryDelayMillis", RETRY_DELAY_MILLIS);
+		set("dedupeSeconds", 600L);
+		set("redisTemplate", redis);
+		outbox.init();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		outbox.destroy();
+		server.stop(0);
+	}
+
+	@Test
+	public void sendsQueuedEmail() {
+		outbox.enqueue("someone@example.com", "validation", "Welcome!");
+		outbox.drain();
+
+		await(() -> received.size() == 1 && redis.list(PROCESSING).isEmpty());
+		assertEquals("someone@example.com", received.get(0).get("toMail"));
+		assertEquals("Welcome!", received.get(0).get("content"));
+		assertEquals("secret", received.get(0).get("seckey"));
+		assertTrue(redis.list(OUTBOX).isEmpty());
+		assertTrue(redis.zset(RETRY).isEmpty());
+	}
+
+	@Test
+	public void sendsDuplicateOnce() {
+		outbox.enqueue("someone@example.com", "validation", "Welcome!");
+		outbox.enqueue("someone@example.com", "validation", "Welcome!");
+
+		assertEquals(1, redis.list(OUTBOX).size());
+	}
+
+	@Test
+	public void sendsOneEmailOfAKindPerRecipient() {
+		// every reset email has a new key, they're still duplicates
+		outbox.enqueue("someone@example.com", "password_reset", "Reset URL: .../password_reset/1a2b");
+		outbox.enqueue("someone@example.com", "password_reset", "Reset URL: .../password_reset/3c4d");
+		assertEquals(1, redis.list(OUTBOX).size());
+
+		outbox.enqueue("someone@example.com", "validation", "Welcome!");
+		outbox.enqueue("someone.else@example.com", "password_reset", "Reset URL: .../password_reset/5e6f");
+		assertEquals(3, redis.list(OUTBOX).size());
+	}
+
+	@Test
+	public void retriesWithBackoff() {
+		failuresLeft.set(2);
+		outbox.enqueue("someone@example.com", "validation", "Welcome!");
+
+		long before = System.currentTimeMillis();
+		outbox.drain();
+		await(() -> redis.zset(RETRY).size() == 1 && redis.list(PROCESSING).isEmpty());
+		Map.Entry<String, Double> first = redis.zset(RETRY).entrySet().iterator().next();
+		assertEquals(1, attempts(first.getKey()));
+		assertTrue(first.getValue() >= before + RETRY_DELAY_MILLIS);
+
+		// not due yet
+		outbox.drain();
+		assertEquals(1, received.size());
+
+		sleepUntil(first.getValue().longValue());
+		long retried = System.currentTimeMillis();
+		outbox.drain();
+		await(() -> received.size() == 2 && redis.zset(RETRY).size() == 1 && redis.list(PROCESSING).isEmpty());
+		Map.Entry<String, Double> second = redis.zset(RETRY).entrySet().iterator().next();
+		assertEquals(2, attempts(second.getKey()));
+		// the delay doubles
+		assertTrue(second.getValue() >= retried + 2 * RETRY_DELAY_MILLIS);
+
+		sleepUntil(second.getValue().longValue());
+		outbox.drain();
+		await(() -> received.size() == 3 && redis.list(PROCESSING).isEmpty());
+		assertTrue(redis.zset(RETRY).isEmpty());
+		assertTrue(redis.list(DEAD).isEmpty());
+	}
+
+	@Test
+	public void givesUpAfterMaxAttempts() {
+		failuresLeft.set(Integer.MAX_VALUE);
+		outbox.enqueue("someone@example.com", "validation", "Welcome!");
+
+		for (int attempt = 1; attempt < MAX_ATTEMPTS; attempt++) {
+			outbox.drain();
+			int sent = attempt;
+			await(() -> received.size() == sent && redis.zset(RETRY).size() == 1);
+			sleepUntil(redis.zset(RETRY).values().iterator().next().longValue());
+		}
+		outbox.drain();
+		await(() -> redis.list(DEAD).size() == 1 && redis.list(PROCESSING).isEmpty());
+		assertEquals(MAX_ATTEMPTS, received.size());
+		assertTrue(redis.zset(RETRY).isEmpty());
+	}
+
+	@Test
+	public void recoversEmailsBeingSentWhenTheServerStopped() {
+		JSONObject job = new JSONObject();
+		job.put("id", "crashed");
+		job.put("toMail", "someone@example.com");
+		job.put("content", "Reset your password");
+		job.put("attempts", 0);
+		redis.push(PROCESSING, CryptographyService.getCiphertext(job.toString()));
+
+		outbox.recover();
+		assertTrue(redis.list(PROCESSING).isEmpty());
+		assertEquals(1, redis.list(OUTBOX).size());
+
+		outbox.drain();
+		await(() -> received.size() == 1 && redis.list(PROCESSING).isEmpty());
+		assertEquals("Reset your password", received.get(0).get("content"));
+		assertTrue(redis.list(OUTBOX).isEmpty());
+	}
+
+	@Test
+	public void dropsJobsThatCantBeRead() {
+		redis.push(OUTBOX, "not a ciphertext");
+
+		outbox.drain();
+		await(() -> redis.list(PROCESSING).isEmpty());
+		assertTrue(redis.list(OUTBOX).isEmpty());
+		assertTrue(received.isEmpty());
+
+		// and it doesn't come back on the next start
+		outbox.recover();
+		assertTrue(redis.list(OUTBOX).isEmpty());
+	}
+
+	private void set(String name, Object value) throws ReflectiveOperationException {
+		Field field = MailOutboxService.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(outbox, value);
+	}
+
+	private static int attempts(String encryptedJob) {
+		return new JSONObject(CryptographyService.getPlaintext(encryptedJob)).getInt("attempts");
+	}
+
+	private static Map<String, String> parseForm(String body) throws IOException {
+		Map<String, String> form = new HashMap<>();
+		for (String pair : body.split("&")) {
+			int i = pair.indexOf('=');
+			form.put(URLDecoder.decode(pair.substring(0, i), "UTF-8"), URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+		}
+		return form;
+	}
+
+	private static void await(BooleanSupplier condition) {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new AssertionError("Timed out");
+			}
+			sleep(10);
+		}
+	}
+
+	private static void sleepUntil(long time) {
+		while (System.currentTimeMillis() <= time) {
+			sleep(10);
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * The Redis commands the outbox uses, on lists and sorted sets kept in
+	 * memory.
+	 */
+	private static class InMemoryRedisTemplate extends StringRedisTemplate {
+
+		private final Map<String, LinkedList<String>> lists = new HashMap<>();
+		private final Map<String, Map<String, Double>> zsets = new HashMap<>();
+		private final Set<String> keys = new LinkedHashSet<>();
+
+		/**
+		 * Returns a copy of list <code>key</code>, head first.
+		 */
+		synchronized List<String> list(String key) {
+			return new ArrayList<>(rawList(key));
+		}
+
+		/**
+		 * Returns a copy of sorted set <code>key</code>, lowest score first.
+		 */
+		synchronized Map<String, Double> zset(String key) {
+			List<Map.Entry<String, Double>> entries = new ArrayList<>(rawZset(key).entrySet());
+			entries.sort(Map.Entry.comparingByValue());
+			Map<String, Double> zset = new LinkedHashMap<>();
+			for (Map.Entry<String, Double> entry : entries) {
+				zset.put(entry.getKey(), entry.getValue());
+			}
+			return zset;
+		}
+
+		synchronized void push(String key, String value) {
+			rawList(key).addFirst(value);
+		}
+
+		private LinkedList<String> rawList(String key) {
+			return lists.computeIfAbsent(key, k -> new LinkedList<>());
+		}
+
+		private Map<String, Double> rawZset(String key) {
+			return zsets.computeIfAbsent(key, k -> new HashMap<>());
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public ListOperations<String, String> opsForList() {
+			return (ListOperations<String, String>) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { ListOperations.class }, (proxy, method, args) -> {
+						synchronized (this) {
+							switch (method.getName()) {
+							case "leftPush":
+								rawList((String) args[0]).addFirst((String) args[1]);
+								return (long) rawList((String) args[0]).size();
+							case "rightPopAndLeftPush":
+								String value = rawList((String) args[0]).pollLast();
+								if (value != null) {
+									rawList((String) args[1]).addFirst(value);
+								}
+								return value;
+							case "remove":
+								long removed = 0;
+								while (removed < (Long) args[1] && rawList((String) args[0]).remove(args[2])) {
+									removed++;
+								}
+								return removed;
+							default:
+								throw new UnsupportedOperationException(method.getName());
+							}
+						}
+					});
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public ZSetOperations<String, String> opsForZSet() {
+			return (ZSetOperations<String, String>) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { ZSetOperations.class }, (proxy, method, args) -> {
+						synchronized (this) {
+							Map<String, Double> zset = rawZset((String) args[0]);
+							switch (method.getName()) {
+							case "add":
+								return zset.put((String) args[1], (Double) args[2]) == null;
+							case "remove":
+								long removed = 0;
+								for (Object value : (Object[]) args[1]) {
+									removed += zset.remove(value) != null ? 1 : 0;
+								}
+								return removed;
+							case "rangeByScore":
+								Set<String> range = new LinkedHashSet<>();
+								for (Map.Entry<String, Double> entry : zset((String) args[0]).entrySet()) {
+									if (entry.getValue() >= (Double) args[1] && entry.getValue() <= (Double) args[2]) {
+										range.add(entry.getKey());
+									}
+								}
+								return range;
+							default:
+								throw new UnsupportedOperationException(method.getName());
+							}
+						}
+					});
+		}
+
+		@Override
+		public <T> T execute(RedisCallback<T> action) {
+			// SET NX, expiry ignored
+			RedisConnection connection = (RedisConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { RedisConnection.class }, (proxy, method, args) -> {
+						if (!method.getName().equals("set")) {
+							throw new UnsupportedOperationException(method.getName());
+						}
+						synchronized (this) {
+							return keys.add(new String((byte[]) args[0], StandardCharsets.UTF_8));
+						}
+					});
+			return action.doInRedis(connection);
+		}
+	}
+}
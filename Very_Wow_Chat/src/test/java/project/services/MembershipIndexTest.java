@@ -0,0 +1,268 @@
+package project.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import project.persistance.entities.Chatroom;
+import project.persistance.entities.User;
+
+/**
+ * The open addressing table of <code>MembershipIndex</code>: inserting,
+ * deleting, growing, probe sequences that wrap around the end of the table and
+ * reads while it's being written.
+ *
+ * @author Vilhelml
+ */
+public class MembershipIndexTest {
+
+	private MembershipIndex index;
+
+	@Before
+	public void setUp() {
+		index = new MembershipIndex();
+	}
+
+	@Test
+	public void grantsAndCombinesRoles() {
+		grant(1, 2, MembershipIndex.MEMBER);
+		grant(1, 2, MembershipIndex.ADMIN);
+
+		assertTrue(index.hasRole(1, 2, MembershipIndex.MEMBER));
+		assertTrue(index.hasRole(1, 2, MembershipIndex.ADMIN));
+		assertFalse(index.hasRole(1, 2, MembershipIndex.OWNER));
+		assertFalse(index.hasRole(2, 1, MembershipIndex.MEMBER));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void zeroIdsAreIndexed() {
+		grant(0, 0, MembershipIndex.OWNER);
+
+		assertTrue(index.hasRole(0, 0, MembershipIndex.OWNER));
+		assertFalse(index.hasRole(0, 1, MembershipIndex.OWNER));
+	}
+
+	@Test
+	public void revokingTheLastRoleRemovesThePair() {
+		grant(1, 2, MembershipIndex.MEMBER);
+		grant(1, 2, MembershipIndex.ADMIN);
+
+		revoke(1, 2, MembershipIndex.ADMIN);
+		assertTrue(index.hasRole(1, 2, MembershipIndex.MEMBER));
+		assertFalse(index.hasRole(1, 2, MembershipIndex.ADMIN));
+		assertEquals(1, index.size());
+
+		revoke(1, 2, MembershipIndex.MEMBER);
+		assertFalse(index.hasRole(1, 2, MembershipIndex.MEMBER));
+		assertEquals(0, index.size());
+
+		// revoking what isn't there does nothing
+		revoke(1, 2, MembershipIndex.MEMBER);
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void unsavedEntitiesAreIgnored() {
+		index.grant(new User(), chatroom(1), MembershipIndex.MEMBER);
+		index.revoke(user(1), new Chatroom(), MembershipIndex.MEMBER);
+
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void growsAndKeepsEverything() {
+		int initialCapacity = index.capacity();
+		int pairs = initialCapacity * 4;
+		for (int i = 0; i < pairs; i++) {
+			grant(i % 97, i, MembershipIndex.MEMBER);
+		}
+
+		assertTrue(index.capacity() > initialCapacity);
+		// load factor stays under a half
+		assertTrue(index.size() * 2 <= index.capacity());
+		assertEquals(pairs, index.size());
+		for (int i = 0; i < pairs; i++) {
+			assertTrue(index.hasRole(i % 97, i, MembershipIndex.MEMBER));
+			assertFalse(index.hasRole(i % 97 + 1, i, MembershipIndex.MEMBER));
+		}
+	}
+
+	@Test
+	public void probesWrapAroundTheEndOfTheTable() {
+		int last = index.capacity() - 1;
+		// three pairs whose home is the last slot, so two of them wrap to the start
+		List<Long> wrapped = chatroomIdsWithHome(7, last, 3);
+		// and one whose home is the first slot, pushed along by the wrapped ones
+		long first = chatroomIdsWithHome(7, 0, 1).get(0);
+		for (long chatroomId : wrapped) {
+			grant(7, chatroomId, MembershipIndex.MEMBER);
+		}
+		grant(7, first, MembershipIndex.MEMBER);
+
+		for (long chatroomId : wrapped) {
+			assertTrue(index.hasRole(7, chatroomId, MembershipIndex.MEMBER));
+		}
+		assertTrue(index.hasRole(7, first, MembershipIndex.MEMBER));
+
+		// removing the one in the last slot shifts the others back across the end
+		revoke(7, wrapped.get(0), MembershipIndex.MEMBER);
+		assertFalse(index.hasRole(7, wrapped.get(0), MembershipIndex.MEMBER));
+		assertTrue(index.hasRole(7, wrapped.get(1), MembershipIndex.MEMBER));
+		assertTrue(index.hasRole(7, wrapped.get(2), MembershipIndex.MEMBER));
+		assertTrue(index.hasRole(7, first, MembershipIndex.MEMBER));
+
+		revoke(7, wrapped.get(2), MembershipIndex.MEMBER);
+		assertTrue(index.hasRole(7, wrapped.get(1), MembershipIndex.MEMBER));
+		assertTrue(index.hasRole(7, first, MembershipIndex.MEMBER));
+		assertEquals(2, index.size());
+
+		revoke(7, wrapped.get(1), MembershipIndex.MEMBER);
+		assertTrue(index.hasRole(7, first, MembershipIndex.MEMBER));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void removesAllRolesOfAChatroomOrUser() {
+		for (int user = 0; user < 50; user++) {
+			for (int chatroom = 0; chatroom < 20; chatroom++) {
+				grant(user, chatroom, MembershipIndex.MEMBER);
+			}
+		}
+
+		index.removeChatroom(chatroom(3));
+		index.removeUser(user(10));
+
+		for (int user = 0; user < 50; user++) {
+			for (int chatroom = 0; chatroom < 20; chatroom++) {
+				boolean expected = chatroom != 3 && user != 10;
+				assertEquals(expected, index.hasRole(user, chatroom, MembershipIndex.MEMBER));
+			}
+		}
+		assertEquals(49 * 19, index.size());
+	}
+
+	@Test
+	public void agreesWithAHashMap() {
+		Random random = new Random(42);
+		Map<String, Integer> expected = new HashMap<>();
+		int[] roles = { MembershipIndex.MEMBER, MembershipIndex.ADMIN, MembershipIndex.OWNER,
+				MembershipIndex.MEMBER_INVITE, MembershipIndex.ADMIN_INVITE };
+		for (int i = 0; i < 100000; i++) {
+			// a small id space, so there are plenty of collisions and deletions
+			long user = random.nextInt(40);
+			long chatroom = random.nextInt(40);
+			int role = roles[random.nextInt(roles.length)];
+			String key = user + "/" + chatroom;
+			int current = expected.getOrDefault(key, 0);
+			if (random.nextBoolean()) {
+				grant(user, chatroom, role);
+				expected.put(key, current | role);
+			} else {
+				revoke(user, chatroom, role);
+				if ((current & ~role) == 0) {
+					expected.remove(key);
+				} else {
+					expected.put(key, current & ~role);
+				}
+			}
+		}
+
+		assertEquals(expected.size(), index.size());
+		for (long user = 0; user < 40; user++) {
+			for (long chatroom = 0; chatroom < 40; chatroom++) {
+				int current = expected.getOrDefault(user + "/" + chatroom, 0);
+				for (int role : roles) {
+					assertEquals((current & role) != 0, index.hasRole(user, chatroom, role));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void readersSeeStableEntriesWhileWritersResizeAndDelete() throws InterruptedException {
+		// user 1 is a member of these the whole time
+		for (long chatroom = 0; chatroom < 200; chatroom++) {
+			grant(1, chatroom, MembershipIndex.MEMBER);
+		}
+
+		AtomicBoolean done = new AtomicBoolean(false);
+		AtomicReference<String> failure = new AtomicReference<>();
+		List<Thread> readers = new ArrayList<>();
+		for (int r = 0; r < 4; r++) {
+			Thread reader = new Thread(() -> {
+				Random random = new Random();
+				while (!done.get()) {
+					long chatroom = random.nextInt(200);
+					if (!index.hasRole(1, chatroom, MembershipIndex.MEMBER)) {
+						failure.compareAndSet(null, "lost user 1 in chat room " + chatroom);
+					}
+				}
+			});
+			reader.start();
+			readers.add(reader);
+		}
+
+		Thread writer = new Thread(() -> {
+			// other users come and go, growing the table several times
+			for (int round = 0; round < 5; round++) {
+				for (long user = 2; user < 2000; user++) {
+					grant(user, user % 200, MembershipIndex.MEMBER);
+				}
+				for (long user = 2; user < 2000; user++) {
+					revoke(user, user % 200, MembershipIndex.MEMBER);
+				}
+			}
+		});
+		writer.start();
+		writer.join();
+		done.set(true);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+
+		assertEquals(null, failure.get());
+		assertEquals(200, index.size());
+	}
+
+	private List<Long> chatroomIdsWithHome(long userId, int slot, int count) {
+		List<Long> ids = new ArrayList<>();
+		for (long chatroomId = 0; ids.size() < count; chatroomId++) {
+			if (index.slotOf(userId, chatroomId) == slot) {
+				ids.add(chatroomId);
+			}
+		}
+		return ids;
+	}
+
+	private void grant(long userId, long chatroomId, int role) {
+		index.grant(user(userId), chatroom(chatroomId), role);
+	}
+
+	private void revoke(long userId, long chatroomId, int role) {
+		index.revoke(user(userId), chatroom(chatroomId), role);
+	}
+
+	private static User user(long id) {
+		User user = new User();
+		user.setId(id);
+		return user;
+	}
+
+	private static Chatroom chatroom(long id) {
+		Chatroom chatroom = new Chatroom();
+		chatroom.setId(id);
+		return chatroom;
+	}
+}
@@ -0,0 +1,325 @@
+package project.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import project.payloads.MessageCursor;
+import project.payloads.MessageResponse;
+import project.persistance.entities.ChatMessage;
+import project.persistance.repositories.mongo.ChatMessageRepository;
+
+/**
+ * The ring buffers of <code>MessageCache</code>: loading a room, appending and
+ * wrapping around, the offsets of pages, messages stored while a room loads,
+ * and evicting the least recently read rooms. MongoDB is replaced by messages
+ * kept in a list.
+ *
+ * @author Davíð Helgason (dah38@hi.is)
+ */
+public class MessageCacheTest {
+
+	private static final int CAPACITY = 10;
+
+	private MessageCache cache;
+	// every stored message, in (timestamp, _id) order
+	private final List<ChatMessage> stored = new ArrayList<>();
+	private final AtomicInteger loads = new AtomicInteger();
+	// run by the stand-in for MongoDB when a room is read, to store a message meanwhile
+	private Runnable duringLoad;
+	private long nextId = 1;
+
+	@Before
+	public void setUp() throws ReflectiveOperationException {
+		CryptographyService.initialize("test-password", "5c0744940b5c369b");
+
+		MessageDecryptionService messageDecryptionService = new MessageDecryptionService();
+		// always decrypt on the calling thread, there's no pool without Spring
+		set(messageDecryptionService, "threshold", Integer.MAX_VALUE);
+
+		cache = new MessageCache();
+		set(cache, "roomCapacity", CAPACITY);
+		set(cache, "maxBytes", Long.MAX_VALUE);
+		set(cache, "chatMessageRepository", repository());
+		set(cache, "messageDecryptionService", messageDecryptionService);
+	}
+
+	@Test
+	public void smallRoomIsCachedWhole() {
+		store("room", 5);
+
+		List<MessageResponse> page = cache.page("room", 0, 100);
+		assertEquals(texts(0, 5), texts(page));
+		assertEquals(1, loads.get());
+
+		// read from the ring from now on
+		assertEquals(texts(2, 4), texts(cache.page("room", 2, 2)));
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void largeRoomCachesTheNewestAndCountsTheRest() {
+		store("room", 25);
+
+		// the ring holds messages 15 to 24
+		assertNull(cache.page("room", 14, 1));
+		assertEquals(texts(15, 18), texts(cache.page("room", 15, 3)));
+		assertEquals(texts(22, 25), texts(cache.page("room", 22, 100)));
+		assertTrue(cache.page("room", 25, 10).isEmpty());
+	}
+
+	@Test
+	public void zeroLimitMeansNoLimit() {
+		store("room", 25);
+
+		assertEquals(texts(20, 25), texts(cache.page("room", 20, 0)));
+	}
+
+	@Test
+	public void appendsWrapAroundTheRing() {
+		store("room", 8);
+		cache.page("room", 0, 1);
+
+		for (int i = 0; i < 15; i++) {
+			cache.add(store("room", 1).get(0));
+		}
+
+		// 23 messages, the ring has the last 10 after wrapping around
+		assertNull(cache.page("room", 12, 1));
+		assertEquals(texts(13, 23), texts(cache.page("room", 13, 100)));
+		assertEquals(1, loads.get());
+
+		List<MessageResponse> before = cache.before("room", cursorOf(20), 3);
+		assertEquals(texts(17, 20), texts(before));
+		// older than the ring
+		assertNull(cache.before("room", cursorOf(15), 5));
+
+		assertEquals(texts(21, 23), texts(cache.after("room", cursorOf(20), 5)));
+		assertNull(cache.after("room", cursorOf(5), 5));
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void betweenUsesTheRingWhenItCoversTheRange() {
+		store("room", 25);
+
+		// timestamps are 1000 + index
+		assertEquals(texts(16, 20), texts(cache.between("room", 1016, 1019)));
+		assertNull(cache.between("room", 1010, 1019));
+	}
+
+	@Test
+	public void messageStoredWhileLoadingIsCountedOnce() {
+		store("room", 25);
+		List<ChatMessage> late = new ArrayList<>();
+		// stored after the room was counted in the old code, and its add() only
+		// arrives once the room is loaded
+		duringLoad = () -> late.addAll(store("room", 1));
+
+		assertNotNull(cache.page("room", 20, 1));
+		duringLoad = null;
+		cache.add(late.get(0));
+
+		// 26 messages, the last one is at offset 25
+		assertEquals(texts(25, 26), texts(cache.page("room", 25, 1)));
+		assertEquals(texts(16, 26), texts(cache.page("room", 16, 100)));
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void roomPostedToWhileLoadingIsNotCached() {
+		store("room", 5);
+		cache.page("room", 0, 1);
+		cache.invalidate("room");
+		duringLoad = () -> cache.add(store("room", 1).get(0));
+
+		assertNull(cache.page("room", 0, 100));
+		duringLoad = null;
+		assertEquals(texts(0, 6), texts(cache.page("room", 0, 100)));
+	}
+
+	@Test
+	public void outOfOrderMessageDropsTheRoom() {
+		store("room", 5);
+		cache.page("room", 0, 1);
+
+		ChatMessage old = message("room", 999, "old");
+		stored.add(0, old);
+		cache.add(old);
+
+		assertEquals(6, cache.page("room", 0, 100).size());
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void invalidateDropsTheRoom() {
+		store("room", 5);
+		cache.page("room", 0, 1);
+
+		cache.invalidate("room");
+		cache.page("room", 0, 1);
+
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void evictsLeastRecentlyReadRooms() throws ReflectiveOperationException {
+		store("a", CAPACITY);
+		store("b", CAPACITY);
+		store("c", CAPACITY);
+		cache.page("a", 0, 1);
+		long oneRoom = (long) get(cache, "bytes");
+		// room for two full rooms
+		set(cache, "maxBytes", oneRoom * 2 + oneRoom / 2);
+
+		cache.page("b", 0, 1);
+		cache.page("a", 0, 1);
+		assertEquals(2, loads.get());
+
+		// b is the least recently read, so it goes
+		cache.page("c", 0, 1);
+		assertEquals(3, loads.get());
+		cache.page("a", 0, 1);
+		cache.page("c", 0, 1);
+		assertEquals(3, loads.get());
+		cache.page("b", 0, 1);
+		assertEquals(4, loads.get());
+		assertTrue((long) get(cache, "bytes") <= oneRoom * 2 + oneRoom / 2);
+	}
+
+	@Test
+	public void mostRecentlyReadRoomIsKeptOverBudget() throws ReflectiveOperationException {
+		store("a", CAPACITY);
+		set(cache, "maxBytes", 1L);
+
+		cache.page("a", 0, 1);
+		cache.page("a", 0, 1);
+
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void appendingWithinBudgetEvictsOthers() throws ReflectiveOperationException {
+		store("a", 1);
+		store("b", 1);
+		cache.page("a", 0, 1);
+		cache.page("b", 0, 1);
+		long twoSmallRooms = (long) get(cache, "bytes");
+		set(cache, "maxBytes", twoSmallRooms);
+
+		// b grows, so a has to go
+		cache.add(store("b", 1).get(0));
+		cache.page("b", 0, 1);
+		cache.page("a", 0, 1);
+
+		assertEquals(3, loads.get());
+	}
+
+	/**
+	 * Stores <code>count</code> more messages in chat room <code>chatroomName</code>,
+	 * each a millisecond after the last, with texts numbered from 0 per room.
+	 */
+	private List<ChatMessage> store(String chatroomName, int count) {
+		List<ChatMessage> messages = new ArrayList<>();
+		int n = (int) stored.stream().filter(message -> message.getChatroomName().equals(chatroomName)).count();
+		for (int i = 0; i < count; i++, n++) {
+			ChatMessage message = message(chatroomName, 1000 + n, "message " + n);
+			stored.add(message);
+			messages.add(message);
+		}
+		return messages;
+	}
+
+	private ChatMessage message(String chatroomName, long timestamp, String text) {
+		return new ChatMessage(String.format("%024x", nextId++), chatroomName, 1, "user", "User",
+				CryptographyService.getCiphertext(text), timestamp, new ArrayList<>());
+	}
+
+	private MessageCursor cursorOf(int n) {
+		for (ChatMessage message : stored) {
+			if (message.getTimestamp() == 1000 + n) {
+				return new MessageCursor(message.getTimestamp(), message.getId());
+			}
+		}
+		throw new IllegalArgumentException();
+	}
+
+	private static List<String> texts(int from, int to) {
+		List<String> texts = new ArrayList<>();
+		for (int i = from; i < to; i++) {
+			texts.add("message " + i);
+		}
+		return texts;
+	}
+
+	private static List<String> texts(List<MessageResponse> messages) {
+		assertNotNull(messages);
+		List<String> texts = new ArrayList<>();
+		for (MessageResponse message : messages) {
+			texts.add(message.getMessage());
+		}
+		return texts;
+	}
+
+	/**
+	 * The two queries the cache loads a room with.
+	 */
+	private ChatMessageRepository repository() {
+		return (ChatMessageRepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ChatMessageRepository.class }, (proxy, method, args) -> {
+					String chatroomName = (String) args[0];
+					switch (method.getName()) {
+					case "findPageBefore":
+						loads.incrementAndGet();
+						if (duringLoad != null) {
+							duringLoad.run();
+						}
+						List<ChatMessage> page = new ArrayList<>();
+						for (int i = stored.size() - 1; i >= 0 && page.size() < (Integer) args[3]; i--) {
+							ChatMessage message = stored.get(i);
+							if (message.getChatroomName().equals(chatroomName)
+									&& before(message, (Long) args[1], (String) args[2])) {
+								page.add(message);
+							}
+						}
+						Collections.reverse(page);
+						return page;
+					case "countBefore":
+						return stored.stream().filter(message -> message.getChatroomName().equals(chatroomName)
+								&& before(message, (Long) args[1], (String) args[2])).count();
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private static boolean before(ChatMessage message, long timestamp, String id) {
+		if (message.getTimestamp() != timestamp || id == null) {
+			return message.getTimestamp() < timestamp;
+		}
+		return message.getId().compareTo(id) < 0;
+	}
+
+	private static void set(Object target, String name, Object value) throws ReflectiveOperationException {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+
+	private static Object get(Object target, String name) throws ReflectiveOperationException {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(target);
+	}
+}